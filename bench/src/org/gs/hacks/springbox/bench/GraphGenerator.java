@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox.bench;
+
+import org.gs.hacks.springbox.SpringBox;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic generation of the benchmark graphs, as node and edge arrays
+ * ready for {@link SpringBox#bulkLoad(String[], String[], String[], String[])}.
+ */
+public class GraphGenerator {
+    /**
+     * The generated graph families.
+     */
+    public static enum Kind {
+        /**
+         * A square grid, each node connected to its right and lower neighbours.
+         */
+        GRID,
+        /**
+         * A uniform random graph of mean degree 4.
+         */
+        RANDOM,
+        /**
+         * A Barabasi-Albert graph, each new node attached to two nodes chosen
+         * with a probability proportional to their degree.
+         */
+        SCALE_FREE,
+        /**
+         * A random recursive tree, each new node attached to a node chosen
+         * uniformly.
+         */
+        TREE
+    }
+
+    // Attributes
+
+    public String[] nodeIds;
+
+    public String[] edgeIds;
+
+    public String[] from;
+
+    public String[] to;
+
+    protected int edgeCount = 0;
+
+    // Constructors
+
+    /**
+     * Generate a graph.
+     *
+     * @param kind  The graph family.
+     * @param nodes The number of nodes.
+     * @param seed  The seed of the random generator.
+     */
+    public GraphGenerator(Kind kind, int nodes, long seed) {
+        Random random = new Random(seed);
+
+        nodeIds = new String[nodes];
+
+        for (int i = 0; i < nodes; i++)
+            nodeIds[i] = "n" + i;
+
+        switch (kind) {
+            case GRID:
+                grid(nodes);
+                break;
+            case RANDOM:
+                random(nodes, random);
+                break;
+            case SCALE_FREE:
+                scaleFree(nodes, random);
+                break;
+            case TREE:
+                tree(nodes, random);
+                break;
+        }
+
+        if (edgeCount < from.length) {
+            from = Arrays.copyOf(from, edgeCount);
+            to = Arrays.copyOf(to, edgeCount);
+        }
+
+        edgeIds = new String[edgeCount];
+
+        for (int i = 0; i < edgeCount; i++)
+            edgeIds[i] = "e" + i;
+    }
+
+    // Commands
+
+    /**
+     * Create a spring box and load the graph in it.
+     *
+     * @param is3D True for a 3D layout.
+     * @param seed The seed of the layout random generator.
+     * @return The box.
+     */
+    public SpringBox load(boolean is3D, long seed) {
+        SpringBox box = new SpringBox(is3D, new Random(seed));
+        box.bulkLoad(nodeIds, edgeIds, from, to);
+        return box;
+    }
+
+    protected void allocate(int edges) {
+        from = new String[edges];
+        to = new String[edges];
+    }
+
+    protected void edge(int n0, int n1) {
+        from[edgeCount] = nodeIds[n0];
+        to[edgeCount++] = nodeIds[n1];
+    }
+
+    protected void grid(int nodes) {
+        int side = (int) Math.ceil(Math.sqrt(nodes));
+
+        allocate(nodes * 2);
+
+        for (int i = 0; i < nodes; i++) {
+            if ((i % side) + 1 < side && i + 1 < nodes)
+                edge(i, i + 1);
+            if (i + side < nodes)
+                edge(i, i + side);
+        }
+    }
+
+    protected void random(int nodes, Random random) {
+        int edges = nodes * 2;
+
+        allocate(edges);
+
+        while (edgeCount < edges) {
+            int n0 = random.nextInt(nodes);
+            int n1 = random.nextInt(nodes);
+
+            if (n0 != n1)
+                edge(n0, n1);
+        }
+    }
+
+    protected void scaleFree(int nodes, Random random) {
+        int[] ends = new int[nodes * 4];
+        int endCount = 0;
+
+        allocate(nodes * 2);
+
+        for (int i = 1; i < nodes; i++) {
+            int links = Math.min(i, 2);
+            int first = -1;
+
+            for (int l = 0; l < links; l++) {
+                int target;
+
+                do {
+                    target = endCount == 0 ? 0 : ends[random.nextInt(endCount)];
+                } while (target == first && i > 1);
+
+                edge(i, target);
+                ends[endCount++] = i;
+                ends[endCount++] = target;
+                first = target;
+            }
+        }
+    }
+
+    protected void tree(int nodes, Random random) {
+        allocate(nodes);
+
+        for (int i = 1; i < nodes; i++)
+            edge(i, random.nextInt(i));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox.bench;
+
+import org.gs.hacks.springbox.SpringBox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time needed to build and to empty a layout through the sink callbacks,
+ * and through the bulk load. Each invocation handles the whole graph, the
+ * throughput per element is the node or edge count divided by the measured
+ * time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MutationBenchmark {
+    @Param({"RANDOM", "SCALE_FREE"})
+    public GraphGenerator.Kind graph;
+
+    @Param({"10000", "100000"})
+    public int nodes;
+
+    protected GraphGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        generator = new GraphGenerator(graph, nodes, 1);
+    }
+
+    /**
+     * One nodeAdded() per node then one edgeAdded() per edge.
+     */
+    @Benchmark
+    public SpringBox addElements() {
+        SpringBox box = new SpringBox(false, new Random(2));
+        String[] nodeIds = generator.nodeIds;
+        String[] edgeIds = generator.edgeIds;
+
+        for (int i = 0; i < nodeIds.length; i++)
+            box.nodeAdded("bench", i, nodeIds[i]);
+
+        for (int i = 0; i < edgeIds.length; i++)
+            box.edgeAdded("bench", i, edgeIds[i], generator.from[i], generator.to[i], false);
+
+        return box;
+    }
+
+    @Benchmark
+    public SpringBox bulkLoad() {
+        return generator.load(false, 2);
+    }
+
+    /**
+     * One nodeRemoved() per node, the edges being removed with their nodes.
+     */
+    @Benchmark
+    public SpringBox removeNodes(Loaded loaded) {
+        String[] nodeIds = generator.nodeIds;
+
+        for (int i = 0; i < nodeIds.length; i++)
+            loaded.box.nodeRemoved("bench", i, nodeIds[i]);
+
+        return loaded.box;
+    }
+
+    /**
+     * A freshly loaded layout for each invocation.
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+        protected SpringBox box;
+
+        @Setup(Level.Invocation)
+        public void setUp(MutationBenchmark benchmark) {
+            box = benchmark.generator.load(false, 2);
+        }
+    }
+}
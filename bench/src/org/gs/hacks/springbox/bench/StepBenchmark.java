@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox.bench;
+
+import org.gs.hacks.springbox.MultilevelLayout;
+import org.gs.hacks.springbox.SpringBox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time of one {@link SpringBox#compute()} step.
+ *
+ * <p>
+ * The graph is generated and bulk loaded once per trial, then spread with a
+ * short multilevel layout so that the measured steps are those of a layout
+ * being refined, not of all the nodes piled at the origin. The whole matrix is
+ * large, and quality 4 is quadratic : restrict it with the JMH -p option, for
+ * instance <code>-p nodes=1000,10000 -p quality=1</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+    @Param({"0", "1", "2", "3", "4"})
+    public int quality;
+
+    @Param({"false", "true"})
+    public boolean is3D;
+
+    @Param({"GRID", "RANDOM", "SCALE_FREE", "TREE"})
+    public GraphGenerator.Kind graph;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int nodes;
+
+    protected SpringBox box;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MultilevelLayout multilevel;
+
+        box = new GraphGenerator(graph, nodes, 1).load(is3D, 2);
+        box.setQuality(quality);
+
+        multilevel = new MultilevelLayout(box, new Random(3));
+        multilevel.setSteps(100, 5, 5);
+        multilevel.layout();
+    }
+
+    @Benchmark
+    public SpringBox step() {
+        box.compute();
+        return box;
+    }
+}
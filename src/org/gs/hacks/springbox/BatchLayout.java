@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.graphstream.stream.file.FileSourceDGS;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lay graph files out without display, several files at once.
+ *
+ * <p>
+ * Usage : <code>BatchLayout [options] file|directory...</code>. The files
+ * ending with ".dgs" or ".dgs.gz" are read as DGS, the others as edge lists,
+ * see {@link SpringBox#bulkLoad(String)}. The files of a directory are all
+ * taken, not those of its sub-directories. Each graph is laid out in one
+ * thread until the stabilization limit or the step limit is reached, then its
+ * positions are written next to the file or in the output directory :
+ * </p>
+ *
+ * <ul>
+ * <li>in text, a ".xy" file (".xyz" in 3D) with one line per node, the
+ * identifier and the coordinates separated by spaces ;</li>
+ * <li>or as a {@link LayoutSnapshot}, a ".snap" file, that can warm start a
+ * layout.</li>
+ * </ul>
+ *
+ * <p>
+ * The options are -threads n (one per processor by default), -steps n (the
+ * step limit, 5000 by default), -quality q (0 to 4), -stabilization s (the
+ * stabilization limit), -seed n, -3d, -out directory and -snapshot. A line is
+ * printed for each file, with the number of nodes and edges, the number of
+ * steps, the stabilization reached and the time spent reading, laying out and
+ * writing in milliseconds. The exit status is 1 if a file failed.
+ * </p>
+ */
+public class BatchLayout {
+    // Attributes
+
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    protected int maxSteps = 5000;
+
+    protected double quality = 1;
+
+    /**
+     * The stabilization limit, NaN to keep the one of the layout.
+     */
+    protected double stabilizationLimit = Double.NaN;
+
+    protected long seed = 1;
+
+    protected boolean is3D = false;
+
+    /**
+     * The directory of the output files, null to write them next to the
+     * input files.
+     */
+    protected File outputDirectory;
+
+    protected boolean snapshot = false;
+
+    protected ArrayList<File> files = new ArrayList<File>();
+
+    /**
+     * The next file to lay out.
+     */
+    protected AtomicInteger next = new AtomicInteger();
+
+    protected AtomicInteger failures = new AtomicInteger();
+
+    protected PrintStream out = System.out;
+
+    // Commands
+
+    public static void main(String[] args) throws InterruptedException {
+        BatchLayout batch = new BatchLayout();
+
+        if (!batch.parse(args)) {
+            System.err.printf("usage: BatchLayout [-threads n] [-steps n] [-quality q] [-stabilization s] "
+                    + "[-seed n] [-3d] [-out directory] [-snapshot] file|directory...%n");
+            System.exit(1);
+        }
+
+        System.exit(batch.run() ? 0 : 1);
+    }
+
+    /**
+     * Read the command line.
+     *
+     * @param args The arguments.
+     * @return False if they are invalid.
+     */
+    public boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+
+                if (arg.equals("-threads"))
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                else if (arg.equals("-steps"))
+                    maxSteps = Integer.parseInt(args[++i]);
+                else if (arg.equals("-quality"))
+                    quality = Double.parseDouble(args[++i]);
+                else if (arg.equals("-stabilization"))
+                    stabilizationLimit = Double.parseDouble(args[++i]);
+                else if (arg.equals("-seed"))
+                    seed = Long.parseLong(args[++i]);
+                else if (arg.equals("-3d"))
+                    is3D = true;
+                else if (arg.equals("-out"))
+                    outputDirectory = new File(args[++i]);
+                else if (arg.equals("-snapshot"))
+                    snapshot = true;
+                else if (arg.startsWith("-"))
+                    return false;
+                else
+                    addInput(new File(arg));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        return !files.isEmpty();
+    }
+
+    /**
+     * Add a file to lay out, or all the files of a directory.
+     *
+     * @param file The file or directory.
+     */
+    public void addInput(File file) {
+        if (file.isDirectory()) {
+            File[] list = file.listFiles();
+
+            if (list != null) {
+                Arrays.sort(list);
+
+                for (File f : list) {
+                    if (f.isFile())
+                        files.add(f);
+                }
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+    /**
+     * Lay all the files out, with the given number of threads.
+     *
+     * @return True if no file failed.
+     * @throws InterruptedException If interrupted while waiting for the
+     *                              threads.
+     */
+    public boolean run() throws InterruptedException {
+        long t0 = System.nanoTime();
+        Thread[] workers = new Thread[Math.min(threads, files.size())];
+
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            System.err.printf("cannot create the directory %s%n", outputDirectory);
+            return false;
+        }
+
+        out.printf("file nodes edges steps stabilization read-ms layout-ms write-ms%n");
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    int i;
+
+                    while ((i = next.getAndIncrement()) < files.size())
+                        layout(files.get(i));
+                }
+            }, "batch-layout-" + i);
+            workers[i].start();
+        }
+
+        for (Thread worker : workers)
+            worker.join();
+
+        System.err.printf(Locale.US, "%d files, %d failed, in %.1f s%n", files.size(), failures.get(),
+                (System.nanoTime() - t0) / 1e9);
+
+        return failures.get() == 0;
+    }
+
+    /**
+     * Lay one file out and write its positions.
+     *
+     * @param file The graph file.
+     */
+    protected void layout(File file) {
+        try {
+            long t0 = System.nanoTime();
+            SpringBox box = new SpringBox(is3D, new Random(seed));
+            int steps = 0;
+
+            box.setQuality(quality);
+            box.setBulkPositions(true);
+
+            if (!Double.isNaN(stabilizationLimit))
+                box.setStabilizationLimit(stabilizationLimit);
+
+            read(box, file);
+
+            long t1 = System.nanoTime();
+
+            while (steps < maxSteps && box.getStabilization() < box.getStabilizationLimit()) {
+                box.compute();
+                steps++;
+            }
+
+            long t2 = System.nanoTime();
+
+            write(box, file);
+
+            long t3 = System.nanoTime();
+
+            synchronized (out) {
+                out.printf(Locale.US, "%s %d %d %d %.3f %.1f %.1f %.1f%n", file.getPath(),
+                        box.store.getCount(), box.getEdgeCount(), steps, box.getStabilization(),
+                        (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6);
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            System.err.printf("%s: %s%n", file.getPath(), e);
+        }
+    }
+
+    protected void read(SpringBox box, File file) throws IOException {
+        String name = file.getName();
+
+        if (name.endsWith(".dgs") || name.endsWith(".dgs.gz")) {
+            FileSourceDGS source = new FileSourceDGS();
+
+            source.addSink(box);
+
+            try {
+                source.readAll(file.getPath());
+            } finally {
+                source.removeSink(box);
+            }
+        } else {
+            box.bulkLoad(file.getPath());
+        }
+    }
+
+    protected void write(SpringBox box, File file) throws IOException {
+        String name = file.getName();
+        File directory = outputDirectory != null ? outputDirectory : file.getAbsoluteFile().getParentFile();
+
+        if (name.endsWith(".gz"))
+            name = name.substring(0, name.length() - 3);
+
+        if (name.lastIndexOf('.') > 0)
+            name = name.substring(0, name.lastIndexOf('.'));
+
+        if (snapshot) {
+            box.saveSnapshot(new File(directory, name + ".snap").getPath());
+        } else {
+            File output = new File(directory, name + (is3D ? ".xyz" : ".xy"));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"), 1 << 16);
+            ParticleStore store = box.store;
+            StringBuilder line = new StringBuilder();
+
+            try {
+                for (int i = 0; i < store.getSlotCount(); i++) {
+                    if (store.particles[i] != null) {
+                        line.setLength(0);
+                        line.append((String) store.particles[i].getId()).append(' ');
+                        line.append((float) store.x[i]).append(' ').append((float) store.y[i]);
+
+                        if (is3D)
+                            line.append(' ').append((float) store.z[i]);
+
+                        writer.write(line.append('\n').toString());
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * The changes of the graph received between two steps of a {@link SpringBox}
+ * in coalescing mode, see {@link SpringBox#setCoalesceEvents(boolean)}.
+ *
+ * <p>
+ * The events are folded as they arrive : an element added then removed
+ * disappears, an element removed then added is replaced, only the last weight,
+ * frozen or ignored value of an element is kept and the moves of a node are
+ * summed. The result is applied in one go by {@link #apply(SpringBox)} : edge
+ * removals, node removals, node additions, edge additions, then the node and
+ * edge attributes, the convergence of the layout being perturbed once.
+ * </p>
+ *
+ * <p>
+ * The elements are applied in the order of their first event, so that the
+ * layout stays reproducible. An edge added to a node that is removed later in
+ * the same batch is dropped with the node, as it would have been removed with
+ * it.
+ * </p>
+ */
+public class ChangeSet {
+    // Constants
+
+    /**
+     * Only attributes changed.
+     */
+    protected static final int NONE = 0;
+
+    /**
+     * Element added.
+     */
+    protected static final int ADDED = 1;
+
+    /**
+     * Element removed.
+     */
+    protected static final int REMOVED = 2;
+
+    /**
+     * Element removed, then added again.
+     */
+    protected static final int REPLACED = 3;
+
+    // Attributes
+
+    /**
+     * The changed nodes, in the order of their first event.
+     */
+    protected LinkedHashMap<String, NodeChange> nodes = new LinkedHashMap<String, NodeChange>();
+
+    /**
+     * The changed edges, in the order of their first event.
+     */
+    protected LinkedHashMap<String, EdgeChange> edges = new LinkedHashMap<String, EdgeChange>();
+
+    /**
+     * True if the graph was cleared before the recorded changes.
+     */
+    protected boolean cleared = false;
+
+    /**
+     * The number of events recorded since the last application.
+     */
+    protected int eventCount = 0;
+
+    // Access
+
+    public boolean isEmpty() {
+        return !cleared && nodes.isEmpty() && edges.isEmpty();
+    }
+
+    /**
+     * The number of events recorded since the changes were last applied,
+     * including those that were folded away.
+     *
+     * @return The event count.
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * The number of elements whose changes are pending.
+     *
+     * @return The number of changed nodes and edges.
+     */
+    public int getChangeCount() {
+        return nodes.size() + edges.size();
+    }
+
+    // Commands
+
+    /**
+     * Forget all the changes.
+     */
+    public void clear() {
+        nodes.clear();
+        edges.clear();
+        cleared = false;
+        eventCount = 0;
+    }
+
+    public void graphCleared() {
+        clear();
+        cleared = true;
+        eventCount = 1;
+    }
+
+    public void nodeAdded(String id) {
+        NodeChange node = node(id);
+
+        eventCount++;
+
+        if (node.state == REMOVED)
+            node.state = REPLACED;
+        else if (node.state == NONE)
+            node.state = ADDED;
+    }
+
+    public void nodeRemoved(String id) {
+        NodeChange node = node(id);
+
+        eventCount++;
+        dropEdges(node);
+
+        if (node.state == ADDED) {
+            nodes.remove(id);
+        } else {
+            node.state = REMOVED;
+            node.reset();
+        }
+    }
+
+    public void edgeAdded(String id, String from, String to) {
+        EdgeChange edge = edges.get(id);
+
+        eventCount++;
+
+        if (edge == null) {
+            edge = new EdgeChange(id);
+            edge.state = ADDED;
+            edges.put(id, edge);
+        } else if (edge.state == REMOVED) {
+            edge.state = REPLACED;
+            edge.reset();
+        } else {
+            // Already in the graph, the addition will be refused.
+            return;
+        }
+
+        edge.from = from;
+        edge.to = to;
+        node(from).edges.add(edge);
+        node(to).edges.add(edge);
+    }
+
+    public void edgeRemoved(String id) {
+        EdgeChange edge = edges.get(id);
+
+        eventCount++;
+
+        if (edge == null) {
+            edge = new EdgeChange(id);
+            edges.put(id, edge);
+        } else if (edge.state == ADDED) {
+            edges.remove(id);
+            return;
+        }
+
+        edge.state = REMOVED;
+        edge.reset();
+    }
+
+    public void nodeWeightChanged(String id, double weight) {
+        NodeChange node = changedNode(id);
+
+        if (node != null)
+            node.weight = weight;
+    }
+
+    public void nodeFrozen(String id, boolean on) {
+        NodeChange node = changedNode(id);
+
+        if (node != null)
+            node.frozen = on ? 1 : 0;
+    }
+
+    public void nodeMoved(String id, double dx, double dy, double dz) {
+        NodeChange node = changedNode(id);
+
+        if (node != null) {
+            node.moved = true;
+            node.dx += dx;
+            node.dy += dy;
+            node.dz += dz;
+        }
+    }
+
+    public void edgeWeightChanged(String id, double weight) {
+        EdgeChange edge = changedEdge(id);
+
+        if (edge != null)
+            edge.weight = weight;
+    }
+
+    public void edgeIgnored(String id, boolean on) {
+        EdgeChange edge = changedEdge(id);
+
+        if (edge != null)
+            edge.ignored = on ? 1 : 0;
+    }
+
+    /**
+     * Apply the changes to a layout and forget them.
+     *
+     * @param box The layout.
+     */
+    public void apply(SpringBox box) {
+        if (cleared)
+            box.clear();
+
+        for (EdgeChange edge : edges.values()) {
+            if (edge.state == REMOVED || edge.state == REPLACED)
+                box.removeEdge(edge.id);
+        }
+
+        for (NodeChange node : nodes.values()) {
+            if (node.state == REMOVED || node.state == REPLACED)
+                box.removeNode(node.id);
+        }
+
+        for (NodeChange node : nodes.values()) {
+            if (node.state == ADDED || node.state == REPLACED) {
+                if (box.nodes.getParticle(node.id) != null)
+                    System.err.printf("node '%s' already exists%n", node.id);
+                else
+                    box.addNode(node.id);
+            }
+        }
+
+        for (EdgeChange edge : edges.values()) {
+            if (edge.state == ADDED || edge.state == REPLACED)
+                box.addEdge(edge.id, edge.from, edge.to);
+        }
+
+        for (NodeChange node : nodes.values()) {
+            if (node.state != REMOVED) {
+                if (!Double.isNaN(node.weight))
+                    box.setNodeWeight(node.id, node.weight);
+                if (node.frozen >= 0)
+                    box.freezeNode_(node.id, node.frozen == 1);
+                if (node.moved)
+                    box.moveNode_(node.id, node.dx, node.dy, node.dz);
+            }
+        }
+
+        for (EdgeChange edge : edges.values()) {
+            if (edge.state != REMOVED) {
+                if (!Double.isNaN(edge.weight))
+                    box.setEdgeWeight(edge.id, edge.weight);
+                if (edge.ignored >= 0)
+                    box.ignoreEdge(edge.id, edge.ignored == 1);
+            }
+        }
+
+        box.convergence.perturb();
+        clear();
+    }
+
+    protected NodeChange node(String id) {
+        NodeChange node = nodes.get(id);
+
+        if (node == null) {
+            node = new NodeChange(id);
+            nodes.put(id, node);
+        }
+
+        return node;
+    }
+
+    /**
+     * The change of a node whose attributes change.
+     *
+     * @param id The node identifier.
+     * @return The change, or null if the node is removed.
+     */
+    protected NodeChange changedNode(String id) {
+        NodeChange node = node(id);
+
+        eventCount++;
+
+        return node.state == REMOVED ? null : node;
+    }
+
+    /**
+     * The change of an edge whose attributes change.
+     *
+     * @param id The edge identifier.
+     * @return The change, or null if the edge is removed.
+     */
+    protected EdgeChange changedEdge(String id) {
+        EdgeChange edge = edges.get(id);
+
+        eventCount++;
+
+        if (edge == null) {
+            edge = new EdgeChange(id);
+            edges.put(id, edge);
+        }
+
+        return edge.state == REMOVED ? null : edge;
+    }
+
+    /**
+     * Drop the pending additions of the edges of a node being removed.
+     *
+     * @param node The node.
+     */
+    protected void dropEdges(NodeChange node) {
+        for (EdgeChange edge : node.edges) {
+            if (edges.get(edge.id) == edge && (node.id.equals(edge.from) || node.id.equals(edge.to))) {
+                if (edge.state == ADDED)
+                    edges.remove(edge.id);
+                else if (edge.state == REPLACED)
+                    edge.state = REMOVED;
+            }
+        }
+
+        node.edges.clear();
+    }
+
+    /**
+     * The pending changes of a node.
+     */
+    protected static class NodeChange {
+        protected String id;
+
+        protected int state = NONE;
+
+        protected double weight = Double.NaN;
+
+        /**
+         * 1 to freeze, 0 to unfreeze, -1 if unchanged.
+         */
+        protected int frozen = -1;
+
+        protected boolean moved = false;
+
+        protected double dx, dy, dz;
+
+        /**
+         * The edges added to this node in the batch.
+         */
+        protected ArrayList<EdgeChange> edges = new ArrayList<EdgeChange>(2);
+
+        protected NodeChange(String id) {
+            this.id = id;
+        }
+
+        protected void reset() {
+            weight = Double.NaN;
+            frozen = -1;
+            moved = false;
+            dx = dy = dz = 0;
+        }
+    }
+
+    /**
+     * The pending changes of an edge.
+     */
+    protected static class EdgeChange {
+        protected String id;
+
+        protected String from;
+
+        protected String to;
+
+        protected int state = NONE;
+
+        protected double weight = Double.NaN;
+
+        /**
+         * 1 to ignore, 0 to take into account, -1 if unchanged.
+         */
+        protected int ignored = -1;
+
+        protected EdgeChange(String id) {
+            this.id = id;
+        }
+
+        protected void reset() {
+            weight = Double.NaN;
+            ignored = -1;
+        }
+    }
+}
@@ -0,0 +1,1138 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.graphstream.stream.SourceBase;
+import org.graphstream.ui.geom.Point3;
+import org.graphstream.ui.layout.Layout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Lays each connected component of the graph out in its own
+ * {@link SpringBox}, then packs the components side by side.
+ *
+ * <p>
+ * In a single spring box, the nodes of a component are repelled by all the
+ * other components, which keep drifting apart : the area of the layout grows
+ * and the stabilization is delayed. Here the components never interact. The
+ * components are followed as the graph changes : an edge between two
+ * components merges the smaller one in the larger one, its nodes keeping
+ * their place, and a component that lost a node or an edge is checked for a
+ * split before the next step, the pieces other than the largest one moving
+ * to new spring boxes. The stable components are not computed, and the
+ * others are computed in parallel when the parallelism is greater than one.
+ * A node added alone only gets a spring box when its component is first
+ * computed or given a setting, so that loading the nodes then the edges
+ * does not build a box per node.
+ * </p>
+ *
+ * <p>
+ * After each step the bounding boxes of the components are packed in
+ * shelves, the largest components first, separated by the padding. Each
+ * component is thus given an offset, and the "xyz" events sent to the sinks
+ * of the layout are the positions of the spring boxes plus the offset of
+ * their component. In 3D the components are packed in the plane, their
+ * depth is left as is.
+ * </p>
+ *
+ * <p>
+ * The graph attributes starting with "layout." are given to the spring box
+ * of every component, see {@link SpringBox}, except layout.parallelism,
+ * which is the number of components computed at once, and
+ * layout.component-padding, the space between two components.
+ * </p>
+ */
+public class ComponentLayout extends SourceBase implements Layout {
+    // Constants
+
+    /**
+     * The number of cleared spring boxes kept for the new components.
+     */
+    protected static final int SPARE_BOXES = 16;
+
+    // Attributes
+
+    protected boolean is3D;
+
+    /**
+     * The random source giving the seeds of the spring boxes.
+     */
+    protected Random random;
+
+    protected HashMap<String, Node> nodes = new HashMap<String, Node>();
+
+    protected HashMap<String, Edge> edges = new HashMap<String, Edge>();
+
+    /**
+     * The components, in packing order once sorted.
+     */
+    protected ArrayList<Component> components = new ArrayList<Component>();
+
+    /**
+     * The spring boxes of the removed components, cleared, given to the next
+     * components needing one.
+     */
+    protected ArrayList<SpringBox> spareBoxes = new ArrayList<SpringBox>();
+
+    /**
+     * True if a component was created or removed, or changed size, since the
+     * last packing.
+     */
+    protected boolean reorder = false;
+
+    /**
+     * True if a component may have split since the last step.
+     */
+    protected boolean splits = false;
+
+    /**
+     * The layout.* graph attributes given to each spring box.
+     */
+    protected LinkedHashMap<String, Object> settings = new LinkedHashMap<String, Object>();
+
+    protected double quality = 1;
+
+    protected double force = 1;
+
+    protected double stabilizationLimit = 0.9;
+
+    protected boolean sendNodeInfos = false;
+
+    /**
+     * The space between two packed components.
+     */
+    protected double padding = 1;
+
+    /**
+     * The width of the shelves. It only changes when the area of the
+     * components changes notably, so that the components do not jump from
+     * shelf to shelf at each step.
+     */
+    protected double shelfWidth = 0;
+
+    /**
+     * The number of components computed at once.
+     */
+    protected int parallelism = 1;
+
+    protected ForkJoinPool pool;
+
+    /**
+     * The components computed by the current step.
+     */
+    protected ArrayList<Component> active = new ArrayList<Component>();
+
+    /**
+     * Used to mark the nodes visited when looking for a split.
+     */
+    protected int pass = 0;
+
+    protected int serial = 0;
+
+    protected int time = 0;
+
+    protected long lastStepTime;
+
+    protected int nodeMoveCount;
+
+    protected Point3 lo = new Point3(0, 0, 0);
+
+    protected Point3 hi = new Point3(1, 1, 1);
+
+    // Constructors
+
+    public ComponentLayout() {
+        this(false);
+    }
+
+    public ComponentLayout(boolean is3D) {
+        this(is3D, new Random(System.currentTimeMillis()));
+    }
+
+    public ComponentLayout(boolean is3D, Random random) {
+        this.is3D = is3D;
+        this.random = random;
+    }
+
+    // Access
+
+    public String getLayoutAlgorithmName() {
+        return "SpringBox components";
+    }
+
+    /**
+     * The number of connected components, as of the last step for the
+     * splits.
+     *
+     * @return The component count.
+     */
+    public int getComponentCount() {
+        return components.size();
+    }
+
+    /**
+     * The spring box laying out the component of a node. The positions of
+     * the box do not include the offset of the component.
+     *
+     * @param nodeId The node identifier.
+     * @return The box, or null if the node is unknown.
+     */
+    public SpringBox getComponentLayout(String nodeId) {
+        Node node = nodes.get(nodeId);
+        return node != null ? node.component.getBox() : null;
+    }
+
+    public int getNodeMovedCount() {
+        return nodeMoveCount;
+    }
+
+    /**
+     * The stabilization of the least stable component.
+     *
+     * @return The stabilization, 1 if the graph is empty.
+     */
+    public double getStabilization() {
+        double stabilization = 1;
+
+        for (int i = 0; i < components.size(); i++) {
+            SpringBox box = components.get(i).box;
+            stabilization = Math.min(stabilization, box != null ? box.getStabilization() : 0);
+        }
+
+        return stabilization;
+    }
+
+    public double getStabilizationLimit() {
+        return stabilizationLimit;
+    }
+
+    public Point3 getLowPoint() {
+        return lo;
+    }
+
+    public Point3 getHiPoint() {
+        return hi;
+    }
+
+    public int getSteps() {
+        return time;
+    }
+
+    public long getLastStepTime() {
+        return lastStepTime;
+    }
+
+    public double getQuality() {
+        return quality;
+    }
+
+    public double getForce() {
+        return force;
+    }
+
+    public double getPadding() {
+        return padding;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // Commands
+
+    public void setForce(double value) {
+        force = value;
+        setting("layout.force", value);
+    }
+
+    public void setStabilizationLimit(double value) {
+        stabilizationLimit = value;
+        setting("layout.stabilization-limit", value);
+    }
+
+    public void setQuality(double value) {
+        quality = value;
+        setting("layout.quality", value);
+    }
+
+    public void setSendNodeInfos(boolean on) {
+        sendNodeInfos = on;
+    }
+
+    /**
+     * Set the space left between two components.
+     *
+     * @param value The padding, in graph units.
+     */
+    public void setPadding(double value) {
+        padding = Math.max(0, value);
+        shelfWidth = 0;
+    }
+
+    /**
+     * Set the number of components computed at once. The spring box of each
+     * component is computed in one thread.
+     *
+     * @param threads The number of threads.
+     */
+    public void setParallelism(int threads) {
+        threads = threads < 1 ? 1 : threads;
+
+        if (threads != parallelism) {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+
+            parallelism = threads;
+
+            if (parallelism > 1)
+                pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    public void clear() {
+        nodes.clear();
+        edges.clear();
+        components.clear();
+        splits = false;
+        reorder = false;
+        shelfWidth = 0;
+        nodeMoveCount = 0;
+        lastStepTime = 0;
+    }
+
+    public void shake() {
+        for (int i = 0; i < components.size(); i++) {
+            if (components.get(i).box != null)
+                components.get(i).box.shake();
+        }
+    }
+
+    public void moveNode(String id, double dx, double dy, double dz) {
+        Node node = nodes.get(id);
+
+        if (node != null)
+            node.component.getBox().moveNode(id, dx, dy, dz);
+    }
+
+    public void freezeNode(String id, boolean on) {
+        Node node = nodes.get(id);
+
+        if (node != null)
+            node.component.getBox().freezeNode(id, on);
+    }
+
+    /**
+     * Run a step of every component that is not stable, then pack the
+     * components and send the moves.
+     */
+    public void compute() {
+        long t0 = System.currentTimeMillis();
+
+        if (splits)
+            splitComponents();
+
+        active.clear();
+
+        for (int i = 0; i < components.size(); i++) {
+            Component c = components.get(i);
+
+            if (c.box == null || c.box.getStabilization() < c.box.getStabilizationLimit()) {
+                c.getBox();
+                active.add(c);
+            }
+        }
+
+        if (pool != null && active.size() > 1) {
+            try {
+                for (Future<Object> step : pool.invokeAll(active))
+                    step.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        } else {
+            for (int i = 0; i < active.size(); i++)
+                active.get(i).call();
+        }
+
+        nodeMoveCount = 0;
+
+        for (int i = 0; i < active.size(); i++)
+            nodeMoveCount += active.get(i).box.getNodeMovedCount();
+
+        pack();
+        publishPositions();
+
+        time++;
+        lastStepTime = System.currentTimeMillis() - t0;
+    }
+
+    /**
+     * Give a layout setting to every spring box, and to the ones created
+     * later.
+     *
+     * @param attribute The layout.* attribute.
+     * @param value     Its value, null to remove it.
+     */
+    protected void setting(String attribute, Object value) {
+        if (value == null)
+            settings.remove(attribute);
+        else
+            settings.put(attribute, value);
+
+        for (int i = 0; i < components.size(); i++) {
+            if (components.get(i).box != null)
+                components.get(i).box.graphAttributeChanged_(attribute, value);
+        }
+
+        for (int i = 0; i < spareBoxes.size(); i++)
+            spareBoxes.get(i).graphAttributeChanged_(attribute, value);
+    }
+
+    /**
+     * A new component, without spring box until it needs one.
+     *
+     * @return The component.
+     */
+    protected Component newComponent() {
+        Component c = new Component();
+
+        components.add(c);
+        reorder = true;
+
+        return c;
+    }
+
+    /**
+     * A spring box for a component, a spare one if any.
+     *
+     * @return The empty box, with the settings of the layout.
+     */
+    protected SpringBox newBox() {
+        if (!spareBoxes.isEmpty())
+            return spareBoxes.remove(spareBoxes.size() - 1);
+
+        SpringBox box = new SpringBox(is3D, new Random(random.nextLong()));
+
+        box.setBulkPositions(true);
+
+        for (Map.Entry<String, Object> setting : settings.entrySet())
+            box.graphAttributeChanged_(setting.getKey(), setting.getValue());
+
+        return box;
+    }
+
+    /**
+     * Remove a component whose nodes were all removed or moved, its spring
+     * box being kept for a next component.
+     *
+     * @param c The empty component.
+     */
+    protected void removeComponent(Component c) {
+        components.remove(c);
+
+        if (c.box != null) {
+            c.box.removePositionsListener(c);
+
+            if (spareBoxes.size() < SPARE_BOXES) {
+                c.box.clear();
+                spareBoxes.add(c.box);
+            }
+        }
+
+        reorder = true;
+    }
+
+    protected void addNode(String id) {
+        if (nodes.containsKey(id))
+            return;
+
+        Component c = newComponent();
+        Node node = new Node(id, c);
+
+        nodes.put(id, node);
+        c.add(node);
+    }
+
+    protected void removeNode(String id) {
+        Node node = nodes.remove(id);
+
+        if (node != null) {
+            Component c = node.component;
+
+            for (int i = 0; i < node.edges.size(); i++) {
+                Edge edge = node.edges.get(i);
+                Node other = edge.opposite(node);
+
+                if (other != node)
+                    other.edges.remove(edge);
+
+                edges.remove(edge.id);
+            }
+
+            c.remove(node);
+
+            if (c.box != null)
+                c.box.removeNode(id);
+
+            if (c.members.isEmpty()) {
+                removeComponent(c);
+            } else if (!node.edges.isEmpty()) {
+                c.split = true;
+                splits = true;
+            }
+        }
+    }
+
+    protected void addEdge(String id, String from, String to) {
+        Node n0 = nodes.get(from);
+        Node n1 = nodes.get(to);
+
+        if (n0 == null || n1 == null || edges.containsKey(id))
+            return;
+
+        Edge edge = new Edge(id, n0, n1);
+
+        edges.put(id, edge);
+        n0.edges.add(edge);
+
+        if (n1 != n0)
+            n1.edges.add(edge);
+
+        if (n0.component != n1.component)
+            merge(n0.component, n1.component);
+
+        n0.component.getBox().addEdge(id, from, to);
+    }
+
+    protected void removeEdge(String id) {
+        Edge edge = edges.remove(id);
+
+        if (edge != null) {
+            Component c = edge.node0.component;
+
+            edge.node0.edges.remove(edge);
+            edge.node1.edges.remove(edge);
+            c.box.removeEdge(id);
+
+            if (edge.node0 != edge.node1) {
+                c.split = true;
+                splits = true;
+            }
+        }
+    }
+
+    /**
+     * Merge two components, the smaller one moving to the spring box of the
+     * larger one, or of the one having a box for two lone nodes. The moved
+     * nodes keep their place in the packed layout.
+     *
+     * @param a A component.
+     * @param b Another component.
+     */
+    protected void merge(Component a, Component b) {
+        int na = a.members.size();
+        int nb = b.members.size();
+        Component into = na > nb || (na == nb && (a.box != null || b.box == null)) ? a : b;
+        Component from = into == a ? b : a;
+
+        moveNodes(from, into, from.members);
+        into.split |= from.split;
+        splits |= into.split;
+        removeComponent(from);
+    }
+
+    /**
+     * Move nodes and the edges between them to the spring box of another
+     * component, with their position, weight and frozen state. The nodes of
+     * a component without box are placed by the destination box.
+     *
+     * @param from    The component of the nodes.
+     * @param into    The destination.
+     * @param members The nodes, all those of the source component or a part
+     *                of them not connected to the others.
+     */
+    protected void moveNodes(Component from, Component into, ArrayList<Node> members) {
+        SpringBox source = from.box;
+        SpringBox target = into.getBox();
+        ArrayList<Node> moved = new ArrayList<Node>(members);
+
+        if (source == null) {
+            for (int i = 0; i < moved.size(); i++) {
+                if (from != into && members != from.members)
+                    from.remove(moved.get(i));
+
+                target.addNode(moved.get(i).id);
+                into.add(moved.get(i));
+            }
+
+            reorder = true;
+            return;
+        }
+
+        ParticleStore store = source.store;
+        ArrayList<EdgeSpring> springs = new ArrayList<EdgeSpring>();
+
+        for (int i = 0; i < moved.size(); i++) {
+            Node node = moved.get(i);
+
+            for (int j = 0; j < node.edges.size(); j++) {
+                Edge edge = node.edges.get(j);
+                EdgeSpring spring = source.edges.get(edge.id);
+
+                if (edge.node0 == node && spring != null)
+                    springs.add(spring);
+            }
+        }
+
+        target.store.ensureCapacity(target.store.getCount() + moved.size());
+
+        for (int i = 0; i < moved.size(); i++) {
+            Node node = moved.get(i);
+            NodeParticle particle = (NodeParticle) source.nodes.getParticle(node.id);
+            int slot = particle.slot;
+            NodeParticle copy = target.addNode(node.id, store.x[slot] + from.offsetX - into.offsetX,
+                    store.y[slot] + from.offsetY - into.offsetY, store.z[slot]);
+
+            copy.setWeight(store.weight[slot]);
+            copy.setFrozen(store.frozen[slot]);
+
+            if (from != into && members != from.members)
+                from.remove(node);
+
+            into.add(node);
+        }
+
+        for (int i = 0; i < springs.size(); i++) {
+            EdgeSpring spring = springs.get(i);
+            EdgeSpring copy = target.connect(spring.id,
+                    (NodeParticle) target.nodes.getParticle(spring.node0.getId()),
+                    (NodeParticle) target.nodes.getParticle(spring.node1.getId()));
+
+            copy.weight = spring.weight;
+            copy.ignored = spring.ignored;
+        }
+
+        for (int i = 0; i < moved.size(); i++)
+            source.removeNode(moved.get(i).id);
+
+        reorder = true;
+    }
+
+    /**
+     * Check the components that lost a node or an edge, and move each piece
+     * of a split component, except the largest one, to a new component.
+     */
+    protected void splitComponents() {
+        ArrayList<Component> split = new ArrayList<Component>();
+
+        for (int i = 0; i < components.size(); i++) {
+            if (components.get(i).split)
+                split.add(components.get(i));
+        }
+
+        for (int i = 0; i < split.size(); i++) {
+            Component c = split.get(i);
+            ArrayList<ArrayList<Node>> pieces = new ArrayList<ArrayList<Node>>();
+            int largest = 0;
+
+            c.split = false;
+            pass++;
+
+            for (int j = 0; j < c.members.size(); j++) {
+                Node node = c.members.get(j);
+
+                if (node.mark != pass) {
+                    ArrayList<Node> piece = explore(node);
+
+                    if (!pieces.isEmpty() && piece.size() > pieces.get(largest).size())
+                        largest = pieces.size();
+
+                    pieces.add(piece);
+                }
+            }
+
+            for (int j = 0; j < pieces.size(); j++) {
+                if (j != largest) {
+                    Component piece = newComponent();
+
+                    piece.offsetX = c.offsetX;
+                    piece.offsetY = c.offsetY;
+                    moveNodes(c, piece, pieces.get(j));
+                }
+            }
+        }
+
+        splits = false;
+    }
+
+    /**
+     * The nodes connected to a node, marked with the current pass.
+     *
+     * @param start The node.
+     * @return Its connected nodes, itself included.
+     */
+    protected ArrayList<Node> explore(Node start) {
+        ArrayList<Node> piece = new ArrayList<Node>();
+
+        start.mark = pass;
+        piece.add(start);
+
+        for (int i = 0; i < piece.size(); i++) {
+            Node node = piece.get(i);
+
+            for (int j = 0; j < node.edges.size(); j++) {
+                Node other = node.edges.get(j).opposite(node);
+
+                if (other.mark != pass) {
+                    other.mark = pass;
+                    piece.add(other);
+                }
+            }
+        }
+
+        return piece;
+    }
+
+    /**
+     * Place the bounding boxes of the components in shelves, the components
+     * of most nodes first.
+     */
+    protected void pack() {
+        if (reorder) {
+            Collections.sort(components, new Comparator<Component>() {
+                public int compare(Component c0, Component c1) {
+                    int n0 = c0.members.size();
+                    int n1 = c1.members.size();
+
+                    return n0 != n1 ? (n0 > n1 ? -1 : 1) : (c0.serial < c1.serial ? -1 : c0.serial > c1.serial ? 1 : 0);
+                }
+            });
+
+            reorder = false;
+        }
+
+        double area = 0;
+        double widest = 0;
+        double loZ = 0;
+        double hiZ = 0;
+
+        for (int i = 0; i < components.size(); i++) {
+            Component c = components.get(i);
+
+            if (c.bounds)
+                c.computeBounds();
+
+            double w = c.hiX - c.loX + padding;
+            double h = c.hiY - c.loY + padding;
+
+            area += w * h;
+            widest = Math.max(widest, w);
+
+            if (i == 0 || c.loZ < loZ)
+                loZ = c.loZ;
+            if (i == 0 || c.hiZ > hiZ)
+                hiZ = c.hiZ;
+        }
+
+        double width = Math.sqrt(area);
+
+        if (shelfWidth == 0 || width > shelfWidth * 1.25 || width < shelfWidth * 0.8)
+            shelfWidth = width;
+
+        double x = 0;
+        double y = 0;
+        double shelfHeight = 0;
+        double right = 0;
+        double limit = Math.max(shelfWidth, widest);
+
+        for (int i = 0; i < components.size(); i++) {
+            Component c = components.get(i);
+            double w = c.hiX - c.loX + padding;
+            double h = c.hiY - c.loY + padding;
+
+            if (x > 0 && x + w > limit) {
+                y += shelfHeight;
+                x = 0;
+                shelfHeight = 0;
+            }
+
+            c.place(x - c.loX, y - c.loY);
+            x += w;
+            right = Math.max(right, x);
+            shelfHeight = Math.max(shelfHeight, h);
+        }
+
+        lo.set(0, 0, loZ);
+        hi.set(right, y + shelfHeight, hiZ);
+    }
+
+    /**
+     * Send the positions of the nodes that moved, and of all the nodes of the
+     * components whose offset changed.
+     */
+    protected void publishPositions() {
+        boolean send = !attrSinks.isEmpty();
+
+        for (int i = 0; i < components.size(); i++) {
+            Component c = components.get(i);
+
+            if (c.box == null)
+                continue;
+
+            ParticleStore store = c.box.store;
+
+            if (send && c.moved) {
+                for (int slot = 0; slot < store.getSlotCount(); slot++) {
+                    if (store.particles[slot] != null)
+                        sendPosition(c, store, slot);
+                }
+            } else if (send) {
+                for (int j = 0; j < c.changedCount; j++) {
+                    int slot = c.changed[j];
+
+                    if (slot < store.getSlotCount() && store.particles[slot] != null)
+                        sendPosition(c, store, slot);
+                }
+            }
+
+            c.moved = false;
+            c.changedCount = 0;
+        }
+    }
+
+    protected void sendPosition(Component c, ParticleStore store, int slot) {
+        Object xyz[] = new Object[3];
+
+        xyz[0] = store.x[slot] + c.offsetX;
+        xyz[1] = store.y[slot] + c.offsetY;
+        xyz[2] = store.z[slot];
+
+        sendNodeAttributeChanged(getLayoutAlgorithmName(), (String) store.particles[slot].getId(), "xyz", xyz, xyz);
+    }
+
+    // Output interface
+
+    public void nodeAdded(String graphId, long time, String nodeId) {
+        addNode(nodeId);
+        sendNodeAdded(graphId, time, nodeId);
+    }
+
+    public void nodeRemoved(String graphId, long time, String nodeId) {
+        removeNode(nodeId);
+        sendNodeRemoved(graphId, time, nodeId);
+    }
+
+    public void edgeAdded(String graphId, long time, String edgeId, String fromNodeId, String toNodeId, boolean directed) {
+        addEdge(edgeId, fromNodeId, toNodeId);
+        sendEdgeAdded(graphId, time, edgeId, fromNodeId, toNodeId, directed);
+    }
+
+    public void edgeRemoved(String graphId, long time, String edgeId) {
+        removeEdge(edgeId);
+        sendEdgeRemoved(graphId, time, edgeId);
+    }
+
+    public void graphCleared(String graphId, long time) {
+        clear();
+        sendGraphCleared(graphId, time);
+    }
+
+    public void stepBegins(String graphId, long time, double step) {
+        sendStepBegins(graphId, time, step);
+    }
+
+    public void graphAttributeAdded(String graphId, long time, String attribute, Object value) {
+        graphAttributeChanged_(attribute, value);
+        sendGraphAttributeAdded(graphId, time, attribute, value);
+    }
+
+    public void graphAttributeChanged(String graphId, long time, String attribute, Object oldValue, Object newValue) {
+        graphAttributeChanged_(attribute, newValue);
+        sendGraphAttributeChanged(graphId, time, attribute, oldValue, newValue);
+    }
+
+    public void graphAttributeRemoved(String graphId, long time, String attribute) {
+        sendGraphAttributeRemoved(graphId, time, attribute);
+    }
+
+    protected void graphAttributeChanged_(String attribute, Object newValue) {
+        if (attribute.equals("layout.parallelism")) {
+            setParallelism(newValue instanceof Number ? ((Number) newValue).intValue() : 1);
+        } else if (attribute.equals("layout.component-padding")) {
+            if (newValue instanceof Number)
+                setPadding(((Number) newValue).doubleValue());
+        } else if (attribute.equals("layout.bulk-positions")) {
+            System.err.printf("the component layout only sends xyz events, %s ignored%n", attribute);
+        } else if (attribute.startsWith("layout.")) {
+            if (attribute.equals("layout.force") && newValue instanceof Number)
+                force = ((Number) newValue).doubleValue();
+            else if (attribute.equals("layout.quality") && newValue instanceof Number)
+                quality = ((Number) newValue).doubleValue();
+            else if (attribute.equals("layout.stabilization-limit") && newValue instanceof Number)
+                stabilizationLimit = ((Number) newValue).doubleValue();
+
+            setting(attribute, newValue);
+        }
+    }
+
+    public void nodeAttributeAdded(String graphId, long time, String nodeId, String attribute, Object value) {
+        nodeAttributeChanged_(nodeId, attribute, value);
+        sendNodeAttributeAdded(graphId, time, nodeId, attribute, value);
+    }
+
+    public void nodeAttributeChanged(String graphId, long time, String nodeId, String attribute, Object oldValue, Object newValue) {
+        nodeAttributeChanged_(nodeId, attribute, newValue);
+        sendNodeAttributeChanged(graphId, time, nodeId, attribute, oldValue, newValue);
+    }
+
+    public void nodeAttributeRemoved(String graphId, long time, String nodeId, String attribute) {
+        sendNodeAttributeRemoved(graphId, time, nodeId, attribute);
+    }
+
+    protected void nodeAttributeChanged_(String nodeId, String attribute, Object newValue) {
+        Node node = nodes.get(nodeId);
+
+        if (node != null && attribute.startsWith("layout."))
+            node.component.getBox().nodeAttributeChanged_(nodeId, attribute, newValue);
+    }
+
+    public void edgeAttributeAdded(String graphId, long time, String edgeId, String attribute, Object value) {
+        edgeAttributeChanged_(edgeId, attribute, value);
+        sendEdgeAttributeAdded(graphId, time, edgeId, attribute, value);
+    }
+
+    public void edgeAttributeChanged(String graphId, long time, String edgeId, String attribute, Object oldValue, Object newValue) {
+        edgeAttributeChanged_(edgeId, attribute, newValue);
+        sendEdgeAttributeChanged(graphId, time, edgeId, attribute, oldValue, newValue);
+    }
+
+    public void edgeAttributeRemoved(String graphId, long time, String edgeId, String attribute) {
+        sendEdgeAttributeRemoved(graphId, time, edgeId, attribute);
+    }
+
+    protected void edgeAttributeChanged_(String edgeId, String attribute, Object newValue) {
+        Edge edge = edges.get(edgeId);
+
+        if (edge != null && attribute.startsWith("layout."))
+            edge.node0.component.getBox().edgeAttributeChanged_(edgeId, attribute, newValue);
+    }
+
+    /**
+     * A node of the graph.
+     */
+    protected static class Node {
+        protected String id;
+
+        protected Component component;
+
+        /**
+         * The index of the node in the members of its component.
+         */
+        protected int index = -1;
+
+        protected ArrayList<Edge> edges = new ArrayList<Edge>(2);
+
+        /**
+         * The last pass that visited the node.
+         */
+        protected int mark = 0;
+
+        protected Node(String id, Component component) {
+            this.id = id;
+            this.component = component;
+        }
+    }
+
+    /**
+     * An edge of the graph.
+     */
+    protected static class Edge {
+        protected String id;
+
+        protected Node node0;
+
+        protected Node node1;
+
+        protected Edge(String id, Node node0, Node node1) {
+            this.id = id;
+            this.node0 = node0;
+            this.node1 = node1;
+        }
+
+        protected Node opposite(Node node) {
+            return node == node0 ? node1 : node0;
+        }
+    }
+
+    /**
+     * A connected component, its spring box and its place in the packing.
+     */
+    protected class Component implements PositionsListener, Callable<Object> {
+        /**
+         * The spring box of the component, null for a lone node not yet
+         * computed.
+         */
+        protected SpringBox box;
+
+        protected ArrayList<Node> members = new ArrayList<Node>();
+
+        /**
+         * The creation order, to keep the packing order of the components of
+         * the same size.
+         */
+        protected int serial = ComponentLayout.this.serial++;
+
+        /**
+         * True if the component lost a node or an edge since the last step.
+         */
+        protected boolean split = false;
+
+        /**
+         * The translation from the spring box to the packed layout.
+         */
+        protected double offsetX = 0;
+
+        protected double offsetY = 0;
+
+        /**
+         * True if the offset changed since the positions were last sent, all
+         * the nodes are then sent.
+         */
+        protected boolean moved = true;
+
+        /**
+         * True if the bounding box must be computed again.
+         */
+        protected boolean bounds = true;
+
+        protected double loX, loY, loZ, hiX, hiY, hiZ;
+
+        /**
+         * The slots of the nodes that moved since the positions were last
+         * sent.
+         */
+        protected int[] changed = new int[16];
+
+        protected int changedCount = 0;
+
+        /**
+         * The spring box of the component, created with the nodes of the
+         * component if it has none. Only lone nodes lack a box, so no edge is
+         * added.
+         *
+         * @return The box.
+         */
+        protected SpringBox getBox() {
+            if (box == null) {
+                box = newBox();
+                box.addPositionsListener(this);
+
+                for (int i = 0; i < members.size(); i++)
+                    box.addNode(members.get(i).id);
+            }
+
+            return box;
+        }
+
+        protected void add(Node node) {
+            node.component = this;
+            node.index = members.size();
+            members.add(node);
+            bounds = true;
+            reorder = true;
+        }
+
+        protected void remove(Node node) {
+            Node last = members.remove(members.size() - 1);
+
+            if (last != node) {
+                members.set(node.index, last);
+                last.index = node.index;
+            }
+
+            node.index = -1;
+            bounds = true;
+            reorder = true;
+        }
+
+        /**
+         * Run a step of the spring box, in a thread of the pool.
+         *
+         * @return Nothing.
+         */
+        public Object call() {
+            box.compute();
+            computeBounds();
+            return null;
+        }
+
+        public void positionsUpdated(SpringBox layout, double[] x, double[] y, double[] z, int[] slots, int count) {
+            if (changedCount + count > changed.length)
+                changed = Arrays.copyOf(changed, Math.max(changedCount + count, changed.length * 2));
+
+            System.arraycopy(slots, 0, changed, changedCount, count);
+            changedCount += count;
+        }
+
+        protected void computeBounds() {
+            boolean first = true;
+
+            loX = loY = loZ = hiX = hiY = hiZ = 0;
+
+            if (box == null)
+                return;
+
+            ParticleStore store = box.store;
+
+            for (int slot = 0; slot < store.getSlotCount(); slot++) {
+                if (store.particles[slot] != null) {
+                    double x = store.x[slot];
+                    double y = store.y[slot];
+                    double z = store.z[slot];
+
+                    if (first) {
+                        loX = hiX = x;
+                        loY = hiY = y;
+                        loZ = hiZ = z;
+                        first = false;
+                    } else {
+                        loX = Math.min(loX, x);
+                        loY = Math.min(loY, y);
+                        loZ = Math.min(loZ, z);
+                        hiX = Math.max(hiX, x);
+                        hiY = Math.max(hiY, y);
+                        hiZ = Math.max(hiZ, z);
+                    }
+                }
+            }
+
+            bounds = false;
+        }
+
+        protected void place(double x, double y) {
+            if (x != offsetX || y != offsetY) {
+                offsetX = x;
+                offsetY = y;
+                moved = true;
+            }
+        }
+    }
+}
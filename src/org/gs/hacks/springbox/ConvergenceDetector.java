@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+/**
+ * Streaming detection of the convergence of a layout.
+ *
+ * <p>
+ * At each step, the detector receives the global energy and the largest node
+ * displacement. It keeps an exponentially weighted moving average of the
+ * relative energy variation, and another of the variation of the largest
+ * displacement. Each average is divided by its tolerance, and the
+ * stabilization is 1 / (1 + x), x being the largest of the two ratios. A
+ * variation equal to its tolerance therefore gives a stabilization of 0.5.
+ * Nothing is stored but the averages, and the layout can be declared stable
+ * as soon as the warm-up steps are done.
+ * </p>
+ *
+ * <p>
+ * A change of the graph or of the layout parameters does not need to restart
+ * the detection : {@link #perturb()} raises the averages to their tolerance,
+ * so the layout runs until they decay again, which takes a few windows if the
+ * change did not really move the nodes. {@link #reset()} restarts the
+ * detection from scratch.
+ * </p>
+ */
+public class ConvergenceDetector {
+    // Attributes
+
+    /**
+     * The number of steps averaged by the energy variation average.
+     */
+    protected int energyWindow = 10;
+
+    /**
+     * The number of steps averaged by the displacement variation average.
+     */
+    protected int moveWindow = 10;
+
+    /**
+     * The relative energy variation giving a stabilization of 0.5.
+     */
+    protected double energyTolerance = 0.005;
+
+    /**
+     * The displacement variation giving a stabilization of 0.5.
+     */
+    protected double moveTolerance = 0.1;
+
+    /**
+     * The number of steps after a reset during which the layout is not
+     * considered stable.
+     */
+    protected int warmUp = 10;
+
+    /**
+     * The average of the relative energy variation.
+     */
+    protected double energyDelta;
+
+    /**
+     * The average of the variation of the largest displacement.
+     */
+    protected double moveDelta;
+
+    protected double lastEnergy;
+
+    protected double lastMove;
+
+    /**
+     * The number of steps since the last reset.
+     */
+    protected int steps = 0;
+
+    // Constructors
+
+    public ConvergenceDetector() {
+        reset();
+    }
+
+    // Access
+
+    /**
+     * A number in [0..1] with 1 meaning fully stabilised.
+     *
+     * @return The level of stabilisation.
+     */
+    public double getStabilization() {
+        if (steps < warmUp)
+            return 0;
+
+        double x = Math.max(energyDelta / energyTolerance, moveDelta / moveTolerance);
+
+        return 1 / (1 + x);
+    }
+
+    public double getEnergyDelta() {
+        return energyDelta;
+    }
+
+    public double getMoveDelta() {
+        return moveDelta;
+    }
+
+    public int getWarmUp() {
+        return warmUp;
+    }
+
+    // Commands
+
+    /**
+     * Set the number of steps averaged.
+     *
+     * @param energy The window of the energy variation.
+     * @param move   The window of the displacement variation.
+     */
+    public void setWindows(int energy, int move) {
+        energyWindow = Math.max(energy, 1);
+        moveWindow = Math.max(move, 1);
+    }
+
+    /**
+     * Set the variations giving a stabilization of 0.5.
+     *
+     * @param energy The relative energy variation.
+     * @param move   The variation of the largest displacement.
+     */
+    public void setTolerances(double energy, double move) {
+        if (energy > 0)
+            energyTolerance = energy;
+        if (move > 0)
+            moveTolerance = move;
+    }
+
+    public void setWarmUp(int steps) {
+        warmUp = Math.max(steps, 1);
+    }
+
+    /**
+     * Account for one step.
+     *
+     * @param energy  The energy of the step.
+     * @param maxMove The largest node displacement of the step.
+     */
+    public void step(double energy, double maxMove) {
+        if (steps > 0) {
+            double scale = Math.max(Math.abs(energy), Math.abs(lastEnergy));
+            double de = scale > 0 ? Math.abs(energy - lastEnergy) / scale : 0;
+            double dm = Math.abs(maxMove - lastMove);
+
+            energyDelta += (de - energyDelta) * 2 / (energyWindow + 1);
+            moveDelta += (dm - moveDelta) * 2 / (moveWindow + 1);
+        }
+
+        lastEnergy = energy;
+        lastMove = maxMove;
+        steps++;
+    }
+
+    /**
+     * Raise the averages to their tolerance, the stabilization falls to 0.5 or
+     * less.
+     */
+    public void perturb() {
+        energyDelta = Math.max(energyDelta, energyTolerance);
+        moveDelta = Math.max(moveDelta, moveTolerance);
+    }
+
+    /**
+     * Restart the detection.
+     */
+    public void reset() {
+        energyDelta = energyTolerance;
+        moveDelta = moveTolerance;
+        steps = 0;
+    }
+}
@@ -6,6 +6,12 @@ package org.gs.hacks.springbox;
 
 /**
  * Edge representation.
+ *
+ * <p>
+ * An edge knows its index in the edge array of the box and its index in the
+ * neighbour list of each of its nodes, so that it is removed from all of them
+ * in constant time, by moving the last element of each list in its place.
+ * </p>
  */
 public class EdgeSpring {
     /**
@@ -33,6 +39,24 @@ public class EdgeSpring {
      */
     public boolean ignored = false;
 
+    /**
+     * The index of this edge in the edge array of the box, -1 if not in the
+     * box.
+     */
+    public int slot = -1;
+
+    /**
+     * The index of this edge in the neighbour list of the first node, -1 if
+     * not registered.
+     */
+    public int index0 = -1;
+
+    /**
+     * The index of this edge in the neighbour list of the second node, -1 if
+     * not registered.
+     */
+    public int index1 = -1;
+
     /**
      * New edge between two given nodes.
      *
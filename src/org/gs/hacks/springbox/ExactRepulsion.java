@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The exact all-pairs repulsion of a {@link SpringBox}, used when the quality
+ * is the highest (no n-tree approximation).
+ *
+ * <p>
+ * At each step the positions and weights of the nodes are packed in dense
+ * arrays, without the free slots of the {@link ParticleStore}. The repulsion
+ * of every node that can move is then computed by blocks of {@link #BLOCK}
+ * targets against tiles of {@link #TILE} sources : the tile stays in the L1
+ * cache while the block is computed, and the inner loop only reads primitive
+ * arrays in sequence. The blocks are split among the threads of the pool of
+ * the box, if any.
+ * </p>
+ *
+ * <p>
+ * Each target sums the sources in the same order whatever the number of
+ * threads, so the result does not depend on the parallelism. The nodes then
+ * read their repulsion with {@link NodeParticle#repulsionN2(StepAccumulator)}.
+ * </p>
+ *
+ * <p>
+ * A sliced step of the box packs the nodes with
+ * {@link #prepare(ParticleStore, boolean, double)} then computes them one by
+ * one with {@link #computeNode(int)}, summing the tiles in the same order.
+ * </p>
+ */
+public class ExactRepulsion extends RecursiveAction {
+    // Constants
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of sources of a tile : four columns of 1024 doubles fill a 32 kB
+     * L1 cache.
+     */
+    public static final int TILE = 1024;
+
+    /**
+     * Number of targets computed against a tile before moving to the next
+     * tile.
+     */
+    public static final int BLOCK = 64;
+
+    // Attributes
+
+    /**
+     * The packed positions and weights of the nodes.
+     */
+    protected double[] x = new double[0];
+
+    protected double[] y = new double[0];
+
+    protected double[] z = new double[0];
+
+    protected double[] w = new double[0];
+
+    /**
+     * The number of packed nodes.
+     */
+    protected int count = 0;
+
+    /**
+     * The packed index of each slot of the store, -1 for a free slot.
+     */
+    protected int[] index = new int[0];
+
+    /**
+     * The number of slots of the store when the nodes were packed, the slots
+     * added since have no packed index.
+     */
+    protected int slotCount = 0;
+
+    /**
+     * The packed indices of the nodes whose repulsion is computed, those
+     * neither frozen nor asleep.
+     */
+    protected int[] targets = new int[0];
+
+    protected int targetCount = 0;
+
+    /**
+     * The repulsion of each packed node, and its energy.
+     */
+    protected double[] fx = new double[0];
+
+    protected double[] fy = new double[0];
+
+    protected double[] fz = new double[0];
+
+    protected double[] energy = new double[0];
+
+    /**
+     * The repulsion constant of the box.
+     */
+    protected double k2;
+
+    /**
+     * The parts of the targets computed by the tasks of the pool.
+     */
+    protected Part[] parts = new Part[0];
+
+    protected int partCount = 0;
+
+    // Access
+
+    /**
+     * The number of nodes whose repulsion was computed by the last step.
+     *
+     * @return The number of targets.
+     */
+    public int getTargetCount() {
+        return targetCount;
+    }
+
+    // Commands
+
+    /**
+     * Compute the repulsion of all the nodes that can move.
+     *
+     * @param store  The nodes.
+     * @param is3D   True to take the depth into account.
+     * @param k2     The repulsion constant.
+     * @param pool   The pool, null to compute in the calling thread.
+     * @param chunks The number of parts to split the targets into when a pool
+     *               is given.
+     */
+    public void compute(ParticleStore store, boolean is3D, double k2, ForkJoinPool pool, int chunks) {
+        prepare(store, is3D, k2);
+
+        if (pool == null || targetCount <= BLOCK) {
+            computeTargets(0, targetCount);
+        } else {
+            int blocks = (targetCount + BLOCK - 1) / BLOCK;
+            int n = Math.min(chunks, blocks);
+            int from = 0;
+
+            allocate(n);
+
+            for (int i = 0; i < n; i++) {
+                int to = Math.min(targetCount, (int) ((long) blocks * (i + 1) / n) * BLOCK);
+
+                parts[i].set(from, to);
+                from = to;
+            }
+
+            reinitialize();
+            pool.invoke(this);
+        }
+    }
+
+    /**
+     * Pack the nodes, their repulsion is then computed node by node with
+     * {@link #computeNode(int)}.
+     *
+     * @param store The nodes.
+     * @param is3D  True to take the depth into account.
+     * @param k2    The repulsion constant.
+     */
+    public void prepare(ParticleStore store, boolean is3D, double k2) {
+        pack(store, is3D);
+        this.k2 = k2;
+    }
+
+    /**
+     * Compute the repulsion of one node against all the packed nodes.
+     *
+     * @param slot The slot of the node. A node added since the nodes were
+     *             packed is ignored.
+     */
+    public void computeNode(int slot) {
+        int i = slot < slotCount ? index[slot] : -1;
+
+        if (i >= 0) {
+            fx[i] = fy[i] = fz[i] = energy[i] = 0;
+
+            for (int s = 0; s < count; s += TILE)
+                computeTarget(i, s, Math.min(count, s + TILE));
+        }
+    }
+
+    /**
+     * Add the repulsion of a node to an accumulator.
+     *
+     * @param slot The slot of the node, one of the targets of the last
+     *             computation. A node added since has no repulsion.
+     * @param acc  The accumulator.
+     */
+    public void addRepulsion(int slot, StepAccumulator acc) {
+        int i = slot < slotCount ? index[slot] : -1;
+
+        if (i < 0)
+            return;
+
+        acc.dispX += fx[i];
+        acc.dispY += fy[i];
+        acc.dispZ += fz[i];
+        acc.energy += energy[i];
+        acc.direct += count - 1;
+    }
+
+    @Override
+    protected void compute() {
+        if (partCount == parts.length)
+            invokeAll(parts);
+        else
+            invokeAll(Arrays.asList(parts).subList(0, partCount));
+    }
+
+    /**
+     * Copy the nodes of the store in the packed arrays.
+     *
+     * @param store The nodes.
+     * @param is3D  False to pack a zero depth.
+     */
+    protected void pack(ParticleStore store, boolean is3D) {
+        NodeParticle[] particles = store.particles;
+        int n = store.getSlotCount();
+        int capacity = store.getCount();
+
+        if (x.length < capacity) {
+            int size = Math.max(capacity, x.length * 2);
+
+            x = new double[size];
+            y = new double[size];
+            z = new double[size];
+            w = new double[size];
+            fx = new double[size];
+            fy = new double[size];
+            fz = new double[size];
+            energy = new double[size];
+            targets = new int[size];
+        }
+
+        if (index.length < n)
+            index = new int[Math.max(n, index.length * 2)];
+
+        count = 0;
+        targetCount = 0;
+        slotCount = n;
+
+        for (int i = 0; i < n; i++) {
+            if (particles[i] != null) {
+                x[count] = store.x[i];
+                y[count] = store.y[i];
+                z[count] = is3D ? store.z[i] : 0;
+                w[count] = store.weight[i];
+                index[i] = count;
+
+                if (!store.frozen[i] && !store.asleep[i]) {
+                    fx[count] = fy[count] = fz[count] = energy[count] = 0;
+                    targets[targetCount++] = count;
+                }
+
+                count++;
+            } else {
+                index[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Compute a range of targets, block by block and tile by tile.
+     *
+     * @param from The first target.
+     * @param to   The target after the last one.
+     */
+    protected void computeTargets(int from, int to) {
+        for (int b = from; b < to; b += BLOCK) {
+            int bEnd = Math.min(to, b + BLOCK);
+
+            for (int s = 0; s < count; s += TILE)
+                computeTile(b, bEnd, s, Math.min(count, s + TILE));
+        }
+    }
+
+    /**
+     * Add the repulsion of a tile of sources to a block of targets.
+     *
+     * @param from  The first target.
+     * @param to    The target after the last one.
+     * @param sFrom The first source.
+     * @param sTo   The source after the last one.
+     */
+    protected void computeTile(int from, int to, int sFrom, int sTo) {
+        for (int t = from; t < to; t++)
+            computeTarget(targets[t], sFrom, sTo);
+    }
+
+    /**
+     * Add the repulsion of a tile of sources to one target.
+     *
+     * @param i     The packed index of the target.
+     * @param sFrom The first source.
+     * @param sTo   The source after the last one.
+     */
+    protected void computeTarget(int i, int sFrom, int sTo) {
+        double[] x = this.x;
+        double[] y = this.y;
+        double[] z = this.z;
+        double[] w = this.w;
+        double k2 = this.k2;
+        double px = x[i];
+        double py = y[i];
+        double pz = z[i];
+        double sx = fx[i];
+        double sy = fy[i];
+        double sz = fz[i];
+        double e = energy[i];
+        int coincident = 0;
+
+        // No branch in the loop : a node at the same place, the target
+        // included, has no effect on the sums and is counted apart.
+        for (int j = sFrom; j < sTo; j++) {
+            double dx = x[j] - px;
+            double dy = y[j] - py;
+            double dz = z[j] - pz;
+            double len2 = dx * dx + dy * dy + dz * dz;
+            double inv = len2 != 0 ? 1 / Math.sqrt(len2) : 0;
+            double factor = k2 * w[j] * inv * inv;
+            double f = factor * inv;
+
+            sx -= dx * f;
+            sy -= dy * f;
+            sz -= dz * f;
+            e += factor;
+            coincident += len2 != 0 ? 0 : 1;
+        }
+
+        if (i >= sFrom && i < sTo)
+            coincident--;
+
+        fx[i] = sx;
+        fy[i] = sy;
+        fz[i] = sz;
+        energy[i] = e + coincident * 0.00001f;
+    }
+
+    protected void allocate(int count) {
+        if (parts.length < count) {
+            int old = parts.length;
+
+            parts = Arrays.copyOf(parts, count);
+
+            for (int i = old; i < count; i++)
+                parts[i] = new Part(this);
+        }
+
+        partCount = count;
+    }
+
+    /**
+     * A range of targets computed by one task.
+     */
+    protected static class Part extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected ExactRepulsion kernel;
+
+        protected int from;
+
+        protected int to;
+
+        protected Part(ExactRepulsion kernel) {
+            this.kernel = kernel;
+        }
+
+        protected void set(int from, int to) {
+            this.from = from;
+            this.to = to;
+            reinitialize();
+        }
+
+        @Override
+        protected void compute() {
+            kernel.computeTargets(from, to);
+        }
+    }
+}
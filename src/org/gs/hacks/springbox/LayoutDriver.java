@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.graphstream.stream.SinkAdapter;
+import org.graphstream.stream.Source;
+import org.graphstream.stream.thread.ThreadProxyPipe;
+
+import java.util.ArrayList;
+
+/**
+ * Runs a spring box in a dedicated thread, with a time budget per frame, and
+ * sleeps once the layout is stable.
+ *
+ * <p>
+ * At each frame, the driver pumps the graph events received from the source,
+ * applies the node moves and freezes asked with
+ * {@link #moveNode(String, double, double, double)} and
+ * {@link #freezeNode(String, boolean)}, then runs layout steps until the frame
+ * budget is used, with {@link SpringBox#compute(long)} so that a step of a
+ * large graph spreads over several frames. It then waits for the next frame.
+ * Once the stabilization limit of the layout is reached, the driver stops
+ * stepping and waits without any timeout, using no CPU at all, until a graph
+ * event, a node move or a node freeze wakes it up.
+ * </p>
+ *
+ * <p>
+ * The events of the source are received through a {@link ThreadProxyPipe},
+ * so the source and the layout can live in different threads. The layout
+ * must only be touched by the driver thread while the driver runs, the moves
+ * and freezes must therefore go through the driver.
+ * </p>
+ */
+public class LayoutDriver implements Runnable {
+    // Attributes
+
+    /**
+     * The driven layout.
+     */
+    protected SpringBox layout;
+
+    /**
+     * The source of the graph events, may be null.
+     */
+    protected Source source;
+
+    /**
+     * The pipe carrying the events of the source to the driver thread, null
+     * without source.
+     */
+    protected ThreadProxyPipe pipe;
+
+    /**
+     * Registered on the source after the pipe, to wake the driver up once an
+     * event is posted in the pipe.
+     */
+    protected WakeSink wakeSink;
+
+    /**
+     * The time given to the layout steps in each frame, in nanoseconds.
+     */
+    protected long frameBudget = 10000000L;
+
+    /**
+     * The time between the start of two frames, in milliseconds.
+     */
+    protected long framePeriod = 20;
+
+    /**
+     * The thread running the layout, null when stopped.
+     */
+    protected Thread thread;
+
+    /**
+     * Guards the commands and the wake up flag.
+     */
+    protected final Object lock = new Object();
+
+    /**
+     * Set by a wake up, cleared by the driver thread once it saw it.
+     */
+    protected boolean awoken = false;
+
+    /**
+     * The moves and freezes to apply before the next frame.
+     */
+    protected ArrayList<Runnable> commands = new ArrayList<Runnable>();
+
+    /**
+     * Swapped with {@link #commands} to run them outside of the lock.
+     */
+    protected ArrayList<Runnable> running = new ArrayList<Runnable>();
+
+    protected volatile boolean alive = false;
+
+    protected volatile boolean idle = false;
+
+    protected volatile long steps = 0;
+
+    // Constructors
+
+    /**
+     * New driver, the layout only receiving the moves and freezes given to the
+     * driver.
+     *
+     * @param layout The layout to drive.
+     */
+    public LayoutDriver(SpringBox layout) {
+        this(layout, null);
+    }
+
+    /**
+     * New driver, listening at a graph source.
+     *
+     * @param layout The layout to drive.
+     * @param source The source of the graph events, may be null.
+     */
+    public LayoutDriver(SpringBox layout, Source source) {
+        this.layout = layout;
+        this.source = source;
+    }
+
+    // Access
+
+    /**
+     * Is the driver waiting for a change, the layout being stable ?.
+     *
+     * @return True if idle.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    public boolean isRunning() {
+        return alive;
+    }
+
+    /**
+     * The number of layout steps run since the driver started.
+     *
+     * @return The step count.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    public long getFrameBudget() {
+        return frameBudget;
+    }
+
+    public long getFramePeriod() {
+        return framePeriod;
+    }
+
+    // Commands
+
+    /**
+     * Set the time given to the layout steps in each frame. Each frame makes
+     * the current step progress, even with a null budget.
+     *
+     * @param nanos The budget in nanoseconds.
+     */
+    public void setFrameBudget(long nanos) {
+        frameBudget = nanos < 0 ? 0 : nanos;
+    }
+
+    /**
+     * Set the time between the start of two frames.
+     *
+     * @param millis The period in milliseconds.
+     */
+    public void setFramePeriod(long millis) {
+        framePeriod = millis < 0 ? 0 : millis;
+    }
+
+    /**
+     * Start the driver thread.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            if (source != null) {
+                pipe = new ThreadProxyPipe();
+                pipe.init(source);
+                pipe.addSink(layout);
+                wakeSink = new WakeSink();
+                source.addSink(wakeSink);
+            }
+
+            alive = true;
+            thread = new Thread(this, "layout-driver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the driver thread and wait for its end. The layout can be used by
+     * the calling thread once this returns.
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            alive = false;
+            wakeUp();
+
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (pipe != null) {
+                source.removeSink(wakeSink);
+                pipe.unregisterFromSource();
+                pipe.removeSink(layout);
+                pipe = null;
+                wakeSink = null;
+            }
+
+            thread = null;
+        }
+    }
+
+    /**
+     * Wake the driver up, it runs at least one more frame.
+     */
+    public void wakeUp() {
+        synchronized (lock) {
+            awoken = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Move a node of the layout, in the driver thread, and wake the driver up.
+     *
+     * @param id The node identifier.
+     * @param dx The abscissa displacement.
+     * @param dy The ordinate displacement.
+     * @param dz The depth displacement.
+     */
+    public void moveNode(final String id, final double dx, final double dy, final double dz) {
+        post(new Runnable() {
+            public void run() {
+                layout.moveNode(id, dx, dy, dz);
+            }
+        });
+    }
+
+    /**
+     * Freeze or release a node of the layout, in the driver thread, and wake
+     * the driver up.
+     *
+     * @param id The node identifier.
+     * @param on True to freeze the node.
+     */
+    public void freezeNode(final String id, final boolean on) {
+        post(new Runnable() {
+            public void run() {
+                layout.freezeNode(id, on);
+            }
+        });
+    }
+
+    protected void post(Runnable command) {
+        synchronized (lock) {
+            commands.add(command);
+            awoken = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void run() {
+        long frameStart = System.nanoTime();
+
+        while (alive) {
+            boolean changed = applyChanges();
+
+            if (!changed && isStable()) {
+                idle = true;
+                waitFor(0);
+                idle = false;
+                frameStart = System.nanoTime();
+                continue;
+            }
+
+            long end = System.nanoTime() + frameBudget;
+
+            do {
+                if (layout.compute(end - System.nanoTime()))
+                    steps++;
+            } while (System.nanoTime() < end && !isStable());
+
+            long next = frameStart + framePeriod * 1000000L;
+            long now = System.nanoTime();
+
+            if (next > now)
+                waitFor(next - now);
+
+            frameStart = Math.max(next, System.nanoTime());
+        }
+    }
+
+    /**
+     * Pump the graph events and run the pending commands.
+     *
+     * @return True if the driver was woken up since the last call.
+     */
+    protected boolean applyChanges() {
+        boolean changed;
+
+        synchronized (lock) {
+            ArrayList<Runnable> swap = running;
+            running = commands;
+            commands = swap;
+            changed = awoken;
+            awoken = false;
+        }
+
+        if (pipe != null)
+            pipe.pump();
+
+        for (int i = 0; i < running.size(); i++)
+            running.get(i).run();
+
+        running.clear();
+
+        return changed;
+    }
+
+    protected boolean isStable() {
+        return !layout.isStepInProgress() && layout.getStabilization() >= layout.getStabilizationLimit();
+    }
+
+    /**
+     * Wait until woken up or stopped.
+     *
+     * @param nanos The maximum time to wait, 0 to wait without timeout.
+     */
+    protected void waitFor(long nanos) {
+        long end = System.nanoTime() + nanos;
+
+        synchronized (lock) {
+            try {
+                while (!awoken && alive) {
+                    if (nanos == 0) {
+                        lock.wait();
+                    } else {
+                        long left = end - System.nanoTime();
+
+                        if (left <= 0)
+                            break;
+
+                        lock.wait(left / 1000000L, (int) (left % 1000000L));
+                    }
+                }
+            } catch (InterruptedException e) {
+                alive = false;
+            }
+        }
+    }
+
+    /**
+     * Wakes the driver up at each event of the source.
+     */
+    protected class WakeSink extends SinkAdapter {
+        public void graphAttributeAdded(String sourceId, long timeId, String attribute, Object value) {
+            wakeUp();
+        }
+
+        public void graphAttributeChanged(String sourceId, long timeId, String attribute, Object oldValue, Object newValue) {
+            wakeUp();
+        }
+
+        public void graphAttributeRemoved(String sourceId, long timeId, String attribute) {
+            wakeUp();
+        }
+
+        public void nodeAttributeAdded(String sourceId, long timeId, String nodeId, String attribute, Object value) {
+            wakeUp();
+        }
+
+        public void nodeAttributeChanged(String sourceId, long timeId, String nodeId, String attribute, Object oldValue, Object newValue) {
+            wakeUp();
+        }
+
+        public void nodeAttributeRemoved(String sourceId, long timeId, String nodeId, String attribute) {
+            wakeUp();
+        }
+
+        public void edgeAttributeAdded(String sourceId, long timeId, String edgeId, String attribute, Object value) {
+            wakeUp();
+        }
+
+        public void edgeAttributeChanged(String sourceId, long timeId, String edgeId, String attribute, Object oldValue, Object newValue) {
+            wakeUp();
+        }
+
+        public void edgeAttributeRemoved(String sourceId, long timeId, String edgeId, String attribute) {
+            wakeUp();
+        }
+
+        public void nodeAdded(String sourceId, long timeId, String nodeId) {
+            wakeUp();
+        }
+
+        public void nodeRemoved(String sourceId, long timeId, String nodeId) {
+            wakeUp();
+        }
+
+        public void edgeAdded(String sourceId, long timeId, String edgeId, String fromNodeId, String toNodeId, boolean directed) {
+            wakeUp();
+        }
+
+        public void edgeRemoved(String sourceId, long timeId, String edgeId) {
+            wakeUp();
+        }
+
+        public void graphCleared(String sourceId, long timeId) {
+            wakeUp();
+        }
+
+        public void stepBegins(String sourceId, long timeId, double step) {
+            wakeUp();
+        }
+    }
+}
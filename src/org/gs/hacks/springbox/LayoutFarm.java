@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs many spring boxes on a few shared threads, each layout getting in turn
+ * a slice of time, until it is stable.
+ *
+ * <p>
+ * A layout given to {@link #submit(SpringBox)} becomes a {@link Job}. A turn
+ * of a job runs the layout with {@link SpringBox#compute(long)} for at most
+ * the slice budget, a step spreading over several turns when the graph is
+ * large, then puts the job back at the end of the queue of the executor. So
+ * the jobs are served in turn whatever their size, and the number of threads
+ * does not depend on the number of layouts. Once the stabilization limit of
+ * a layout is reached its job is retired : it leaves the queue and the
+ * listeners of the farm are told.
+ * </p>
+ *
+ * <p>
+ * A layout is only touched by one thread at a time, the one running its
+ * turn. Once submitted, the graph of a layout must therefore be changed
+ * through {@link Job#post(Runnable)}, that runs the change before the next
+ * turn and brings the job back if it was retired.
+ * </p>
+ *
+ * <p>
+ * The farm may be given its executor, which must serve the tasks in order to
+ * keep the turns fair : a thread pool with a FIFO queue, a fork/join pool in
+ * async mode, or an executor of virtual threads on the JVMs that have them.
+ * The layouts should then not use their own threads, see
+ * {@link SpringBox#setParallelism(int)}.
+ * </p>
+ */
+public class LayoutFarm {
+    // Attributes
+
+    /**
+     * The executor running the turns.
+     */
+    protected Executor executor;
+
+    /**
+     * The executor created by the farm, shut down with it, null if the
+     * executor was given.
+     */
+    protected ExecutorService ownExecutor;
+
+    /**
+     * The time given to a job at each turn, in nanoseconds.
+     */
+    protected volatile long sliceBudget = 2000000L;
+
+    protected volatile boolean alive = true;
+
+    protected CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * The time the farm was created, to compute the throughput.
+     */
+    protected long startTime = System.nanoTime();
+
+    /**
+     * The number of jobs that are not retired, guarded by itself to wait for
+     * the farm to be idle.
+     */
+    protected final AtomicInteger active = new AtomicInteger();
+
+    protected LongAdder submitted = new LongAdder();
+
+    protected LongAdder retired = new LongAdder();
+
+    protected LongAdder steps = new LongAdder();
+
+    protected LongAdder turns = new LongAdder();
+
+    protected LongAdder busyNanos = new LongAdder();
+
+    // Constructors
+
+    /**
+     * New farm with its own threads, one per processor.
+     */
+    public LayoutFarm() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * New farm with its own threads.
+     *
+     * @param threads The number of threads.
+     */
+    public LayoutFarm(int threads) {
+        ownExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            protected int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "layout-farm-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor = ownExecutor;
+    }
+
+    /**
+     * New farm running the turns with an executor.
+     *
+     * @param executor The executor, serving the tasks in order.
+     */
+    public LayoutFarm(Executor executor) {
+        this.executor = executor;
+    }
+
+    // Access
+
+    public long getSliceBudget() {
+        return sliceBudget;
+    }
+
+    /**
+     * The number of jobs waiting for or running a turn.
+     *
+     * @return The active jobs.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * The number of times a job was retired, a job brought back and retired
+     * again counting twice.
+     *
+     * @return The retirements.
+     */
+    public long getRetiredCount() {
+        return retired.sum();
+    }
+
+    /**
+     * The number of layout steps finished by all the jobs.
+     *
+     * @return The steps.
+     */
+    public long getStepCount() {
+        return steps.sum();
+    }
+
+    public long getTurnCount() {
+        return turns.sum();
+    }
+
+    /**
+     * The time spent by the threads running the turns.
+     *
+     * @return The busy time in nanoseconds.
+     */
+    public long getBusyNanos() {
+        return busyNanos.sum();
+    }
+
+    /**
+     * The layout steps finished per second since the farm was created.
+     *
+     * @return The throughput.
+     */
+    public double getStepsPerSecond() {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? steps.sum() * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * The mean duration of a step, all the jobs together.
+     *
+     * @return The busy time per step in nanoseconds, 0 if no step was run.
+     */
+    public long getNanosPerStep() {
+        long n = steps.sum();
+        return n > 0 ? busyNanos.sum() / n : 0;
+    }
+
+    // Commands
+
+    /**
+     * Set the time given to a job at each turn. A turn runs at least a part of
+     * a step, see {@link SpringBox#compute(long)}.
+     *
+     * @param nanos The budget in nanoseconds.
+     */
+    public void setSliceBudget(long nanos) {
+        sliceBudget = nanos < 0 ? 0 : nanos;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lay a graph out. The layout must hold its graph, or be given it through
+     * {@link Job#post(Runnable)}.
+     *
+     * @param layout The layout, not used by another thread from now on.
+     * @return The job running the layout.
+     */
+    public Job submit(SpringBox layout) {
+        Job job = new Job(layout);
+
+        submitted.increment();
+        job.schedule();
+
+        return job;
+    }
+
+    /**
+     * Wait until all the jobs are retired.
+     *
+     * @param timeout The maximum time to wait, in milliseconds, 0 to wait
+     *                without timeout.
+     * @return True if all the jobs are retired.
+     * @throws InterruptedException If the thread is interrupted while
+     *                              waiting.
+     */
+    public boolean awaitIdle(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+
+        synchronized (active) {
+            while (active.get() > 0) {
+                if (timeout == 0) {
+                    active.wait();
+                } else {
+                    long left = end - System.currentTimeMillis();
+
+                    if (left <= 0)
+                        return false;
+
+                    active.wait(left);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop running the turns. The jobs are left as they are. The threads of
+     * the farm are stopped, a given executor is not.
+     */
+    public void shutdown() {
+        alive = false;
+
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+
+            try {
+                ownExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected void jobStarted() {
+        active.incrementAndGet();
+    }
+
+    protected void jobRetired(Job job) {
+        retired.increment();
+
+        for (Listener listener : listeners)
+            listener.layoutRetired(job);
+
+        if (active.decrementAndGet() == 0) {
+            synchronized (active) {
+                active.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Told when a layout of the farm is retired.
+     */
+    public interface Listener {
+        /**
+         * A job was retired, its layout being stable, cancelled or failed. It
+         * is called by the thread of the last turn of the job.
+         *
+         * @param job The job.
+         */
+        public void layoutRetired(Job job);
+    }
+
+    /**
+     * A layout of the farm, run by turns.
+     */
+    public class Job implements Runnable {
+        protected SpringBox layout;
+
+        /**
+         * The changes to run before the next turn, guarded by the job.
+         */
+        protected ArrayList<Runnable> commands = new ArrayList<Runnable>();
+
+        protected ArrayList<Runnable> running = new ArrayList<Runnable>();
+
+        /**
+         * True while the job waits for or runs a turn, guarded by the job.
+         */
+        protected boolean scheduled = false;
+
+        protected volatile boolean cancelled = false;
+
+        /**
+         * The exception or error that stopped the layout, null if none.
+         */
+        protected volatile Throwable failure;
+
+        protected volatile long steps = 0;
+
+        protected volatile long turns = 0;
+
+        protected Job(SpringBox layout) {
+            this.layout = layout;
+        }
+
+        /**
+         * The layout of the job. It must not be used while the job is active.
+         *
+         * @return The layout.
+         */
+        public SpringBox getLayout() {
+            return layout;
+        }
+
+        public synchronized boolean isRetired() {
+            return !scheduled;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * The number of steps of the layout run by the farm.
+         *
+         * @return The steps.
+         */
+        public long getStepCount() {
+            return steps;
+        }
+
+        public long getTurnCount() {
+            return turns;
+        }
+
+        /**
+         * Change the layout before its next turn, in the thread of the turn.
+         * A retired job is brought back.
+         *
+         * @param command The change.
+         */
+        public void post(Runnable command) {
+            synchronized (this) {
+                commands.add(command);
+            }
+
+            schedule();
+        }
+
+        /**
+         * Retire the job at its next turn, whatever its stabilization.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public void run() {
+            long t0 = System.nanoTime();
+            long end = t0 + sliceBudget;
+            int done = 0;
+
+            try {
+                synchronized (this) {
+                    ArrayList<Runnable> swap = running;
+                    running = commands;
+                    commands = swap;
+                }
+
+                for (int i = 0; i < running.size(); i++)
+                    running.get(i).run();
+
+                running.clear();
+
+                if (!cancelled && alive) {
+                    do {
+                        if (layout.compute(end - System.nanoTime()))
+                            done++;
+                    } while (System.nanoTime() < end && !isStable());
+                }
+            } catch (Throwable e) {
+                // An error too must retire the job, else the farm never
+                // becomes idle.
+                failure = e;
+                cancelled = true;
+                running.clear();
+                System.err.printf("layout of the farm failed: %s%n", e);
+            } finally {
+                steps += done;
+                turns++;
+                LayoutFarm.this.steps.add(done);
+                LayoutFarm.this.turns.increment();
+                busyNanos.add(System.nanoTime() - t0);
+
+                if (alive)
+                    endTurn();
+            }
+        }
+
+        /**
+         * Retire the job if it is stable, cancelled or failed, else queue its
+         * next turn.
+         */
+        protected void endTurn() {
+            boolean retire;
+
+            synchronized (this) {
+                retire = cancelled || (isStable() && commands.isEmpty());
+                scheduled = !retire;
+            }
+
+            if (retire)
+                jobRetired(this);
+            else
+                execute();
+        }
+
+        protected boolean isStable() {
+            return !layout.isStepInProgress() && layout.getStabilization() >= layout.getStabilizationLimit();
+        }
+
+        /**
+         * Queue a turn if the job is retired.
+         */
+        protected void schedule() {
+            synchronized (this) {
+                if (scheduled || !alive)
+                    return;
+
+                scheduled = true;
+            }
+
+            jobStarted();
+            execute();
+        }
+
+        protected void execute() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+
+                jobRetired(this);
+            }
+        }
+    }
+}
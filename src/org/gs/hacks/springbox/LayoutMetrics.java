@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The per-phase timings and counters of the steps of a {@link SpringBox},
+ * published as a JMX MBean.
+ *
+ * <p>
+ * A step is split in five phases : the tree update (indexing of the n-tree
+ * cells and re-division of the tree once the nodes moved), the repulsion, the
+ * attraction, the integration (application of the displacements and active
+ * set) and the dispatch of the move events. The repulsion and attraction are
+ * computed together, node per node and possibly by several threads, their
+ * times are the wall time of the displacement phase shared in proportion of
+ * the time each worker spent in each force.
+ * </p>
+ *
+ * <p>
+ * The metrics are written by the thread running the layout and read by the
+ * JMX threads, the accesses are synchronized on the metrics. Only one record
+ * is made per step, so this costs nothing compared to the step itself.
+ * </p>
+ */
+public class LayoutMetrics implements LayoutMetricsMBean {
+    // Constants
+
+    /**
+     * The domain of the object names of the metrics.
+     */
+    public static final String DOMAIN = "org.gs.hacks.springbox";
+
+    /**
+     * Number of buckets of the histograms, one per power of two.
+     */
+    public static final int BUCKETS = 64;
+
+    /**
+     * Used to name the metrics that are not given a name.
+     */
+    protected static final AtomicInteger instances = new AtomicInteger();
+
+    // Attributes
+
+    /**
+     * The name of the MBean, null if not registered.
+     */
+    protected ObjectName objectName;
+
+    protected long steps;
+
+    protected long stepNanos;
+
+    protected long treeNanos;
+
+    protected long repulsionNanos;
+
+    protected long attractionNanos;
+
+    protected long integrationNanos;
+
+    protected long dispatchNanos;
+
+    protected long directInteractions;
+
+    protected long approximations;
+
+    protected long eventsEmitted;
+
+    protected long totalEventsEmitted;
+
+    protected int treeDepth;
+
+    protected int cellCount;
+
+    protected int nodeCount;
+
+    protected long maxStepNanos;
+
+    protected long[] stepHistogram = new long[BUCKETS];
+
+    protected long[] treeHistogram = new long[BUCKETS];
+
+    protected long[] repulsionHistogram = new long[BUCKETS];
+
+    protected long[] attractionHistogram = new long[BUCKETS];
+
+    protected long[] integrationHistogram = new long[BUCKETS];
+
+    protected long[] dispatchHistogram = new long[BUCKETS];
+
+    // Access
+
+    /**
+     * The name under which these metrics are registered.
+     *
+     * @return The object name, null if the metrics are not registered.
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public synchronized long getSteps() {
+        return steps;
+    }
+
+    public synchronized long getLastStepNanos() {
+        return stepNanos;
+    }
+
+    public synchronized long getLastTreeNanos() {
+        return treeNanos;
+    }
+
+    public synchronized long getLastRepulsionNanos() {
+        return repulsionNanos;
+    }
+
+    public synchronized long getLastAttractionNanos() {
+        return attractionNanos;
+    }
+
+    public synchronized long getLastIntegrationNanos() {
+        return integrationNanos;
+    }
+
+    public synchronized long getLastDispatchNanos() {
+        return dispatchNanos;
+    }
+
+    public synchronized long getLastDirectInteractions() {
+        return directInteractions;
+    }
+
+    public synchronized long getLastApproximations() {
+        return approximations;
+    }
+
+    public synchronized long getLastEventsEmitted() {
+        return eventsEmitted;
+    }
+
+    public synchronized int getTreeDepth() {
+        return treeDepth;
+    }
+
+    public synchronized int getCellCount() {
+        return cellCount;
+    }
+
+    public synchronized int getNodeCount() {
+        return nodeCount;
+    }
+
+    public synchronized long getTotalEventsEmitted() {
+        return totalEventsEmitted;
+    }
+
+    public synchronized long getMaxStepNanos() {
+        return maxStepNanos;
+    }
+
+    public synchronized long getStepNanosP50() {
+        return percentile(stepHistogram, 0.5);
+    }
+
+    public synchronized long getStepNanosP99() {
+        return percentile(stepHistogram, 0.99);
+    }
+
+    public synchronized long[] getStepHistogram() {
+        return stepHistogram.clone();
+    }
+
+    public synchronized long[] getTreeHistogram() {
+        return treeHistogram.clone();
+    }
+
+    public synchronized long[] getRepulsionHistogram() {
+        return repulsionHistogram.clone();
+    }
+
+    public synchronized long[] getAttractionHistogram() {
+        return attractionHistogram.clone();
+    }
+
+    public synchronized long[] getIntegrationHistogram() {
+        return integrationHistogram.clone();
+    }
+
+    public synchronized long[] getDispatchHistogram() {
+        return dispatchHistogram.clone();
+    }
+
+    /**
+     * The histogram bucket of a duration.
+     *
+     * @param nanos The duration.
+     * @return The bucket, the base two logarithm of the duration.
+     */
+    public static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * An upper bound of the given percentile of a histogram.
+     *
+     * @param histogram The histogram.
+     * @param fraction  The percentile, in [0..1].
+     * @return The upper bound of the bucket holding the percentile, 0 if the
+     * histogram is empty.
+     */
+    protected static long percentile(long[] histogram, double fraction) {
+        long total = 0;
+
+        for (long count : histogram)
+            total += count;
+
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+
+            if (seen >= rank && seen > 0)
+                return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    // Commands
+
+    /**
+     * Record a step.
+     *
+     * @param step        The step duration.
+     * @param tree        The tree update duration.
+     * @param repulsion   The repulsion duration.
+     * @param attraction  The attraction duration.
+     * @param integration The integration duration.
+     * @param dispatch    The duration of the move event dispatch.
+     * @param direct      The number of node to node repulsions.
+     * @param approximate The number of cells approximated by their center.
+     * @param events      The number of move events sent.
+     * @param depth       The depth of the n-tree.
+     * @param cells       The number of cells of the n-tree.
+     * @param nodes       The number of nodes.
+     */
+    public synchronized void record(long step, long tree, long repulsion,
+                                    long attraction, long integration, long dispatch, long direct,
+                                    long approximate, long events, int depth, int cells, int nodes) {
+        steps++;
+        stepNanos = step;
+        treeNanos = tree;
+        repulsionNanos = repulsion;
+        attractionNanos = attraction;
+        integrationNanos = integration;
+        dispatchNanos = dispatch;
+        directInteractions = direct;
+        approximations = approximate;
+        eventsEmitted = events;
+        totalEventsEmitted += events;
+        treeDepth = depth;
+        cellCount = cells;
+        nodeCount = nodes;
+
+        if (step > maxStepNanos)
+            maxStepNanos = step;
+
+        stepHistogram[bucket(step)]++;
+        treeHistogram[bucket(tree)]++;
+        repulsionHistogram[bucket(repulsion)]++;
+        attractionHistogram[bucket(attraction)]++;
+        integrationHistogram[bucket(integration)]++;
+        dispatchHistogram[bucket(dispatch)]++;
+    }
+
+    public synchronized void reset() {
+        steps = 0;
+        totalEventsEmitted = 0;
+        maxStepNanos = 0;
+        Arrays.fill(stepHistogram, 0);
+        Arrays.fill(treeHistogram, 0);
+        Arrays.fill(repulsionHistogram, 0);
+        Arrays.fill(attractionHistogram, 0);
+        Arrays.fill(integrationHistogram, 0);
+        Arrays.fill(dispatchHistogram, 0);
+    }
+
+    /**
+     * Register the metrics on the platform MBean server, under the name
+     * "org.gs.hacks.springbox:type=LayoutMetrics,name=...". If the name is
+     * null or already used, a name "springbox-N" is generated.
+     *
+     * @param name The name of the layout, may be null.
+     * @throws JMException If the metrics cannot be registered.
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        unregister();
+
+        if (name != null) {
+            try {
+                objectName = objectName(name);
+                server.registerMBean(this, objectName);
+                return;
+            } catch (InstanceAlreadyExistsException e) {
+                objectName = null;
+            }
+        }
+
+        while (objectName == null) {
+            try {
+                objectName = objectName("springbox-" + instances.incrementAndGet());
+                server.registerMBean(this, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                objectName = null;
+            }
+        }
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if registered.
+     */
+    public void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.err.printf("cannot unregister %s: %s%n", objectName, e.getMessage());
+            }
+
+            objectName = null;
+        }
+    }
+
+    protected ObjectName objectName(String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=LayoutMetrics,name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+/**
+ * The JMX view of the {@link LayoutMetrics} of a layout.
+ *
+ * <p>
+ * The "Last" values are those of the last step. The histograms count the steps
+ * by duration : bucket i holds the steps that took from 2^i to 2^(i+1) - 1
+ * nanoseconds, bucket 0 also holding the steps that took no time.
+ * </p>
+ */
+public interface LayoutMetricsMBean {
+    long getSteps();
+
+    long getLastStepNanos();
+
+    long getLastTreeNanos();
+
+    long getLastRepulsionNanos();
+
+    long getLastAttractionNanos();
+
+    long getLastIntegrationNanos();
+
+    long getLastDispatchNanos();
+
+    long getLastDirectInteractions();
+
+    long getLastApproximations();
+
+    long getLastEventsEmitted();
+
+    int getTreeDepth();
+
+    int getCellCount();
+
+    int getNodeCount();
+
+    long getTotalEventsEmitted();
+
+    long getMaxStepNanos();
+
+    long getStepNanosP50();
+
+    long getStepNanosP99();
+
+    long[] getStepHistogram();
+
+    long[] getTreeHistogram();
+
+    long[] getRepulsionHistogram();
+
+    long[] getAttractionHistogram();
+
+    long[] getIntegrationHistogram();
+
+    long[] getDispatchHistogram();
+
+    /**
+     * Forget the histograms and the totals.
+     */
+    void reset();
+}
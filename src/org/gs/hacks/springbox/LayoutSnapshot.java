@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * The saved state of a {@link SpringBox} : the position, weight and frozen
+ * flag of each node, the energy history and the state of the convergence
+ * detector. It is used to warm start a layout, see
+ * {@link SpringBox#restoreSnapshot(LayoutSnapshot)}.
+ *
+ * <p>
+ * The file is written and read through a memory mapping. It is made of a
+ * header of {@link #HEADER_SIZE} bytes, the energy history, the node columns
+ * (abscissas, ordinates, depths and weights as doubles, then the frozen flags
+ * as bytes) and the node identifiers, each one being an int length followed
+ * by its UTF-8 bytes. All the values are big-endian.
+ * </p>
+ */
+public class LayoutSnapshot {
+    // Constants
+
+    /**
+     * The first int of a snapshot, "SBSN".
+     */
+    public static final int MAGIC = 0x5342534e;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 96;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Attributes
+
+    /**
+     * True if the saved layout was in 3D.
+     */
+    protected boolean is3D;
+
+    /**
+     * The number of nodes.
+     */
+    protected int count;
+
+    public String[] ids;
+
+    public double[] x;
+
+    public double[] y;
+
+    public double[] z;
+
+    public double[] weight;
+
+    public boolean[] frozen;
+
+    /**
+     * The energy history, see {@link Energies}.
+     */
+    protected double[] energies;
+
+    protected int energiesPos;
+
+    protected double lastEnergy;
+
+    protected double energySum;
+
+    /**
+     * The state of the {@link ConvergenceDetector}.
+     */
+    protected double energyDelta;
+
+    protected double moveDelta;
+
+    protected double detectorEnergy;
+
+    protected double detectorMove;
+
+    protected int detectorSteps;
+
+    /**
+     * The index of each node not yet restored, built at the first restore.
+     */
+    protected HashMap<String, Integer> pending;
+
+    // Constructors
+
+    protected LayoutSnapshot() {
+    }
+
+    // Access
+
+    public int getNodeCount() {
+        return count;
+    }
+
+    public boolean is3D() {
+        return is3D;
+    }
+
+    /**
+     * The number of nodes of the snapshot that were not yet placed in a
+     * layout.
+     *
+     * @return The number of pending nodes.
+     */
+    public int getPendingCount() {
+        return pending != null ? pending.size() : count;
+    }
+
+    // Commands
+
+    /**
+     * Take a node out of the pending nodes.
+     *
+     * @param id The node identifier.
+     * @return The index of the node in the snapshot, -1 if the node is not in
+     * the snapshot or was already restored.
+     */
+    public int take(String id) {
+        if (pending == null) {
+            pending = new HashMap<String, Integer>((int) (count / 0.75f) + 1);
+
+            for (int i = 0; i < count; i++)
+                pending.put(ids[i], i);
+        }
+
+        Integer index = pending.remove(id);
+
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Put back the saved energy history and convergence state.
+     *
+     * @param energies    The energies of the layout.
+     * @param convergence The convergence detector of the layout.
+     */
+    public void restoreEnergies(Energies energies, ConvergenceDetector convergence) {
+        if (this.energies.length == energies.energies.length) {
+            System.arraycopy(this.energies, 0, energies.energies, 0, this.energies.length);
+            energies.energiesPos = energiesPos;
+            energies.energySum = energySum;
+        }
+
+        energies.lastEnergy = lastEnergy;
+        convergence.energyDelta = energyDelta;
+        convergence.moveDelta = moveDelta;
+        convergence.lastEnergy = detectorEnergy;
+        convergence.lastMove = detectorMove;
+        convergence.steps = detectorSteps;
+    }
+
+    /**
+     * Save the state of a layout.
+     *
+     * @param box      The layout.
+     * @param fileName The snapshot file, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void save(SpringBox box, String fileName) throws IOException {
+        ParticleStore store = box.store;
+        int n = store.getSlotCount();
+        int count = store.getCount();
+        double[] energies = box.energies.energies;
+        byte[][] names = new byte[count][];
+        int[] slots = new int[count];
+        long idBytes = 0;
+        int c = 0;
+
+        for (int i = 0; i < n; i++) {
+            if (store.particles[i] != null) {
+                slots[c] = i;
+                names[c] = ((String) store.particles[i].getId()).getBytes(UTF8);
+                idBytes += 4 + names[c].length;
+                c++;
+            }
+        }
+
+        long size = HEADER_SIZE + energies.length * 8L + count * 33L + idBytes;
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+
+        try {
+            FileChannel channel = file.getChannel();
+
+            file.setLength(0);
+
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            ConvergenceDetector convergence = box.convergence;
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(box.is3D ? 1 : 0);
+            out.putInt(count);
+            out.putInt(energies.length);
+            out.putInt(box.energies.energiesPos);
+            out.putInt(convergence.steps);
+            out.putInt(0);
+            out.putDouble(box.energies.lastEnergy);
+            out.putDouble(box.energies.energySum);
+            out.putDouble(convergence.energyDelta);
+            out.putDouble(convergence.moveDelta);
+            out.putDouble(convergence.lastEnergy);
+            out.putDouble(convergence.lastMove);
+            out.position(HEADER_SIZE);
+
+            out.asDoubleBuffer().put(energies);
+            out.position(out.position() + energies.length * 8);
+
+            putColumn(out, store.x, slots);
+            putColumn(out, store.y, slots);
+            putColumn(out, store.z, slots);
+            putColumn(out, store.weight, slots);
+
+            for (int i = 0; i < count; i++)
+                out.put(store.frozen[slots[i]] ? (byte) 1 : (byte) 0);
+
+            for (int i = 0; i < count; i++) {
+                out.putInt(names[i].length);
+                out.put(names[i]);
+            }
+
+            out.force();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param fileName The snapshot file.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public static LayoutSnapshot load(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+
+            if (size < HEADER_SIZE)
+                throw new IOException("not a layout snapshot: " + fileName);
+
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            LayoutSnapshot snapshot = new LayoutSnapshot();
+
+            if (in.getInt() != MAGIC)
+                throw new IOException("not a layout snapshot: " + fileName);
+
+            int version = in.getInt();
+
+            if (version != VERSION)
+                throw new IOException(String.format("unsupported layout snapshot version %d", version));
+
+            snapshot.is3D = in.getInt() != 0;
+            snapshot.count = in.getInt();
+            snapshot.energies = new double[in.getInt()];
+            snapshot.energiesPos = in.getInt();
+            snapshot.detectorSteps = in.getInt();
+            in.getInt();
+            snapshot.lastEnergy = in.getDouble();
+            snapshot.energySum = in.getDouble();
+            snapshot.energyDelta = in.getDouble();
+            snapshot.moveDelta = in.getDouble();
+            snapshot.detectorEnergy = in.getDouble();
+            snapshot.detectorMove = in.getDouble();
+            in.position(HEADER_SIZE);
+
+            int count = snapshot.count;
+
+            if (size < HEADER_SIZE + snapshot.energies.length * 8L + count * 33L)
+                throw new IOException("truncated layout snapshot: " + fileName);
+
+            snapshot.energies = getColumn(in, snapshot.energies.length);
+            snapshot.x = getColumn(in, count);
+            snapshot.y = getColumn(in, count);
+            snapshot.z = getColumn(in, count);
+            snapshot.weight = getColumn(in, count);
+            snapshot.frozen = new boolean[count];
+            snapshot.ids = new String[count];
+
+            for (int i = 0; i < count; i++)
+                snapshot.frozen[i] = in.get() != 0;
+
+            byte[] names = new byte[in.remaining()];
+            int offset = 0;
+
+            in.get(names);
+
+            for (int i = 0; i < count; i++) {
+                if (offset + 4 > names.length)
+                    throw new IOException("truncated layout snapshot: " + fileName);
+
+                int length = ((names[offset] & 0xff) << 24) | ((names[offset + 1] & 0xff) << 16)
+                        | ((names[offset + 2] & 0xff) << 8) | (names[offset + 3] & 0xff);
+
+                offset += 4;
+
+                if (length < 0 || offset + length > names.length)
+                    throw new IOException("truncated layout snapshot: " + fileName);
+
+                snapshot.ids[i] = new String(names, offset, length, UTF8);
+                offset += length;
+            }
+
+            return snapshot;
+        } finally {
+            file.close();
+        }
+    }
+
+    protected static void putColumn(ByteBuffer out, double[] values, int[] slots) {
+        for (int i = 0; i < slots.length; i++)
+            out.putDouble(values[slots[i]]);
+    }
+
+    protected static double[] getColumn(ByteBuffer in, int count) {
+        double[] values = new double[count];
+
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + count * 8);
+
+        return values;
+    }
+}
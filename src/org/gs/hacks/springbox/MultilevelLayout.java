@@ -0,0 +1,734 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A multilevel driver of the spring box, for very large graphs.
+ *
+ * <p>
+ * Starting from random positions, the flat layout needs thousands of steps to
+ * untangle a large graph, since each step only moves the nodes by a fraction of
+ * the edge length. The multilevel driver builds a hierarchy of coarser graphs
+ * from the graph of a spring box, by collapsing nodes matched along their
+ * heaviest edges, or, when matching does not shrink the graph enough (in stars
+ * for example), by collapsing each node in a neighbouring node of a maximal
+ * independent set. The coarsest graph, of a few dozens of nodes, is laid out
+ * from scratch. Its positions are then interpolated down, each node of a finer
+ * level starting at the position of the coarse node it was collapsed in, and
+ * each level is refined with a few steps of its own spring box. The last level
+ * is the spring box itself.
+ * </p>
+ *
+ * <p>
+ * A node collapsed from n nodes stands for an area proportional to n, so the
+ * coarse positions are scaled up by the square root (cube root in 3D) of the
+ * node count ratio when they are interpolated.
+ * </p>
+ *
+ * <p>
+ * The driver only reads the structure of the box and writes the positions of
+ * its nodes, the frozen nodes being left where they are. The intermediate
+ * levels use their own spring boxes, with the quality, force, multipole,
+ * spatial index and deterministic settings of the laid out box.
+ * </p>
+ */
+public class MultilevelLayout {
+    /**
+     * How the nodes are collapsed to build a coarser level.
+     */
+    public static enum Coarsening {
+        /**
+         * Collapse pairs of nodes matched along their heaviest edges. When a
+         * matching does not shrink the graph enough, the level falls back to
+         * the independent set coarsening.
+         */
+        MATCHING,
+        /**
+         * Collapse each node in a neighbouring node of a maximal independent
+         * set.
+         */
+        INDEPENDENT_SET
+    }
+
+    // Attributes
+
+    /**
+     * The laid out box.
+     */
+    protected SpringBox box;
+
+    /**
+     * The random source used to order the coarsening and to lay out the
+     * levels.
+     */
+    protected Random random;
+
+    /**
+     * The coarsening method.
+     */
+    protected Coarsening coarsening = Coarsening.MATCHING;
+
+    /**
+     * The coarsening stops when a level has at most this number of nodes.
+     */
+    protected int coarsestSize = 50;
+
+    /**
+     * The maximum number of levels, including the laid out box.
+     */
+    protected int maxLevels = 40;
+
+    /**
+     * A level is kept only if it has less than this fraction of the nodes of
+     * the finer level, otherwise the coarsening stops.
+     */
+    protected double minShrink = 0.9;
+
+    /**
+     * Below this fraction of the nodes of the finer level, a matching is
+     * considered good enough, otherwise the independent set coarsening is
+     * used.
+     */
+    protected double matchingShrink = 0.75;
+
+    /**
+     * The number of steps used to lay out the coarsest level.
+     */
+    protected int coarsestSteps = 300;
+
+    /**
+     * The number of refinement steps for the intermediate levels.
+     */
+    protected int levelSteps = 30;
+
+    /**
+     * The number of refinement steps done on the laid out box.
+     */
+    protected int finestSteps = 30;
+
+    /**
+     * The random displacement added to the interpolated positions, so that
+     * the nodes collapsed together do not start at the same place.
+     */
+    protected double jitter = 0.1;
+
+    /**
+     * The number of levels of the last layout, including the laid out box.
+     */
+    protected int levelCount = 0;
+
+    /**
+     * The mean edge length of the coarsest level once laid out. The
+     * interpolated levels are scaled to keep it, otherwise the small
+     * expansion of each level, where the repulsion stretches the edges a bit
+     * beyond their length, adds up from level to level.
+     */
+    protected double edgeLength = 1;
+
+    // Constructors
+
+    public MultilevelLayout(SpringBox box) {
+        this(box, new Random(box.random.nextLong()));
+    }
+
+    public MultilevelLayout(SpringBox box, Random random) {
+        this.box = box;
+        this.random = random;
+    }
+
+    // Access
+
+    public Coarsening getCoarsening() {
+        return coarsening;
+    }
+
+    /**
+     * The number of levels built by the last layout, including the laid out
+     * box.
+     *
+     * @return The level count.
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    // Commands
+
+    public void setCoarsening(Coarsening coarsening) {
+        this.coarsening = coarsening;
+    }
+
+    /**
+     * Set the size under which the graph is no more coarsened.
+     *
+     * @param nodes The number of nodes of the coarsest level, at least 2.
+     */
+    public void setCoarsestSize(int nodes) {
+        coarsestSize = nodes < 2 ? 2 : nodes;
+    }
+
+    public void setMaxLevels(int levels) {
+        maxLevels = levels < 1 ? 1 : levels;
+    }
+
+    /**
+     * Set the number of steps of each level.
+     *
+     * @param coarsest The steps used to lay out the coarsest level.
+     * @param level    The refinement steps of the intermediate levels.
+     * @param finest   The refinement steps of the laid out box.
+     */
+    public void setSteps(int coarsest, int level, int finest) {
+        coarsestSteps = Math.max(coarsest, 0);
+        levelSteps = Math.max(level, 0);
+        finestSteps = Math.max(finest, 0);
+    }
+
+    public void setJitter(double value) {
+        jitter = Math.max(value, 0);
+    }
+
+    /**
+     * Lay out the graph of the box : coarsen it, lay out the coarsest level,
+     * then interpolate and refine each level up to the box itself. The
+     * positions of the box nodes are published as for any step.
+     */
+    public void layout() {
+        ArrayList<Level> levels = new ArrayList<Level>();
+        Level level = Level.fromBox(box);
+
+        levels.add(level);
+
+        while (level.n > coarsestSize && levels.size() < maxLevels) {
+            Level coarse = coarsen(level);
+
+            if (coarse.n >= level.n * minShrink) {
+                level.parent = null;
+                break;
+            }
+
+            levels.add(coarse);
+            level = coarse;
+        }
+
+        levelCount = levels.size();
+
+        if (levels.size() == 1) {
+            refineBox(null, levels.get(0));
+            return;
+        }
+
+        double[] pos = layoutLevel(level, null, coarsestSteps);
+
+        edgeLength = meanEdgeLength(level, pos);
+
+        for (int l = levels.size() - 2; l > 0; l--) {
+            Level fine = levels.get(l);
+            pos = layoutLevel(fine, interpolate(fine, level, pos), levelSteps);
+            level = fine;
+        }
+
+        Level finest = levels.get(0);
+        refineBox(interpolate(finest, level, pos), finest);
+    }
+
+    /**
+     * Build the next coarser level.
+     *
+     * @param level The level to coarsen.
+     * @return The coarser level, the {@link Level#parent} array of the given
+     * level being set.
+     */
+    protected Level coarsen(Level level) {
+        int[] order = shuffledOrder(level.n);
+        int count = -1;
+
+        if (coarsening == Coarsening.MATCHING) {
+            count = match(level, order);
+
+            if (count >= level.n * matchingShrink)
+                count = -1;
+        }
+
+        if (count < 0)
+            count = independentSet(level, order);
+
+        return level.collapse(count);
+    }
+
+    /**
+     * Heavy edge matching. Each unmatched node, in random order, is matched
+     * with its unmatched neighbour along the heaviest edge, ties going to the
+     * lightest neighbour so that the coarse nodes stay balanced.
+     *
+     * @param level The level to coarsen.
+     * @param order The order of visit of the nodes.
+     * @return The number of coarse nodes.
+     */
+    protected int match(Level level, int[] order) {
+        int[] parent = level.parent = new int[level.n];
+        int count = 0;
+
+        Arrays.fill(parent, -1);
+
+        for (int u : order) {
+            if (parent[u] >= 0)
+                continue;
+
+            int best = -1;
+            double bestWeight = 0;
+
+            for (int i = level.start[u]; i < level.start[u + 1]; i++) {
+                int v = level.adjacency[i];
+                double w = level.weights[i];
+
+                if (v != u && parent[v] < 0) {
+                    if (best < 0 || w > bestWeight
+                            || (w == bestWeight && level.sizes[v] < level.sizes[best])) {
+                        best = v;
+                        bestWeight = w;
+                    }
+                }
+            }
+
+            parent[u] = count;
+
+            if (best >= 0)
+                parent[best] = count;
+
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Independent set coarsening. A maximal independent set is chosen
+     * greedily, the nodes of highest degree first so that the hubs absorb
+     * their leaves, and each other node is collapsed in the neighbour of the
+     * set it has the heaviest edge with.
+     *
+     * @param level The level to coarsen.
+     * @param order The order of visit of the nodes.
+     * @return The number of coarse nodes.
+     */
+    protected int independentSet(Level level, int[] order) {
+        int[] parent = level.parent = new int[level.n];
+        boolean[] center = new boolean[level.n];
+        int count = 0;
+
+        for (int u : byDegree(level, order)) {
+            boolean free = true;
+
+            for (int i = level.start[u]; free && i < level.start[u + 1]; i++)
+                free = !center[level.adjacency[i]];
+
+            if (free) {
+                center[u] = true;
+                parent[u] = count++;
+            }
+        }
+
+        for (int u = 0; u < level.n; u++) {
+            if (center[u])
+                continue;
+
+            int best = -1;
+            double bestWeight = 0;
+
+            for (int i = level.start[u]; i < level.start[u + 1]; i++) {
+                int v = level.adjacency[i];
+
+                if (center[v] && (best < 0 || level.weights[i] > bestWeight)) {
+                    best = v;
+                    bestWeight = level.weights[i];
+                }
+            }
+
+            parent[u] = parent[best];
+        }
+
+        return count;
+    }
+
+    /**
+     * Sort the nodes by decreasing degree, the nodes of the same degree
+     * keeping their order.
+     *
+     * @param level The level.
+     * @param order The nodes.
+     * @return The sorted nodes.
+     */
+    protected int[] byDegree(Level level, int[] order) {
+        int max = 0;
+
+        for (int u = 0; u < level.n; u++)
+            max = Math.max(max, level.start[u + 1] - level.start[u]);
+
+        int[] first = new int[max + 2];
+        int[] sorted = new int[level.n];
+
+        for (int u = 0; u < level.n; u++)
+            first[max - (level.start[u + 1] - level.start[u]) + 1]++;
+
+        for (int d = 0; d <= max; d++)
+            first[d + 1] += first[d];
+
+        for (int u : order)
+            sorted[first[max - (level.start[u + 1] - level.start[u])]++] = u;
+
+        return sorted;
+    }
+
+    /**
+     * Lay out a level in its own spring box.
+     *
+     * @param level     The level.
+     * @param positions The starting positions, three coordinates per node, or
+     *                  null to start from random positions.
+     * @param steps     The number of steps.
+     * @return The positions of the nodes, three coordinates per node.
+     */
+    protected double[] layoutLevel(Level level, double[] positions, int steps) {
+        SpringBox layout = new SpringBox(box.is3D, new Random(random.nextLong()));
+        NodeParticle[] particles = new NodeParticle[level.n];
+        int edgeCount = 0;
+
+        layout.setQuality(box.quality);
+        layout.setForce(box.force);
+        layout.setMultipoleOrder(box.multipoleOrder);
+        layout.setTheta(box.theta);
+        layout.setParallelism(box.parallelism);
+        layout.setDeterministic(box.deterministic);
+        layout.setSeed(box.seed);
+        layout.setSpatialIndex(box.spatialIndex.getName());
+        layout.store.ensureCapacity(level.n);
+
+        for (int u = 0; u < level.n; u++) {
+            String id = Integer.toString(u);
+
+            if (positions == null) {
+                layout.addNode(id);
+                particles[u] = (NodeParticle) layout.nodes.getParticle(id);
+            } else {
+                particles[u] = layout.addNode(id, positions[u * 3],
+                        positions[u * 3 + 1], positions[u * 3 + 2]);
+            }
+        }
+
+        for (int u = 0; u < level.n; u++) {
+            for (int i = level.start[u]; i < level.start[u + 1]; i++) {
+                int v = level.adjacency[i];
+
+                if (u < v)
+                    layout.connect(Integer.toString(edgeCount++), particles[u], particles[v]);
+            }
+        }
+
+        for (int s = 0; s < steps; s++)
+            layout.compute();
+
+        layout.setParallelism(1);
+
+        double[] result = new double[level.n * 3];
+        ParticleStore store = layout.store;
+
+        for (int u = 0; u < level.n; u++) {
+            int slot = particles[u].slot;
+
+            result[u * 3] = store.x[slot];
+            result[u * 3 + 1] = store.y[slot];
+            result[u * 3 + 2] = store.z[slot];
+        }
+
+        return result;
+    }
+
+    /**
+     * Place the nodes of a level at the position of the coarse node they were
+     * collapsed in, scaled up to the size of the level and slightly jittered.
+     * The coarse positions are first brought back to the edge length of the
+     * coarsest level.
+     *
+     * @param fine      The level to place.
+     * @param coarse    The next coarser level.
+     * @param positions The positions of the coarse nodes.
+     * @return The starting positions of the fine level.
+     */
+    protected double[] interpolate(Level fine, Level coarse, double[] positions) {
+        double ratio = fine.n / (double) coarse.n;
+        double scale = box.is3D ? Math.cbrt(ratio) : Math.sqrt(ratio);
+        double length = meanEdgeLength(coarse, positions);
+        double[] result = new double[fine.n * 3];
+
+        if (length > 0)
+            scale *= edgeLength / length;
+
+        for (int u = 0; u < fine.n; u++) {
+            int c = fine.parent[u];
+
+            result[u * 3] = positions[c * 3] * scale + jitter();
+            result[u * 3 + 1] = positions[c * 3 + 1] * scale + jitter();
+            result[u * 3 + 2] = box.is3D ? positions[c * 3 + 2] * scale + jitter() : 0;
+        }
+
+        return result;
+    }
+
+    /**
+     * The mean length of the edges of a level.
+     *
+     * @param level     The level.
+     * @param positions The positions of its nodes.
+     * @return The mean edge length, zero if the level has no edge.
+     */
+    protected double meanEdgeLength(Level level, double[] positions) {
+        double sum = 0;
+        int count = 0;
+
+        for (int u = 0; u < level.n; u++) {
+            for (int i = level.start[u]; i < level.start[u + 1]; i++) {
+                int v = level.adjacency[i];
+
+                if (u < v) {
+                    double dx = positions[u * 3] - positions[v * 3];
+                    double dy = positions[u * 3 + 1] - positions[v * 3 + 1];
+                    double dz = positions[u * 3 + 2] - positions[v * 3 + 2];
+
+                    sum += Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    count++;
+                }
+            }
+        }
+
+        return count > 0 ? sum / count : 0;
+    }
+
+    protected double jitter() {
+        return (random.nextDouble() * 2 - 1) * jitter;
+    }
+
+    /**
+     * Move the nodes of the box to their interpolated positions and refine
+     * the box.
+     *
+     * @param positions The positions of the finest level, or null to keep the
+     *                  current positions.
+     * @param finest    The finest level.
+     */
+    protected void refineBox(double[] positions, Level finest) {
+        ParticleStore store = box.store;
+
+        if (positions != null) {
+            for (int u = 0; u < finest.n; u++) {
+                int slot = finest.slots[u];
+
+                if (!store.frozen[slot]) {
+                    store.particles[slot].setPosition(positions[u * 3],
+                            positions[u * 3 + 1], positions[u * 3 + 2]);
+                    box.nodeMoved(slot);
+                }
+            }
+        }
+
+        store.wakeAll();
+        box.convergence.reset();
+
+        for (int s = 0; s < finestSteps; s++)
+            box.compute();
+    }
+
+    protected int[] shuffledOrder(int n) {
+        int[] order = new int[n];
+
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        return order;
+    }
+
+    /**
+     * One level of the hierarchy : a graph in compressed adjacency form.
+     */
+    protected static class Level {
+        /**
+         * Number of nodes.
+         */
+        protected int n;
+
+        /**
+         * The neighbours of node u are at indices start[u] to start[u+1]
+         * excluded of the adjacency and weights arrays.
+         */
+        protected int[] start;
+
+        protected int[] adjacency;
+
+        /**
+         * The weight of each adjacency, that is the number of finest edges it
+         * stands for.
+         */
+        protected double[] weights;
+
+        /**
+         * The number of finest nodes each node stands for.
+         */
+        protected int[] sizes;
+
+        /**
+         * The coarse node of each node, once the level is coarsened.
+         */
+        protected int[] parent;
+
+        /**
+         * The slot of each node in the particle store, for the finest level.
+         */
+        protected int[] slots;
+
+        /**
+         * The finest level, built from the nodes and the not ignored edges of
+         * a box.
+         *
+         * @param box The box.
+         * @return The level.
+         */
+        protected static Level fromBox(SpringBox box) {
+            ParticleStore store = box.store;
+            Level level = new Level();
+            int[] index = new int[store.getSlotCount()];
+
+            level.n = store.getCount();
+            level.slots = new int[level.n];
+            level.sizes = new int[level.n];
+            level.start = new int[level.n + 1];
+
+            for (int slot = 0, u = 0; slot < store.getSlotCount(); slot++) {
+                if (store.particles[slot] != null) {
+                    index[slot] = u;
+                    level.slots[u] = slot;
+                    level.sizes[u] = 1;
+                    u++;
+                }
+            }
+
+            for (int e = 0; e < box.edgeSlotCount; e++) {
+                EdgeSpring edge = box.edgeSlots[e];
+
+                if (!edge.ignored && edge.node0 != edge.node1) {
+                    level.start[index[edge.node0.slot] + 1]++;
+                    level.start[index[edge.node1.slot] + 1]++;
+                }
+            }
+
+            for (int u = 0; u < level.n; u++)
+                level.start[u + 1] += level.start[u];
+
+            int[] fill = Arrays.copyOf(level.start, level.n);
+
+            level.adjacency = new int[level.start[level.n]];
+            level.weights = new double[level.start[level.n]];
+
+            for (int e = 0; e < box.edgeSlotCount; e++) {
+                EdgeSpring edge = box.edgeSlots[e];
+
+                if (!edge.ignored && edge.node0 != edge.node1) {
+                    int u = index[edge.node0.slot];
+                    int v = index[edge.node1.slot];
+
+                    level.adjacency[fill[u]] = v;
+                    level.weights[fill[u]++] = 1;
+                    level.adjacency[fill[v]] = u;
+                    level.weights[fill[v]++] = 1;
+                }
+            }
+
+            return level;
+        }
+
+        /**
+         * Build the coarser level given by the {@link #parent} array. The
+         * edges between nodes collapsed together disappear, and the parallel
+         * edges between two coarse nodes are merged, their weights summed.
+         *
+         * @param count The number of coarse nodes.
+         * @return The coarse level.
+         */
+        protected Level collapse(int count) {
+            Level coarse = new Level();
+            int[] members = new int[n];
+            int[] first = new int[count + 1];
+            int[] mark = new int[count];
+
+            coarse.n = count;
+            coarse.sizes = new int[count];
+            coarse.start = new int[count + 1];
+
+            for (int u = 0; u < n; u++) {
+                first[parent[u] + 1]++;
+                coarse.sizes[parent[u]] += sizes[u];
+            }
+
+            for (int c = 0; c < count; c++)
+                first[c + 1] += first[c];
+
+            int[] fill = Arrays.copyOf(first, count);
+
+            for (int u = 0; u < n; u++)
+                members[fill[parent[u]]++] = u;
+
+            int[] adj = new int[adjacency.length / 2 + 16];
+            double[] w = new double[adj.length];
+            int length = 0;
+
+            Arrays.fill(mark, -1);
+
+            for (int c = 0; c < count; c++) {
+                int begin = length;
+
+                for (int m = first[c]; m < first[c + 1]; m++) {
+                    int u = members[m];
+
+                    for (int i = start[u]; i < start[u + 1]; i++) {
+                        int cv = parent[adjacency[i]];
+
+                        if (cv == c)
+                            continue;
+
+                        if (mark[cv] >= begin) {
+                            w[mark[cv]] += weights[i];
+                        } else {
+                            if (length == adj.length) {
+                                adj = Arrays.copyOf(adj, length * 2);
+                                w = Arrays.copyOf(w, length * 2);
+                            }
+
+                            mark[cv] = length;
+                            adj[length] = cv;
+                            w[length++] = weights[i];
+                        }
+                    }
+                }
+
+                coarse.start[c + 1] = length;
+            }
+
+            coarse.adjacency = Arrays.copyOf(adj, length);
+            coarse.weights = Arrays.copyOf(w, length);
+
+            return coarse;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.miv.pherd.geom.Point3;
+
+/**
+ * The default spatial index : the quadtree or octree of the pherd particle
+ * box, re-divided at each step as the nodes move. The cells are summarized by
+ * {@link SpringBox#indexCells()} and explored by
+ * {@link NodeParticle#repulsionNLogN(StepAccumulator)}, with the view zone and
+ * the multipole settings of the box.
+ */
+public class NTreeIndex implements SpatialIndex {
+    // Constants
+
+    public static final String NAME = "ntree";
+
+    // Attributes
+
+    protected SpringBox box;
+
+    // Constructors
+
+    public NTreeIndex(SpringBox box) {
+        this.box = box;
+    }
+
+    // Access
+
+    public String getName() {
+        return NAME;
+    }
+
+    public boolean usesTree() {
+        return true;
+    }
+
+    public int getDepth() {
+        return box.treeDepth;
+    }
+
+    public int getCellCount() {
+        return box.cellCount;
+    }
+
+    public Point3 getLowestPoint() {
+        return box.nodes.getNTree().getLowestPoint();
+    }
+
+    public Point3 getHighestPoint() {
+        return box.nodes.getNTree().getHighestPoint();
+    }
+
+    // Commands
+
+    public void update() {
+        box.indexCells();
+    }
+
+    public void repulsion(NodeParticle node, StepAccumulator acc) {
+        node.repulsionNLogN(acc);
+    }
+
+    public void wakeCellMates(NodeParticle node) {
+        if (node.getCell() != null) {
+            SpringCellData data = (SpringCellData) node.getCell().getData();
+
+            // A cell divided since the index pass has a new data, not
+            // stamped, and a cell fused since then has no slot counted.
+            if (data.stamp == box.indexPass) {
+                for (int i = 0; i < data.slotCount; i++)
+                    box.store.wake(data.slots[i]);
+            }
+        }
+    }
+}
@@ -4,18 +4,19 @@
  */
 package org.gs.hacks.springbox;
 
-import org.graphstream.ui.geom.Vector3;
 import org.miv.pherd.Particle;
 import org.miv.pherd.ntree.BarycenterCellData;
 import org.miv.pherd.ntree.Cell;
 
-import java.io.FileOutputStream;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.Locale;
 
+/**
+ * The link between a node of the graph, the n-tree and the per-node state of
+ * the layout. The state itself (position copy, displacement, weight, frozen
+ * flag) is stored in the {@link ParticleStore} of the box, at the index given
+ * by {@link #slot}.
+ */
 public class NodeParticle extends Particle {
     // Attributes
 
@@ -25,34 +26,15 @@ public class NodeParticle extends Particle {
     public ArrayList<EdgeSpring> neighbours = new ArrayList<EdgeSpring>();
 
     /**
-     * Should the node move?.
-     */
-    public boolean frozen = false;
-
-    /**
-     * Displacement vector.
-     */
-    public Vector3 disp;
-
-    /**
-     * Last computed displacement vector length.
+     * The index of this node in the particle store of the box.
      */
-    public double len;
+    public int slot;
 
     /**
-     * Attraction energy for this node only.
+     * True if the node was placed at a given position, restored from a
+     * snapshot, instead of a position chosen from its neighbours.
      */
-    public double attE;
-
-    /**
-     * Repulsion energy for this node only.
-     */
-    public double repE;
-
-    /**
-     * If non null, all this node statistics will be output to this stream.
-     */
-    public PrintStream out;
+    public boolean placed = false;
 
     /**
      * The box.
@@ -68,10 +50,8 @@ public class NodeParticle extends Particle {
      * @param id  The node identifier.
      */
     public NodeParticle(SpringBox box, String id) {
-        this(box, id,
-                (box.random.nextDouble() * 2 * box.k) - box.k,
-                (box.random.nextDouble() * 2 * box.k) - box.k,
-                box.is3D ? (box.random.nextDouble() * 2 * box.k) - box.k : 0);
+        this(box, id, box.randomCoordinate(id, 0), box.randomCoordinate(id, 1),
+                box.is3D ? box.randomCoordinate(id, 2) : 0);
 
         this.box = box;
     }
@@ -88,23 +68,11 @@ public class NodeParticle extends Particle {
     public NodeParticle(SpringBox box, String id, double x, double y, double z) {
         super(id, x, y, box.is3D ? z : 0);
         this.box = box;
-        disp = new Vector3();
-        createDebug();
-    }
 
-    /**
-     * Create a file for statistics about this node.
-     */
-    protected void createDebug() {
-        if (box.outputNodeStats) {
-            try {
-                out = new PrintStream(new FileOutputStream("out" + getId()
-                        + ".data"));
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-        }
+        // The next position is never needed apart from the position, the
+        // displacement being kept in the store.
+        nextPos = pos;
+        slot = box.store.allocate(this, pos.x, pos.y, pos.z);
     }
 
     // Access
@@ -118,107 +86,190 @@ public class NodeParticle extends Particle {
         return neighbours;
     }
 
-    // Commands
-
-    @Override
-    public void move(int time) {
-        if (!frozen) {
-            disp.fill(0);
+    /**
+     * Should the node move?.
+     *
+     * @return True if the node is frozen.
+     */
+    public boolean isFrozen() {
+        return box.store.frozen[slot];
+    }
 
-            Vector3 delta = new Vector3();
+    /**
+     * Last computed displacement vector length.
+     *
+     * @return The length of the last displacement.
+     */
+    public double getDisplacementLength() {
+        return box.store.len[slot];
+    }
 
-            repE = 0;
-            attE = 0;
+    // Commands
 
-            if (box.viewZone < 0)
-                repulsionN2(delta);
-            else
-                repulsionNLogN(delta);
+    /**
+     * Freeze or unfreeze this node.
+     *
+     * @param on True to prevent the node from moving.
+     */
+    public void setFrozen(boolean on) {
+        box.store.frozen[slot] = on;
+    }
 
-            attraction(delta);
+    @Override
+    public void setWeight(double weight) {
+        super.setWeight(weight);
+        box.store.weight[slot] = weight;
+    }
 
-            // int N = neighbours.size();
-            // if( N > 40 )
-            // System.err.printf( "* BIG ** [%05d] rep=%05.5f att=%05.5f%n", N,
-            // repE, attE );
-            // else System.err.printf(
-            // "  Small  [%05d] rep=%05.5f att=%05.5f%n", N, repE, attE );
+    /**
+     * The displacement is computed by the box before the particle box step,
+     * see {@link #computeDisplacement(StepAccumulator)}.
+     */
+    @Override
+    public void move(int time) {
+    }
 
-            disp.scalarMult(box.force);
+    /**
+     * Compute the displacement of this node for the current step. This only
+     * reads the position of the other nodes and the n-tree, and only writes
+     * the state of this node and the given accumulator, so several nodes can
+     * be computed concurrently as long as they use distinct accumulators.
+     *
+     * @param acc The accumulator of the worker computing this node.
+     */
+    public void computeDisplacement(StepAccumulator acc) {
+        ParticleStore store = box.store;
+
+        if (!store.frozen[slot] && !store.asleep[slot]) {
+            acc.dispX = 0;
+            acc.dispY = 0;
+            acc.dispZ = 0;
+            acc.repE = 0;
+            acc.attE = 0;
+
+            if (box.metrics != null) {
+                long t0 = System.nanoTime();
+                repulsion(acc);
+                long t1 = System.nanoTime();
+                attraction(acc);
+                acc.repulsionNanos += t1 - t0;
+                acc.attractionNanos += System.nanoTime() - t1;
+            } else {
+                repulsion(acc);
+                attraction(acc);
+            }
 
-            len = disp.length();
+            double dx = acc.dispX * box.force;
+            double dy = acc.dispY * box.force;
+            double dz = acc.dispZ * box.force;
+            double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
 
             if (len > (box.area / 2)) {
-                disp.scalarMult((box.area / 2) / len);
+                double f = (box.area / 2) / len;
+                dx *= f;
+                dy *= f;
+                dz *= f;
                 len = box.area / 2;
             }
 
-            box.avgLength += len;
+            store.dx[slot] = dx;
+            store.dy[slot] = dy;
+            store.dz[slot] = dz;
+            store.len[slot] = len;
+
+            if (store.attE != null) {
+                store.repE[slot] = acc.repE;
+                store.attE[slot] = acc.attE;
+            }
+
+            acc.lengthSum += len;
 
-            if (len > box.maxMoveLength)
-                box.maxMoveLength = len;
+            if (len > acc.maxMoveLength)
+                acc.maxMoveLength = len;
         }
     }
 
     @Override
     public void nextStep(int time) {
-        // Apply it to the position:
-        // We apply the movement vector only if this vector moves from a
-        // significant
-        // length (relative to the graph total area). Else we do nothing and let
-        // the
-        // node in place. This is another mechanism to allow the layout to
-        // stabilise...
-
-        // if( len > box.area * 0.0000001f )
-        {
-            nextPos.x = pos.x + disp.data[0];
-            nextPos.y = pos.y + disp.data[1];
+        // Apply the displacement to the position, unless the node sleeps.
+
+        ParticleStore store = box.store;
+
+        if (!store.asleep[slot]) {
+            pos.x += store.dx[slot];
+            pos.y += store.dy[slot];
 
             if (box.is3D)
-                nextPos.z = pos.z + disp.data[2];
+                pos.z += store.dz[slot];
 
             box.nodeMoveCount++;
             moved = true;
         }
 
-        if (out != null) {
-            out.printf(Locale.US, "%s %f %f %f%n", getId(), len, attE, repE);
-            out.flush();
+        // Same as Particle.nextStep(), but the box is notified directly
+        // instead of iterating the particle box listeners.
+        if (moved) {
+            if (box.nodes.maintainTree)
+                cell.particleMoved(this);
+
+            moved = false;
+
+            store.x[slot] = pos.x;
+            store.y[slot] = pos.y;
+            store.z[slot] = pos.z;
+            box.nodeMoved(slot);
         }
+    }
+
+    /**
+     * Place the node at the given position. The n-tree is updated at the next
+     * step.
+     *
+     * @param x The abscissa.
+     * @param y The ordinate.
+     * @param z The depth.
+     */
+    public void setPosition(double x, double y, double z) {
+        pos.set(x, y, box.is3D ? z : 0);
 
-        super.nextStep(time);
+        ParticleStore store = box.store;
+        store.x[slot] = pos.x;
+        store.y[slot] = pos.y;
+        store.z[slot] = pos.z;
     }
 
     public void move(double dx, double dy, double dz) {
         pos.set(pos.x + dx, pos.y + dy, pos.z + dz);
+
+        ParticleStore store = box.store;
+        store.x[slot] = pos.x;
+        store.y[slot] = pos.y;
+        store.z[slot] = pos.z;
     }
 
     /**
-     * Compute the repulsion for each other node. This is the most precise way,
-     * but the algorithm is a time hog : complexity is O(n^2).
+     * Compute the repulsion, exactly or with the spatial index of the box
+     * according to its quality.
      *
-     * @param delta The computed displacement vector.
+     * @param acc The accumulator of the current worker.
      */
-    protected void repulsionN2(Vector3 delta) {
-        Iterator<Object> i = box.nodes.getParticleIdIterator();
-
-        while (i.hasNext()) {
-            NodeParticle node = (NodeParticle) box.nodes.getParticle(i.next());
-
-            if (node != this) {
-                delta.set(node.pos.x - pos.x, node.pos.y - pos.y,
-                        box.is3D ? node.pos.z - pos.z : 0);
-
-                double len = delta.normalize();
-                double factor = len != 0 ? ((box.K2 / (len * len)) * node.weight)
-                        : 0.00001f;
+    protected void repulsion(StepAccumulator acc) {
+        if (box.viewZone < 0)
+            repulsionN2(acc);
+        else
+            box.spatialIndex.repulsion(this, acc);
+    }
 
-                delta.scalarMult(-factor);
-                disp.add(delta);
-                box.energies.accumulateEnergy(factor);
-            }
-        }
+    /**
+     * Compute the repulsion for each other node. This is the most precise way,
+     * but the algorithm is a time hog : complexity is O(n^2). The repulsion of
+     * all the nodes is computed at once by the {@link ExactRepulsion} kernel of
+     * the box before the displacements, this only reads the result.
+     *
+     * @param acc The accumulator of the current worker.
+     */
+    protected void repulsionN2(StepAccumulator acc) {
+        box.exactRepulsion.addRepulsion(slot, acc);
     }
 
     /**
@@ -227,67 +278,28 @@ public class NodeParticle extends Particle {
      * computed one by one. At a larger distance the repulsion is computed using
      * nodes barycenters.
      *
-     * @param delta The computed displacement vector.
+     * @param acc The accumulator of the current worker.
      */
-    protected void repulsionNLogN(Vector3 delta) {
+    protected void repulsionNLogN(StepAccumulator acc) {
         // Explore the n-tree from the root cell and consider the contents
         // of one cell only if it does intersect an area around the current
         // node. Else take its (weighted) barycenter into account.
 
-        // nDirect = 0;
-        recurseRepulsion(box.nodes.getNTree().getRootCell(), delta);
-        /*
-           * System.err.printf( "enlarge view -> %f!%n", box.viewZone );
-           * directCount = 0; // directCount2 = 100000; } }
-           *//*
-             * else { directCount2--;
-			 * 
-			 * if( directCount2 <= 0 ) { box.viewZone--; System.err.printf(
-			 * "shrink view -> %f!%n", box.viewZone ); directCount2 = 100000; }
-			 * }
-			 *//*
-                 * else if( nDirect > 200 ) { directCount2++;
-				 * 
-				 * if( directCount2 > 100 ) { box.viewZone--; System.err.printf(
-				 * "strech view -> %f!%n", box.viewZone ); directCount2 = 0; } }
-				 */
+        if (box.multipoleOrder > 0)
+            recurseMultipole(box.nodes.getNTree().getRootCell(), acc);
+        else
+            recurseRepulsion(box.nodes.getNTree().getRootCell(), acc);
     }
 
-    protected void recurseRepulsion(Cell cell, Vector3 delta) {
+    protected void recurseRepulsion(Cell cell, StepAccumulator acc) {
         if (intersection(cell)) {
             if (cell.isLeaf()) {
-                Iterator<? extends Particle> i = cell.getParticles();
-
-                while (i.hasNext()) {
-                    NodeParticle node = (NodeParticle) i.next();
-
-                    if (node != this) {
-                        delta.set(node.pos.x - pos.x, node.pos.y - pos.y,
-                                box.is3D ? node.pos.z - pos.z : 0);
-
-                        double len = delta.normalize();
-
-                        if (len > 0)// && len < ( box.k * box.viewZone ) )
-                        {
-                            if (len < box.k)
-                                len = box.k; // XXX NEW To prevent infinite
-                            // repulsion.
-                            double factor = len != 0 ? ((box.K2 / (len * len)) * node.weight)
-                                    : 0.00001;
-                            box.energies.accumulateEnergy(factor);
-                            // this
-                            repE += factor;
-                            delta.scalarMult(-factor);
-
-                            disp.add(delta);
-                        }
-                    }
-                }
+                leafRepulsion((SpringCellData) cell.getData(), acc);
             } else {
                 int div = cell.getSpace().getDivisions();
 
                 for (int i = 0; i < div; i++)
-                    recurseRepulsion(cell.getSub(i), delta);
+                    recurseRepulsion(cell.getSub(i), acc);
             }
         } else {
             if (cell != this.cell) {
@@ -300,28 +312,28 @@ public class NodeParticle extends Particle {
                     int div = cell.getSpace().getDivisions();
 
                     for (int i = 0; i < div; i++)
-                        recurseRepulsion(cell.getSub(i), delta);
+                        recurseRepulsion(cell.getSub(i), acc);
                 } else {
                     if (bary.weight != 0) {
-                        // System.err.printf(
-                        // "applying bary %s [depth=%d weight=%d]%n",
-                        // cell.getId(), cell.getDepth(), (int)bary.weight );
-                        delta.set(bary.center.x - pos.x, bary.center.y - pos.y,
-                                box.is3D ? bary.center.z - pos.z : 0);
-
-                        double len = delta.normalize();
+                        double dx = bary.center.x - pos.x;
+                        double dy = bary.center.y - pos.y;
+                        double dz = box.is3D ? bary.center.z - pos.z : 0;
+                        double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
 
                         if (len > 0) {
+                            double ux = dx / len;
+                            double uy = dy / len;
+                            double uz = dz / len;
+
                             if (len < box.k)
-                                len = box.k; // XXX NEW To prevent infinite
-                            // repulsion.
-                            double factor = len != 0 ? ((box.K2 / (len * len)) * (bary.weight))
-                                    : 0.00001f;
-                            box.energies.accumulateEnergy(factor);
-                            delta.scalarMult(-factor);
-                            repE += factor;
-
-                            disp.add(delta);
+                                len = box.k; // To prevent infinite repulsion.
+                            double factor = (box.K2 / (len * len)) * (bary.weight);
+                            acc.energy += factor;
+                            acc.dispX += ux * -factor;
+                            acc.dispY += uy * -factor;
+                            acc.dispZ += uz * -factor;
+                            acc.repE += factor;
+                            acc.approximated++;
                         }
                     }
                 }
@@ -329,32 +341,165 @@ public class NodeParticle extends Particle {
         }
     }
 
-    protected void attraction(Vector3 delta) {
-        for (EdgeSpring edge : neighbours) {
+    /**
+     * Compute the repulsion of each particle of a leaf cell, one by one.
+     *
+     * @param data The data of the leaf.
+     * @param acc  The accumulator of the current worker.
+     */
+    protected void leafRepulsion(SpringCellData data, StepAccumulator acc) {
+        ParticleStore store = box.store;
+        double px = store.x[slot];
+        double py = store.y[slot];
+        double pz = store.z[slot];
+        int[] slots = data.slots;
+
+        for (int i = 0; i < data.slotCount; i++) {
+            int j = slots[i];
+
+            if (j != slot) {
+                acc.direct++;
+
+                double dx = store.x[j] - px;
+                double dy = store.y[j] - py;
+                double dz = box.is3D ? store.z[j] - pz : 0;
+                double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                if (len > 0) {
+                    double ux = dx / len;
+                    double uy = dy / len;
+                    double uz = dz / len;
+
+                    if (len < box.k)
+                        len = box.k; // To prevent infinite repulsion.
+                    double factor = (box.K2 / (len * len)) * store.weight[j];
+                    acc.energy += factor;
+                    acc.repE += factor;
+                    acc.dispX += ux * -factor;
+                    acc.dispY += uy * -factor;
+                    acc.dispZ += uz * -factor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the repulsion using the multipole expansion of the cells. A cell
+     * is opened if it contains this node or if its size seen from the node is
+     * larger than theta, else it is approximated by its weighted center, and
+     * by its quadrupole moments if the multipole order of the box is 2. The
+     * view zone is not used.
+     *
+     * @param cell The explored cell.
+     * @param acc  The accumulator of the current worker.
+     */
+    protected void recurseMultipole(Cell cell, StepAccumulator acc) {
+        SpringCellData data = (SpringCellData) cell.getData();
+
+        if (data.count == 0 || data.weight == 0)
+            return;
+
+        ParticleStore store = box.store;
+        double rx = store.x[slot] - data.cx;
+        double ry = store.y[slot] - data.cy;
+        double rz = box.is3D ? store.z[slot] - data.cz : 0;
+        double r2 = rx * rx + ry * ry + rz * rz;
+        double size = cell.getSpace().getSize();
+        boolean open = (size * size) > (box.theta * box.theta * r2) || contains(cell);
+
+        if (open) {
+            if (cell.isLeaf()) {
+                leafRepulsion(data, acc);
+            } else {
+                int div = cell.getSpace().getDivisions();
+
+                for (int i = 0; i < div; i++)
+                    recurseMultipole(cell.getSub(i), acc);
+            }
+        } else {
+            double len = Math.sqrt(r2);
+            double clamped = len < box.k ? box.k : len; // To prevent infinite repulsion.
+            double factor = (box.K2 / (clamped * clamped)) * data.weight;
+
+            // Monopole : repulsion from the weighted center, along r.
+            double fx = (rx / len) * factor;
+            double fy = (ry / len) * factor;
+            double fz = (rz / len) * factor;
+
+            if (box.multipoleOrder > 1 && len >= box.k) {
+                // Quadrupole : K2 * ( -Q.r / r^5 + 5/2 (r.Q.r) r / r^7 ).
+                double qrx = data.qxx * rx + data.qxy * ry + data.qxz * rz;
+                double qry = data.qxy * rx + data.qyy * ry + data.qyz * rz;
+                double qrz = data.qxz * rx + data.qyz * ry + data.qzz * rz;
+                double rqr = rx * qrx + ry * qry + rz * qrz;
+                double r5 = r2 * r2 * len;
+                double a = 2.5 * rqr / r2;
+
+                fx += box.K2 * (a * rx - qrx) / r5;
+                fy += box.K2 * (a * ry - qry) / r5;
+                fz += box.K2 * (a * rz - qrz) / r5;
+            }
+
+            acc.energy += factor;
+            acc.repE += factor;
+            acc.dispX += fx;
+            acc.dispY += fy;
+            acc.dispZ += fz;
+            acc.approximated++;
+        }
+    }
+
+    /**
+     * Is this node inside the given cell or one of its sub-cells ?
+     *
+     * @param cell The cell.
+     * @return True if the cell of this node is the given cell or one of its
+     * descendants.
+     */
+    protected boolean contains(Cell cell) {
+        Cell c = this.cell;
+
+        while (c != null && c.getDepth() > cell.getDepth())
+            c = c.getParent();
+
+        return c == cell;
+    }
+
+    protected void attraction(StepAccumulator acc) {
+        ParticleStore store = box.store;
+        double px = store.x[slot];
+        double py = store.y[slot];
+        double pz = store.z[slot];
+
+        for (int i = 0; i < neighbours.size(); i++) {
+            EdgeSpring edge = neighbours.get(i);
+
             if (!edge.ignored) {
-                NodeParticle other = edge.getOpposite(this);
+                int j = edge.getOpposite(this).slot;
+
+                double dx = store.x[j] - px;
+                double dy = store.y[j] - py;
+                double dz = box.is3D ? store.z[j] - pz : 0;
+                double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
 
-                delta.set(other.pos.x - pos.x, other.pos.y - pos.y,
-                        box.is3D ? other.pos.z - pos.z : 0);
+                if (len != 0) {
+                    dx /= len;
+                    dy /= len;
+                    dz /= len;
+                }
 
-                double len = delta.normalize();
                 double k = box.k * edge.weight;
 
                 double factor = box.K1 * (len - k);
 
-                // delta.scalarMult( factor );
-                delta.scalarMult(factor * (1f / (neighbours.size() * 0.1f))); // XXX
-                // NEW
-                // inertia
-                // based
-                // on
-                // the
-                // node
-                // degree.
-                disp.add(delta);
-                attE += factor;
-
-                box.energies.accumulateEnergy(factor);
+                // The inertia grows with the degree of the node.
+                double f = factor * (1f / (neighbours.size() * 0.1f));
+                acc.dispX += dx * f;
+                acc.dispY += dy * f;
+                acc.dispZ += dz * f;
+                acc.attE += factor;
+
+                acc.energy += factor;
             }
         }
     }
@@ -403,6 +548,11 @@ public class NodeParticle extends Particle {
      * @param e The edge to connect.
      */
     public void registerEdge(EdgeSpring e) {
+        if (e.node0 == this && e.index0 < 0)
+            e.index0 = neighbours.size();
+        else
+            e.index1 = neighbours.size();
+
         neighbours.add(e);
     }
 
@@ -412,23 +562,38 @@ public class NodeParticle extends Particle {
      * @param e THe edge to disconnect.
      */
     public void unregisterEdge(EdgeSpring e) {
-        int i = neighbours.indexOf(e);
+        int i;
+
+        if (e.node0 == this && e.index0 >= 0) {
+            i = e.index0;
+            e.index0 = -1;
+        } else if (e.node1 == this && e.index1 >= 0) {
+            i = e.index1;
+            e.index1 = -1;
+        } else {
+            return;
+        }
+
+        int last = neighbours.size() - 1;
+        EdgeSpring moved = neighbours.remove(last);
 
-        if (i >= 0) {
-            neighbours.remove(i);
+        if (i < last) {
+            neighbours.set(i, moved);
+
+            if (moved.node0 == this && moved.index0 == last)
+                moved.index0 = i;
+            else
+                moved.index1 = i;
         }
     }
 
     /**
-     * Remove all edges connected to this node.
+     * Remove all edges connected to this node. The edges are removed from the
+     * end of the neighbour list, so no edge is moved in the list.
      */
     public void removeNeighborEdges() {
-        ArrayList<EdgeSpring> edges = new ArrayList<EdgeSpring>(neighbours);
-
-        for (EdgeSpring edge : edges)
-            box.removeEdge(edge.id);
-
-        neighbours.clear();
+        while (!neighbours.isEmpty())
+            box.removeEdge(neighbours.get(neighbours.size() - 1));
     }
 
     @Override
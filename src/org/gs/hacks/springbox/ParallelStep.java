@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join computation of the node displacements of one step.
+ *
+ * <p>
+ * The slots of the particle store are split in contiguous chunks, each chunk
+ * being computed by a task that owns a {@link StepAccumulator}. During this
+ * phase the nodes only read the positions of the other nodes and the n-tree,
+ * and only write their own displacement, therefore the chunks can be computed
+ * concurrently. The accumulators are reduced in the chunk order once all the
+ * tasks are done.
+ * </p>
+ *
+ * <p>
+ * The chunks have a fixed size, so the chunks, and therefore the summation
+ * order of the reduction, only depend on the number of slots, not on the
+ * number of threads : the result is the same when the chunks are computed by
+ * a pool or one after the other in the calling thread.
+ * </p>
+ *
+ * <p>
+ * The tasks are allocated once and reinitialised at each step.
+ * </p>
+ */
+public class ParallelStep extends RecursiveAction {
+    // Constants
+
+    private static final long serialVersionUID = 1L;
+
+    // Attributes
+
+    /**
+     * The chunks of slots.
+     */
+    protected Chunk[] chunks = new Chunk[0];
+
+    /**
+     * The number of chunks used by the current step.
+     */
+    protected int chunkCount = 0;
+
+    /**
+     * The size of the chunks, 0 if they divide the slots in parts.
+     */
+    protected int chunkSize = 0;
+
+    // Commands
+
+    /**
+     * Prepare the step for a new run, with chunks of a fixed size.
+     *
+     * @param store     The particles to move.
+     * @param chunkSize The number of slots of each chunk, the last one
+     *                  excepted.
+     */
+    public void prepareFixed(ParticleStore store, int chunkSize) {
+        int count = store.getSlotCount();
+
+        allocate(Math.max(1, (count + chunkSize - 1) / chunkSize));
+        this.chunkSize = chunkSize;
+
+        for (int i = 0; i < chunkCount; i++)
+            chunks[i].set(store.particles, i * chunkSize, Math.min(count, (i + 1) * chunkSize));
+
+        reinitialize();
+    }
+
+    /**
+     * Compute the prepared chunks one after the other in the calling thread,
+     * instead of invoking the step in a pool.
+     */
+    public void computeInCallingThread() {
+        for (int i = 0; i < chunkCount; i++)
+            chunks[i].compute();
+    }
+
+    /**
+     * The accumulator of the fixed size chunk of a slot, for a step whose
+     * slots are computed in order by the caller, a few at a time. Reduced
+     * with {@link #reduce(StepAccumulator)}, the result is then the same as
+     * with {@link #computeInCallingThread()}.
+     *
+     * @param slot The slot.
+     * @return The accumulator of its chunk.
+     */
+    public StepAccumulator getAccumulator(int slot) {
+        return chunks[slot / chunkSize].accumulator;
+    }
+
+    /**
+     * Merge the accumulators of all the chunks, in order.
+     *
+     * @param into The accumulator receiving the result.
+     */
+    public void reduce(StepAccumulator into) {
+        for (int i = 0; i < chunkCount; i++)
+            into.merge(chunks[i].accumulator);
+    }
+
+    @Override
+    protected void compute() {
+        if (chunkCount == chunks.length)
+            invokeAll(chunks);
+        else
+            invokeAll(Arrays.asList(chunks).subList(0, chunkCount));
+    }
+
+    protected void allocate(int count) {
+        if (chunks.length < count) {
+            int old = chunks.length;
+
+            chunks = Arrays.copyOf(chunks, count);
+
+            for (int i = old; i < count; i++)
+                chunks[i] = new Chunk();
+        }
+
+        chunkCount = count;
+    }
+
+    /**
+     * A contiguous range of slots computed by one task.
+     */
+    protected static class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected NodeParticle[] particles;
+
+        protected int from;
+
+        protected int to;
+
+        protected StepAccumulator accumulator = new StepAccumulator();
+
+        protected void set(NodeParticle[] particles, int from, int to) {
+            this.particles = particles;
+            this.from = from;
+            this.to = to;
+            accumulator.reset();
+            reinitialize();
+        }
+
+        @Override
+        protected void compute() {
+            accumulator.reset();
+
+            for (int i = from; i < to; i++) {
+                if (particles[i] != null)
+                    particles[i].computeDisplacement(accumulator);
+            }
+        }
+    }
+}
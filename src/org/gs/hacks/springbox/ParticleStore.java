@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage of the per-node state of the layout.
+ *
+ * <p>
+ * Each node owns an integer slot, and its position, displacement, weight,
+ * frozen and sleep flags live at this index in contiguous primitive arrays.
+ * The sweeps done at each step therefore read contiguous memory instead of
+ * chasing one object per node. The {@link NodeParticle} objects are only
+ * kept as the link with the n-tree and the graph identifiers.
+ * </p>
+ *
+ * <p>
+ * The slots are stable : a slot is not moved while its node is in the box, and
+ * the slots of removed nodes are reused by the next added nodes. Free slots
+ * below {@link #getSlotCount()} have a null particle.
+ * </p>
+ */
+public class ParticleStore {
+    // Attributes
+
+    /**
+     * Abscissa of each node. This is a copy of the particle position kept up
+     * to date after each move.
+     */
+    public double[] x;
+
+    /**
+     * Ordinate of each node.
+     */
+    public double[] y;
+
+    /**
+     * Depth of each node.
+     */
+    public double[] z;
+
+    /**
+     * Displacement of each node along the abscissa.
+     */
+    public double[] dx;
+
+    /**
+     * Displacement of each node along the ordinate.
+     */
+    public double[] dy;
+
+    /**
+     * Displacement of each node along the depth.
+     */
+    public double[] dz;
+
+    /**
+     * Last computed displacement length of each node.
+     */
+    public double[] len;
+
+    /**
+     * Attraction energy of each node only, null unless the energies are
+     * kept, see {@link #keepEnergies(boolean)}.
+     */
+    public double[] attE;
+
+    /**
+     * Repulsion energy of each node only.
+     */
+    public double[] repE;
+
+    /**
+     * Repulsion weight of each node.
+     */
+    public double[] weight;
+
+    /**
+     * Should the node move?.
+     */
+    public boolean[] frozen;
+
+    /**
+     * Is the node asleep, that is settled and no more recomputed ?.
+     */
+    public boolean[] asleep;
+
+    /**
+     * Number of consecutive steps during which the node barely moved.
+     */
+    public int[] calmSteps;
+
+    /**
+     * Did the node move since its position was last published ?.
+     */
+    public boolean[] changed;
+
+    /**
+     * The last published position of the node, NaN if it was never published.
+     * Null unless the published positions are kept, see
+     * {@link #keepSentPositions(boolean)}.
+     */
+    public double[] sentX;
+
+    public double[] sentY;
+
+    public double[] sentZ;
+
+    /**
+     * The particle owning each slot, null for a free slot.
+     */
+    public NodeParticle[] particles;
+
+    /**
+     * One more than the highest slot ever allocated.
+     */
+    protected int slotCount = 0;
+
+    /**
+     * Number of nodes in the store.
+     */
+    protected int count = 0;
+
+    /**
+     * Number of nodes that are not asleep.
+     */
+    protected int awakeCount = 0;
+
+    /**
+     * Stack of the free slots below {@link #slotCount}.
+     */
+    protected int[] freeSlots;
+
+    /**
+     * Number of entries in {@link #freeSlots}.
+     */
+    protected int freeCount = 0;
+
+    // Constructors
+
+    public ParticleStore() {
+        this(64);
+    }
+
+    /**
+     * New store able to hold the given number of nodes without growing.
+     *
+     * @param capacity The initial capacity.
+     */
+    public ParticleStore(int capacity) {
+        allocateArrays(Math.max(capacity, 1));
+    }
+
+    // Access
+
+    /**
+     * The number of nodes in the store.
+     *
+     * @return The node count.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The upper bound of the used slots. All the slots of the nodes are
+     * strictly lower than this value, some slots below may be free.
+     *
+     * @return The slot count.
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * The number of nodes that are not asleep.
+     *
+     * @return The awake node count.
+     */
+    public int getAwakeCount() {
+        return awakeCount;
+    }
+
+    /**
+     * The number of nodes the store can hold without growing.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return particles.length;
+    }
+
+    /**
+     * The particle at the given slot.
+     *
+     * @param slot The slot.
+     * @return The particle or null if the slot is free.
+     */
+    public NodeParticle getParticle(int slot) {
+        return particles[slot];
+    }
+
+    // Commands
+
+    /**
+     * Make sure the store can hold the given number of nodes without growing.
+     *
+     * @param capacity The wanted capacity.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > particles.length)
+            grow(capacity);
+    }
+
+    /**
+     * Give a slot to a new particle.
+     *
+     * @param particle The particle.
+     * @param px       The abscissa.
+     * @param py       The ordinate.
+     * @param pz       The depth.
+     * @return The slot of the particle.
+     */
+    public int allocate(NodeParticle particle, double px, double py, double pz) {
+        int slot;
+
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == particles.length)
+                grow(particles.length * 2);
+
+            slot = slotCount++;
+        }
+
+        particles[slot] = particle;
+        x[slot] = px;
+        y[slot] = py;
+        z[slot] = pz;
+        dx[slot] = 0;
+        dy[slot] = 0;
+        dz[slot] = 0;
+        len[slot] = 0;
+        weight[slot] = 1;
+        frozen[slot] = false;
+        asleep[slot] = false;
+        calmSteps[slot] = 0;
+        changed[slot] = false;
+        count++;
+
+        if (attE != null) {
+            attE[slot] = 0;
+            repE[slot] = 0;
+        }
+
+        if (sentX != null) {
+            sentX[slot] = Double.NaN;
+            sentY[slot] = Double.NaN;
+            sentZ[slot] = Double.NaN;
+        }
+
+        awakeCount++;
+
+        return slot;
+    }
+
+    /**
+     * Free the slot of a removed particle.
+     *
+     * @param slot The slot to free.
+     */
+    public void release(int slot) {
+        if (particles[slot] != null) {
+            if (!asleep[slot])
+                awakeCount--;
+
+            asleep[slot] = false;
+            particles[slot] = null;
+            freeSlots[freeCount++] = slot;
+            count--;
+        }
+    }
+
+    /**
+     * Put a node to sleep.
+     *
+     * @param slot The slot of the node.
+     */
+    public void sleep(int slot) {
+        if (!asleep[slot]) {
+            asleep[slot] = true;
+            awakeCount--;
+        }
+    }
+
+    /**
+     * Wake a node up, its calm steps are forgotten. A sleeping node was not
+     * computed by the current step, its displacement is cleared so that it
+     * does not move before its next computation. A free slot is left as is.
+     *
+     * @param slot The slot of the node.
+     */
+    public void wake(int slot) {
+        if (particles[slot] == null)
+            return;
+
+        calmSteps[slot] = 0;
+
+        if (asleep[slot]) {
+            asleep[slot] = false;
+            dx[slot] = 0;
+            dy[slot] = 0;
+            dz[slot] = 0;
+            len[slot] = 0;
+            awakeCount++;
+        }
+    }
+
+    /**
+     * Wake all the nodes up.
+     */
+    public void wakeAll() {
+        for (int i = 0; i < slotCount; i++) {
+            if (particles[i] != null)
+                wake(i);
+        }
+    }
+
+    /**
+     * Keep or drop the attraction and repulsion energies of each node, only
+     * needed to log the nodes.
+     *
+     * @param on True to keep them.
+     */
+    public void keepEnergies(boolean on) {
+        if (on && attE == null) {
+            attE = new double[particles.length];
+            repE = new double[particles.length];
+        } else if (!on) {
+            attE = null;
+            repE = null;
+        }
+    }
+
+    /**
+     * Keep or drop the last published position of each node, only needed
+     * when the small moves are held back. Once kept again, all the nodes are
+     * considered never published.
+     *
+     * @param on True to keep them.
+     */
+    public void keepSentPositions(boolean on) {
+        if (on && sentX == null) {
+            sentX = new double[particles.length];
+            sentY = new double[particles.length];
+            sentZ = new double[particles.length];
+            Arrays.fill(sentX, Double.NaN);
+            Arrays.fill(sentY, Double.NaN);
+            Arrays.fill(sentZ, Double.NaN);
+        } else if (!on) {
+            sentX = null;
+            sentY = null;
+            sentZ = null;
+        }
+    }
+
+    /**
+     * Remove all the particles, the capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(particles, 0, slotCount, null);
+        slotCount = 0;
+        count = 0;
+        awakeCount = 0;
+        freeCount = 0;
+    }
+
+    protected void allocateArrays(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        dz = new double[capacity];
+        len = new double[capacity];
+        weight = new double[capacity];
+        frozen = new boolean[capacity];
+        asleep = new boolean[capacity];
+        calmSteps = new int[capacity];
+        changed = new boolean[capacity];
+        particles = new NodeParticle[capacity];
+        freeSlots = new int[capacity];
+    }
+
+    protected void grow(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        dx = Arrays.copyOf(dx, capacity);
+        dy = Arrays.copyOf(dy, capacity);
+        dz = Arrays.copyOf(dz, capacity);
+        len = Arrays.copyOf(len, capacity);
+        weight = Arrays.copyOf(weight, capacity);
+        frozen = Arrays.copyOf(frozen, capacity);
+        asleep = Arrays.copyOf(asleep, capacity);
+        calmSteps = Arrays.copyOf(calmSteps, capacity);
+        changed = Arrays.copyOf(changed, capacity);
+        particles = Arrays.copyOf(particles, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+        if (attE != null) {
+            attE = Arrays.copyOf(attE, capacity);
+            repE = Arrays.copyOf(repE, capacity);
+        }
+
+        if (sentX != null) {
+            sentX = Arrays.copyOf(sentX, capacity);
+            sentY = Arrays.copyOf(sentY, capacity);
+            sentZ = Arrays.copyOf(sentZ, capacity);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.graphstream.stream.AttributeSink;
+
+/**
+ * Turn the bulk position updates of a {@link SpringBox} back into one "xyz"
+ * attribute event per moved node, for the sinks that only understand
+ * attribute events (a graph, a viewer pipe, ...).
+ */
+public class PositionsEventAdapter implements PositionsListener {
+    // Attributes
+
+    /**
+     * The sink receiving the events.
+     */
+    protected AttributeSink sink;
+
+    /**
+     * The source identifier of the events.
+     */
+    protected String sourceId;
+
+    /**
+     * The time identifier of the next event.
+     */
+    protected long timeId = 0;
+
+    // Constructors
+
+    public PositionsEventAdapter(AttributeSink sink) {
+        this(sink, String.format("positions@%x", System.identityHashCode(sink)));
+    }
+
+    /**
+     * New adapter.
+     *
+     * @param sink     The sink receiving the events.
+     * @param sourceId The source identifier used for the events.
+     */
+    public PositionsEventAdapter(AttributeSink sink, String sourceId) {
+        this.sink = sink;
+        this.sourceId = sourceId;
+    }
+
+    // Commands
+
+    public void positionsUpdated(SpringBox layout, double[] x, double[] y, double[] z, int[] changed, int count) {
+        for (int i = 0; i < count; i++) {
+            int slot = changed[i];
+            String id = layout.getNodeId(slot);
+
+            if (id != null) {
+                Object xyz[] = new Object[3];
+                xyz[0] = x[slot];
+                xyz[1] = y[slot];
+                xyz[2] = z[slot];
+
+                sink.nodeAttributeChanged(sourceId, timeId++, id, "xyz", xyz, xyz);
+            }
+        }
+    }
+}
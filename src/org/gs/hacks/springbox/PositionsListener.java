@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+/**
+ * Receives the node positions computed by a {@link SpringBox}, once per step,
+ * instead of one attribute event per moved node.
+ */
+public interface PositionsListener {
+    /**
+     * Some nodes moved during the last step(s).
+     *
+     * <p>
+     * The coordinate arrays are indexed by node slot and belong to the layout :
+     * they must only be read during the call, and never modified. The
+     * identifier of the node at a slot is given by
+     * {@link SpringBox#getNodeId(int)}.
+     * </p>
+     *
+     * @param layout  The layout.
+     * @param x       The abscissa of each node slot.
+     * @param y       The ordinate of each node slot.
+     * @param z       The depth of each node slot.
+     * @param changed The slots of the nodes that moved.
+     * @param count   The number of valid entries in changed.
+     */
+    void positionsUpdated(SpringBox layout, double[] x, double[] y, double[] z, int[] changed, int count);
+}
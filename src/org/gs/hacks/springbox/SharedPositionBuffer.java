@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An off-heap copy of the positions of all the nodes of a {@link SpringBox},
+ * written at the end of each step, see
+ * {@link SpringBox#setPositionBuffer(SharedPositionBuffer)}. It is read by a
+ * {@link SharedPositionReader}, in the same process or, when the buffer is a
+ * memory-mapped file, in another one, without events, locks nor boxing.
+ *
+ * <p>
+ * The buffer is made of a header of {@link #HEADER_SIZE} bytes and of two
+ * frames, written in turn. A frame holds the step, the number of slots and the
+ * abscissas, ordinates and depths of the node slots, as three columns of
+ * doubles, NaN for a free slot. The identifier of the node of a slot is given
+ * by {@link SpringBox#getNodeId(int)}.
+ * </p>
+ *
+ * <p>
+ * The header holds two counters. Before writing frame number n, the layout
+ * sets the "writing" counter to n. Once the frame is written, it sets the
+ * "published" counter to n. Frame n is stored in place n % 2. A reader reads
+ * the published counter p, copies frame p, then reads the writing counter :
+ * the copy is consistent if it is at most p + 1, since frame p + 2, the
+ * next one to use the same place, was not started. The layout never waits
+ * for the readers.
+ * </p>
+ *
+ * <p>
+ * The frames are written with plain stores. A store fence separates them from
+ * the writing counter before and from the published counter after, and the
+ * reader puts a load fence between its reads of the counters and of the
+ * frame, as {@link java.util.concurrent.locks.StampedLock} does to validate
+ * an optimistic read. When the node slots outgrow the buffer, it is
+ * enlarged : a direct buffer is replaced, a file is extended and mapped
+ * again, the readers noticing the new capacity in the header.
+ * </p>
+ */
+public class SharedPositionBuffer {
+    // Constants
+
+    /**
+     * The first int of the buffer, "SBPB".
+     */
+    public static final int MAGIC = 0x53425042;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * Offsets of the header fields.
+     */
+    public static final int CAPACITY = 8;
+
+    public static final int WRITING = 16;
+
+    public static final int PUBLISHED = 24;
+
+    /**
+     * Offsets of the frame fields, from the start of the frame.
+     */
+    public static final int FRAME_STEP = 0;
+
+    public static final int FRAME_SLOTS = 8;
+
+    public static final int FRAME_HEADER_SIZE = 16;
+
+    /**
+     * The memory fences of sun.misc.Unsafe, that Java 8 has no public API
+     * for. They are looked up by reflection, the class being hidden from
+     * the compilers targeting Java 8 with --release.
+     */
+    protected static final MethodHandle STORE_FENCE;
+
+    protected static final MethodHandle LOAD_FENCE;
+
+    static {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            MethodType signature = MethodType.methodType(void.class);
+
+            field.setAccessible(true);
+
+            Object unsafe = field.get(null);
+
+            STORE_FENCE = MethodHandles.lookup().findVirtual(type, "storeFence", signature).bindTo(unsafe);
+            LOAD_FENCE = MethodHandles.lookup().findVirtual(type, "loadFence", signature).bindTo(unsafe);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Attributes
+
+    /**
+     * The mapped file, null for a direct buffer.
+     */
+    protected String fileName;
+
+    protected volatile ByteBuffer buffer;
+
+    /**
+     * The number of slots a frame can hold.
+     */
+    protected int capacity;
+
+    /**
+     * The number of the last frame written.
+     */
+    protected long published = 0;
+
+    // Constructors
+
+    /**
+     * A buffer in the memory of the process, outside of the heap.
+     *
+     * @param capacity The initial number of slots.
+     */
+    public SharedPositionBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.buffer = ByteBuffer.allocateDirect((int) size(this.capacity));
+        writeHeader();
+    }
+
+    /**
+     * A buffer in a memory-mapped file, readable by other processes.
+     *
+     * @param fileName The file, replaced if it exists.
+     * @param capacity The initial number of slots.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public SharedPositionBuffer(String fileName, int capacity) throws IOException {
+        this.fileName = fileName;
+        this.capacity = Math.max(1, capacity);
+        this.buffer = map(fileName, this.capacity, true);
+        writeHeader();
+    }
+
+    // Access
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The current buffer. It is replaced when the buffer is enlarged.
+     *
+     * @return The buffer, to be read with a {@link SharedPositionReader}.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * The size of a frame.
+     *
+     * @param capacity The number of slots.
+     * @return The size in bytes.
+     */
+    public static long frameSize(int capacity) {
+        return FRAME_HEADER_SIZE + capacity * 24L;
+    }
+
+    /**
+     * The size of a buffer.
+     *
+     * @param capacity The number of slots.
+     * @return The size in bytes, header and both frames.
+     */
+    public static long size(int capacity) {
+        return HEADER_SIZE + 2 * frameSize(capacity);
+    }
+
+    /**
+     * The position of a frame in the buffer.
+     *
+     * @param capacity The number of slots.
+     * @param frame    The frame number.
+     * @return The offset of the frame.
+     */
+    public static int frameOffset(int capacity, long frame) {
+        return (int) (HEADER_SIZE + (frame & 1) * frameSize(capacity));
+    }
+
+    // Commands
+
+    /**
+     * Write the positions of all the nodes as a new frame.
+     *
+     * @param store The nodes.
+     * @param step  The step of the layout.
+     */
+    public void write(ParticleStore store, long step) {
+        int n = store.getSlotCount();
+
+        if (n > capacity)
+            grow(n);
+
+        ByteBuffer buffer = this.buffer;
+        long frame = published + 1;
+        int offset = frameOffset(capacity, frame);
+        NodeParticle[] particles = store.particles;
+
+        buffer.putLong(WRITING, frame);
+        storeFence();
+
+        buffer.putLong(offset + FRAME_STEP, step);
+        buffer.putInt(offset + FRAME_SLOTS, n);
+        putColumn(buffer, offset + FRAME_HEADER_SIZE, store.x, particles, n);
+        putColumn(buffer, offset + FRAME_HEADER_SIZE + capacity * 8, store.y, particles, n);
+        putColumn(buffer, offset + FRAME_HEADER_SIZE + capacity * 16, store.z, particles, n);
+
+        storeFence();
+        buffer.putLong(PUBLISHED, frame);
+        published = frame;
+    }
+
+    /**
+     * Release the buffer. A mapped file is left in place.
+     */
+    public void close() {
+        buffer = null;
+    }
+
+    protected void putColumn(ByteBuffer buffer, int offset, double[] values, NodeParticle[] particles, int n) {
+        DoubleBuffer column = ((ByteBuffer) buffer.duplicate().position(offset)).asDoubleBuffer();
+
+        column.put(values, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            if (particles[i] == null)
+                column.put(i, Double.NaN);
+        }
+    }
+
+    /**
+     * Enlarge the buffer. The frames are not copied : the frame number jumps
+     * by two, so that the readers of the last frame retry until the next one
+     * is published.
+     *
+     * @param slots The number of slots needed.
+     */
+    protected void grow(int slots) {
+        int size = Math.max(slots, capacity * 2);
+        long last = published;
+
+        // Invalidate the copies in progress, the frames move.
+        buffer.putLong(WRITING, last + 2);
+        storeFence();
+
+        if (fileName != null) {
+            try {
+                buffer = map(fileName, size, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            buffer = ByteBuffer.allocateDirect((int) size(size));
+        }
+
+        capacity = size;
+        published = last + 2;
+        writeHeader();
+        storeFence();
+        buffer.putLong(PUBLISHED, last);
+    }
+
+    protected void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY, capacity);
+        buffer.putLong(WRITING, published);
+        buffer.putLong(PUBLISHED, published);
+    }
+
+    /**
+     * Keep the stores before the fence from being reordered with the stores
+     * after it.
+     */
+    protected static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Keep the loads before the fence from being reordered with the loads
+     * after it.
+     */
+    protected static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    protected static ByteBuffer map(String fileName, int capacity, boolean truncate) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+
+        try {
+            if (truncate)
+                file.setLength(0);
+
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size(capacity));
+        } finally {
+            file.close();
+        }
+    }
+}
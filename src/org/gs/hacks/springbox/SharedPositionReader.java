@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the frames of a {@link SharedPositionBuffer}, in the process of the
+ * layout or in another process through the mapped file.
+ *
+ * <p>
+ * {@link #read()} copies the last published frame into the arrays of the
+ * reader, retrying if the layout overwrote it during the copy, and never
+ * blocks the layout. The arrays are indexed by node slot, a free slot having
+ * NaN coordinates.
+ * </p>
+ */
+public class SharedPositionReader {
+    // Attributes
+
+    /**
+     * The buffer of the layout, null when reading a file.
+     */
+    protected SharedPositionBuffer source;
+
+    /**
+     * The mapped file, null when reading the buffer of the layout.
+     */
+    protected String fileName;
+
+    /**
+     * The mapping of the file.
+     */
+    protected ByteBuffer mapping;
+
+    protected int mappedCapacity;
+
+    /**
+     * The number of the last frame read, 0 if none.
+     */
+    protected long frame = 0;
+
+    protected long step;
+
+    protected int slotCount;
+
+    protected double[] x = new double[0];
+
+    protected double[] y = new double[0];
+
+    protected double[] z = new double[0];
+
+    // Constructors
+
+    /**
+     * Read the buffer of a layout of this process.
+     *
+     * @param source The buffer.
+     */
+    public SharedPositionReader(SharedPositionBuffer source) {
+        this.source = source;
+    }
+
+    /**
+     * Read the buffer of a layout through its file.
+     *
+     * @param fileName The file of the buffer.
+     * @throws IOException If the file cannot be mapped or is not a position
+     *                     buffer.
+     */
+    public SharedPositionReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        remap();
+    }
+
+    // Access
+
+    /**
+     * The number of the frame last read.
+     *
+     * @return The frame number, 0 if no frame was read.
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * The step of the layout when the frame last read was written.
+     *
+     * @return The step.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * The number of valid entries of the coordinate arrays.
+     *
+     * @return The number of slots of the frame.
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public double[] getX() {
+        return x;
+    }
+
+    public double[] getY() {
+        return y;
+    }
+
+    public double[] getZ() {
+        return z;
+    }
+
+    // Commands
+
+    /**
+     * Copy the last published frame, if it was not already read.
+     *
+     * @return True if a new frame was read, false if no frame was published
+     * since the last read.
+     * @throws IOException If the file of the buffer cannot be mapped again
+     *                     after it was enlarged.
+     */
+    public boolean read() throws IOException {
+        while (true) {
+            ByteBuffer buffer = source != null ? source.getBuffer() : mapping;
+
+            if (buffer == null)
+                return false;
+
+            long published = buffer.getLong(SharedPositionBuffer.PUBLISHED);
+            int capacity = buffer.getInt(SharedPositionBuffer.CAPACITY);
+
+            if (published == 0 || published == frame)
+                return false;
+
+            if (source == null && capacity != mappedCapacity) {
+                remap();
+                continue;
+            }
+
+            SharedPositionBuffer.loadFence();
+
+            int offset = SharedPositionBuffer.frameOffset(capacity, published);
+            long frameStep = buffer.getLong(offset + SharedPositionBuffer.FRAME_STEP);
+            int n = buffer.getInt(offset + SharedPositionBuffer.FRAME_SLOTS);
+
+            if (n < 0 || n > capacity)
+                n = 0;
+
+            if (x.length < n) {
+                int size = Math.max(n, x.length * 2);
+
+                x = new double[size];
+                y = new double[size];
+                z = new double[size];
+            }
+
+            getColumn(buffer, offset + SharedPositionBuffer.FRAME_HEADER_SIZE, x, n);
+            getColumn(buffer, offset + SharedPositionBuffer.FRAME_HEADER_SIZE + capacity * 8, y, n);
+            getColumn(buffer, offset + SharedPositionBuffer.FRAME_HEADER_SIZE + capacity * 16, z, n);
+
+            SharedPositionBuffer.loadFence();
+
+            if (buffer.getLong(SharedPositionBuffer.WRITING) <= published + 1) {
+                frame = published;
+                step = frameStep;
+                slotCount = n;
+                return true;
+            }
+        }
+    }
+
+    protected static void getColumn(ByteBuffer buffer, int offset, double[] values, int n) {
+        ((ByteBuffer) buffer.duplicate().position(offset)).asDoubleBuffer().get(values, 0, n);
+    }
+
+    protected void remap() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+
+            if (channel.size() < SharedPositionBuffer.HEADER_SIZE)
+                throw new IOException("not a position buffer: " + fileName);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SharedPositionBuffer.HEADER_SIZE);
+
+            if (header.getInt(0) != SharedPositionBuffer.MAGIC)
+                throw new IOException("not a position buffer: " + fileName);
+
+            if (header.getInt(4) != SharedPositionBuffer.VERSION)
+                throw new IOException(String.format("unsupported position buffer version %d", header.getInt(4)));
+
+            int capacity = header.getInt(SharedPositionBuffer.CAPACITY);
+            long size = SharedPositionBuffer.size(capacity);
+
+            if (channel.size() < size)
+                throw new IOException("truncated position buffer: " + fileName);
+
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mappedCapacity = capacity;
+        } finally {
+            file.close();
+        }
+    }
+}
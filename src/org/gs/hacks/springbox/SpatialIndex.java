@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.miv.pherd.geom.Point3;
+
+/**
+ * The spatial index used by a {@link SpringBox} to compute the repulsion of
+ * the nodes when the quality is not the highest, see
+ * {@link SpringBox#setSpatialIndex(SpatialIndex)}.
+ *
+ * <p>
+ * The index is updated once per step, before the displacements are computed.
+ * During the displacement phase it is only read, possibly by several threads
+ * at once.
+ * </p>
+ */
+public interface SpatialIndex {
+    /**
+     * The name of the index, as given to the layout.spatial-index attribute.
+     *
+     * @return The name.
+     */
+    String getName();
+
+    /**
+     * True if the n-tree of the particle box must follow the moves of the
+     * nodes. When false, the particles stay in the cell where they were
+     * inserted and the tree is never re-divided.
+     *
+     * @return True if the index reads the n-tree.
+     */
+    boolean usesTree();
+
+    /**
+     * The number of levels of the index.
+     *
+     * @return The depth.
+     */
+    int getDepth();
+
+    /**
+     * The number of cells of the index.
+     *
+     * @return The cell count.
+     */
+    int getCellCount();
+
+    /**
+     * The lowest point of the space holding the nodes.
+     *
+     * @return The point, not to be modified.
+     */
+    Point3 getLowestPoint();
+
+    /**
+     * The highest point of the space holding the nodes.
+     *
+     * @return The point, not to be modified.
+     */
+    Point3 getHighestPoint();
+
+    /**
+     * Index the current positions of the nodes.
+     */
+    void update();
+
+    /**
+     * Add the repulsion of the other nodes to the displacement of a node.
+     *
+     * @param node The node.
+     * @param acc  The accumulator of the current worker.
+     */
+    void repulsion(NodeParticle node, StepAccumulator acc);
+
+    /**
+     * Wake up the nodes sharing the cell of a node.
+     *
+     * @param node The node.
+     */
+    void wakeCellMates(NodeParticle node);
+}
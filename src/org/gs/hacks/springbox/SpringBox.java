@@ -7,15 +7,19 @@ package org.gs.hacks.springbox;
 import org.graphstream.stream.SourceBase;
 import org.graphstream.ui.geom.Point3;
 import org.graphstream.ui.layout.Layout;
-import org.miv.pherd.ParticleBox;
+import org.miv.pherd.IdAlreadyInUseException;
 import org.miv.pherd.ParticleBoxListener;
 import org.miv.pherd.ntree.*;
 
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * An implementation of spring algorithms to layout a graph.
@@ -58,6 +62,48 @@ import java.util.Random;
  * Therefore one can consider the layout stable at a lower value. The
  * default is 0.9. You can fix it with this attribute.</li>
  * </ul>
+ * The following attributes, put on the graph, control how a step is run :
+ * <ul>
+ * <li>layout.bulk-positions : if true, the positions are only published to
+ * the {@link PositionsListener}s, once per step, instead of one "xyz"
+ * attribute event per moved node. See {@link #setBulkPositions(boolean)}.</li>
+ * <li>layout.parallelism : the number of threads used to compute the node
+ * displacements (default 1, the step is computed in the calling thread).</li>
+ * <li>layout.multipole-order : 0 (default) to approximate the cells outside
+ * the view zone by their barycenter, 1 to open the cells with the theta
+ * criterion only, 2 to also use the quadrupole moments of the cells. See
+ * {@link #setMultipoleOrder(int)}.</li>
+ * <li>layout.theta : the Barnes-Hut opening threshold (default 0.7).</li>
+ * <li>layout.spatial-index : "ntree" (default) to compute the repulsion with
+ * the n-tree of the particle box, "grid" to use a {@link UniformGrid}, which
+ * does not maintain the tree. See {@link #setSpatialIndex(SpatialIndex)}.</li>
+ * <li>layout.deterministic : a number used as seed, or true, to make the
+ * layout only depend on the seed and on the sequence of events, whatever the
+ * parallelism, see {@link #setDeterministic(boolean)}.</li>
+ * <li>layout.output-stats : a file name, or true for "springBox.log", to
+ * log the statistics of each step in a {@link TelemetryLog}, null or false to
+ * stop logging. The log is decoded by {@link TelemetryReader}.</li>
+ * <li>layout.output-node-stats : a number N to also log one node out of N at
+ * each step, true to log all the nodes.</li>
+ * <li>layout.metrics : a name, or true, to publish the per-phase timings and
+ * the counters of the steps as a JMX MBean, see {@link LayoutMetrics}, null
+ * or false to remove it.</li>
+ * <li>layout.move-epsilon : the distance a node must move from its last
+ * published position to be published again (default 0, every move is
+ * published), see {@link #setMoveEpsilon(double)}.</li>
+ * <li>layout.send-move-events-every : publish the positions only every N
+ * steps (default 1).</li>
+ * <li>layout.position-buffer : a file name, or true, to write the positions
+ * of all the nodes at the end of each step in a {@link SharedPositionBuffer},
+ * mapped in the file or off the heap, null or false to stop.</li>
+ * <li>layout.coalesce-events : if true, the changes of the graph received
+ * between two steps are folded and applied at the start of the next step,
+ * see {@link #setCoalesceEvents(boolean)}.</li>
+ * <li>layout.active-set : if true, the nodes that stay settled are put to
+ * sleep and no more recomputed, see {@link #setActiveSet(boolean)}. The
+ * layout.sleep-threshold, layout.sleep-steps and layout.wake-threshold
+ * attributes tune it.</li>
+ * </ul>
  */
 public class SpringBox extends SourceBase implements Layout, ParticleBoxListener {
     // Attributes -- Data
@@ -68,13 +114,25 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
      * here to break the O(n^2) complexity into something that is closer to O(n
      * log n).
      */
-    protected ParticleBox nodes;
+    protected SpringParticleBox nodes;
 
     /**
      * The set of edges.
      */
     protected HashMap<String, EdgeSpring> edges = new HashMap<String, EdgeSpring>();
 
+    /**
+     * The edges, indexed by their {@link EdgeSpring#slot}. Only the first
+     * {@link #edgeSlotCount} entries are valid, an edge being removed by
+     * moving the last one in its place.
+     */
+    protected EdgeSpring[] edgeSlots = new EdgeSpring[64];
+
+    /**
+     * The number of valid entries in {@link #edgeSlots}.
+     */
+    protected int edgeSlotCount = 0;
+
     /**
      * Used to avoid stabilising if an event occurred.
      */
@@ -95,15 +153,98 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
      */
     protected Point3 hi = new Point3(1, 1, 1);
     /**
-     * Output stream for statistics if in debug mode.
+     * The log of the statistics, null if not logging.
+     */
+    protected TelemetryLog telemetry;
+
+    /**
+     * The off-heap copy of the positions written at each step, null if none.
+     */
+    protected SharedPositionBuffer positionBuffer;
+
+    /**
+     * The identifier last logged for each slot, to log the name records.
+     */
+    protected String[] telemetryIds = new String[0];
+
+    /**
+     * The timings and counters published through JMX, null if not measured.
+     */
+    protected LayoutMetrics metrics;
+
+    /**
+     * The snapshot giving the position of the nodes added to the layout, null
+     * if none, see {@link #restoreSnapshot(LayoutSnapshot)}.
      */
-    protected PrintStream statsOut;
+    protected LayoutSnapshot snapshot;
+
+    /**
+     * The changes of the graph waiting for the next step, in coalescing mode.
+     */
+    protected ChangeSet changes = new ChangeSet();
 
     /**
      * Energy, and the history of energies.
      */
     protected Energies energies = new Energies();
 
+    /**
+     * Decides when the layout is stable.
+     */
+    protected ConvergenceDetector convergence = new ConvergenceDetector();
+
+    /**
+     * The per-node state of the layout, indexed by the slot of each node.
+     */
+    protected ParticleStore store = new ParticleStore();
+
+    /**
+     * The slots of the nodes that moved since the positions were last
+     * published. Only the first {@link #changedCount} entries are valid.
+     */
+    protected int[] changedSlots = new int[64];
+
+    /**
+     * The number of valid entries in {@link #changedSlots}.
+     */
+    protected int changedCount = 0;
+
+    /**
+     * The listeners receiving the positions once per step.
+     */
+    protected ArrayList<PositionsListener> positionsListeners = new ArrayList<PositionsListener>();
+
+    /**
+     * Counter of the passes of {@link #indexCells()}.
+     */
+    protected int indexPass = 0;
+
+    /**
+     * Accumulator used when the step is computed in the calling thread.
+     */
+    protected StepAccumulator accumulator = new StepAccumulator();
+
+    /**
+     * The fork/join computation of a step, created with the pool.
+     */
+    protected ParallelStep parallelStep;
+
+    /**
+     * The pool running the parallel steps, null if the step is serial.
+     */
+    protected ForkJoinPool pool;
+
+    /**
+     * The index used to compute the repulsion, the n-tree by default.
+     */
+    protected SpatialIndex spatialIndex;
+
+    /**
+     * The all-pairs repulsion kernel, used at the highest quality, created
+     * when first needed.
+     */
+    protected ExactRepulsion exactRepulsion;
+
     // Attributes -- Parameters
 
     /**
@@ -138,6 +279,15 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
      */
     protected double theta = .7f;
 
+    /**
+     * The order of the approximation of far cells. With 0 the cells outside
+     * the view zone are approximated by their barycenter. With 1 the view
+     * zone is not used and the cells are opened according to the theta
+     * criterion only, with 2 the quadrupole moments of the cells are also
+     * used.
+     */
+    protected int multipoleOrder = 0;
+
     /**
      * The quality level.
      */
@@ -148,6 +298,17 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
      */
     protected int nodesPerCell = 10;
 
+    /**
+     * Number of threads computing the node displacements.
+     */
+    protected int parallelism = 1;
+
+    /**
+     * Below this number of nodes a step is always computed in the calling
+     * thread, the fork/join overhead being larger than the gain.
+     */
+    protected int parallelThreshold = 1000;
+
     // Attributes -- Statistics
 
     /**
@@ -160,6 +321,33 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
      */
     protected long lastStepTime;
 
+    /**
+     * The slot of the next node whose displacement is computed by the sliced
+     * step in progress, -1 if no step is in progress, see
+     * {@link #compute(long)}.
+     */
+    protected int sliceCursor = -1;
+
+    /**
+     * True if the exact repulsion was prepared for the sliced step in
+     * progress.
+     */
+    protected boolean sliceExact = false;
+
+    /**
+     * The fixed size chunks summing the values of the sliced step in
+     * progress, null if no step is in progress.
+     */
+    protected ParallelStep sliceChunks;
+
+    /**
+     * The time spent by the sliced step in progress, indexing and computing
+     * the displacements.
+     */
+    protected long sliceIndexNanos;
+
+    protected long sliceDisplacementNanos;
+
     /**
      * The diagonal of the graph area at the current step.
      */
@@ -180,6 +368,22 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
      */
     protected int nodeMoveCount;
 
+    /**
+     * The depth of the n-tree at the current step.
+     */
+    protected int treeDepth;
+
+    /**
+     * The number of cells of the n-tree at the current step.
+     */
+    protected int cellCount;
+
+    /**
+     * The number of move events sent by the last publication of the
+     * positions, one per moved node and one per positions listener.
+     */
+    protected int eventCount;
+
     // Attributes -- Settings
 
     /**
@@ -193,27 +397,89 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
     protected boolean sendNodeInfos = false;
 
     /**
-     * If true a file is created to output the statistics of the elastic box
-     * algorithm.
+     * If greater than zero, the state of one node out of this number is logged
+     * at each step, in the telemetry log. The sampled nodes change at each
+     * step.
+     */
+    protected int nodeSampling = 0;
+
+    /**
+     * If greater than one, move events are sent only every N steps.
      */
-    protected boolean outputStats = false;
+    protected int sendMoveEventsEvery = 1;
 
     /**
-     * If true a file is created for each node (!!!) and its movement statistics
-     * are logged.
+     * The distance a node must move away from its last published position to
+     * be published again, 0 to publish every move.
      */
-    protected boolean outputNodeStats = false;
+    protected double moveEpsilon = 0;
 
     /**
-     * If greater than one, move events are sent only every N steps.
+     * Was the layout stable at the last publication of the positions ?.
      */
-    protected int sendMoveEventsEvery = 1;
+    protected boolean publishedStable = false;
+
+    /**
+     * The slots of the moves held back by {@link #moveEpsilon} at the last
+     * publication.
+     */
+    protected int[] heldSlots = new int[64];
+
+    /**
+     * If true, the moves are only published to the positions listeners, and
+     * no "xyz" attribute event is sent to the sinks of the layout.
+     */
+    protected boolean bulkPositions = false;
 
     /**
      * The stabilisation limit of this algorithm.
      */
     protected double stabilizationLimit = 0.9;
 
+    /**
+     * If true, settled nodes are put to sleep and no more recomputed until
+     * something moves near them.
+     */
+    protected boolean activeSet = false;
+
+    /**
+     * A node whose displacement stays below this length is calm.
+     */
+    protected double sleepThreshold = 0.001;
+
+    /**
+     * Number of consecutive calm steps after which a node falls asleep.
+     */
+    protected int sleepSteps = 20;
+
+    /**
+     * A node whose displacement is larger than this length wakes its
+     * neighbours up.
+     */
+    protected double wakeThreshold = 0.01;
+
+    /**
+     * If true, the changes of the graph are applied at the start of the next
+     * step instead of when they are received.
+     */
+    protected boolean coalesceEvents = false;
+
+    /**
+     * If true, the layout is reproducible bit for bit, see
+     * {@link #setDeterministic(boolean)}.
+     */
+    protected boolean deterministic = false;
+
+    /**
+     * The seed of the initial positions of the nodes in deterministic mode.
+     */
+    protected long seed = 0;
+
+    /**
+     * The number of slots computed by each task of a step.
+     */
+    protected int chunkSize = 256;
+
     // Constructors
 
     public SpringBox() {
@@ -239,10 +505,11 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
             space = new QuadtreeCellSpace(new Anchor(-1, -1, -0.01f),
                     new Anchor(1, 1, 0.01f));
 
-        this.nodes = new ParticleBox(nodesPerCell, space,
-                new BarycenterCellData());
+        this.nodes = new SpringParticleBox(nodesPerCell, space,
+                new SpringCellData(), store);
 
         nodes.addParticleBoxListener(this);
+        spatialIndex = new NTreeIndex(this);
         setQuality(quality);
 
         // System.err.printf(
@@ -260,13 +527,13 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
     // Access
 
     public Point3 getLowPoint() {
-        org.miv.pherd.geom.Point3 p = nodes.getNTree().getLowestPoint();
+        org.miv.pherd.geom.Point3 p = spatialIndex.getLowestPoint();
         lo.set(p.x, p.y, p.z);
         return lo;
     }
 
     public Point3 getHiPoint() {
-        org.miv.pherd.geom.Point3 p = nodes.getNTree().getHighestPoint();
+        org.miv.pherd.geom.Point3 p = spatialIndex.getHighestPoint();
         hi.set(p.x, p.y, p.z);
         return hi;
     }
@@ -284,10 +551,11 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
     }
 
     public double getStabilization() {
-        if (lastElementCount == nodes.getParticleCount() + edges.size()) {
-            if (time > energies.getBufferSize())
-                return energies.getStabilization();
-        }
+        if (!changes.isEmpty())
+            return 0;
+
+        if (lastElementCount == nodes.getParticleCount() + edges.size())
+            return convergence.getStabilization();
 
         lastElementCount = nodes.getParticleCount() + edges.size();
 
@@ -298,6 +566,14 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
         return stabilizationLimit;
     }
 
+    public int getSendMoveEventsEvery() {
+        return sendMoveEventsEvery;
+    }
+
+    public double getMoveEpsilon() {
+        return moveEpsilon;
+    }
+
     public int getSteps() {
         return time;
     }
@@ -310,180 +586,1547 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
         return force;
     }
 
-    // Commands
-
-    public void setSendNodeInfos(boolean on) {
-        sendNodeInfos = on;
+    public int getMultipoleOrder() {
+        return multipoleOrder;
     }
 
-    public void setForce(double value) {
-        this.force = value;
+    public double getTheta() {
+        return theta;
     }
 
-    public void setStabilizationLimit(double value) {
-        this.stabilizationLimit = value;
-    }
+    /**
+     * The identifier of the node at the given slot, as used in the
+     * {@link PositionsListener} callbacks.
+     *
+     * @param slot The node slot.
+     * @return The node identifier, or null if the slot is free.
+     */
+    public String getNodeId(int slot) {
+        NodeParticle node = slot < store.getSlotCount() ? store.particles[slot] : null;
 
-    public void setQuality(double qualityLevel) {
-        quality = (int) qualityLevel;
+        return node != null ? (String) node.getId() : null;
+    }
 
-        switch (quality) {
-            case 0:
-                viewZone = k;
-                break;
-            case 1:
-                viewZone = 2 * k;
-                break;
-            case 2:
-                viewZone = 5 * k;
-                break;
-            case 3:
-                viewZone = 10 * k;
-                break;
-            case 4:
-                System.err.printf("viewZone = -1%n");
-                viewZone = -1;
-                break;
-            default:
-                System.err.printf("invalid quality level %d%n", (int) qualityLevel);
-                break;
-        }
+    /**
+     * The number of edges of the layout.
+     *
+     * @return The edge count.
+     */
+    public int getEdgeCount() {
+        return edgeSlotCount;
     }
 
-    public void clear() {
-        energies.clearEnergies();
-        nodes.removeAllParticles();
-        edges.clear();
-        nodeMoveCount = 0;
-        lastStepTime = 0;
+    /**
+     * An edge of the layout, by index. The index of an edge changes when
+     * another edge is removed.
+     *
+     * @param slot The index, in [0..getEdgeCount()[.
+     * @return The edge.
+     */
+    public EdgeSpring getEdge(int slot) {
+        return edgeSlots[slot];
     }
 
-    public void compute() {
-        long t1;
+    public boolean isBulkPositions() {
+        return bulkPositions;
+    }
 
-        computeArea();
+    public boolean isActiveSet() {
+        return activeSet;
+    }
 
-        maxMoveLength = Double.MIN_VALUE;
-        k = 1f;
-        t1 = System.currentTimeMillis();
-        nodeMoveCount = 0;
-        avgLength = 0;
-        //for( Edge edge : edges.values() ) edge.attraction();
-        nodes.step();
+    /**
+     * The number of nodes that are still recomputed at each step. Without the
+     * active set this is the node count.
+     *
+     * @return The number of nodes that are not asleep.
+     */
+    public int getAwakeNodeCount() {
+        return store.getAwakeCount();
+    }
 
-        if (nodeMoveCount > 0)
-            avgLength /= nodeMoveCount;
+    public int getParallelism() {
+        return parallelism;
+    }
 
-        // Ready for the next step.
+    public boolean isCoalesceEvents() {
+        return coalesceEvents;
+    }
 
-        getLowPoint();
-        getHiPoint();
-        energies.storeEnergy();
-        printStats();
-        time++;
-        lastStepTime = System.currentTimeMillis() - t1;
+    /**
+     * True if a step started by {@link #compute(long)} is not finished.
+     *
+     * @return True if a sliced step is in progress.
+     */
+    public boolean isStepInProgress() {
+        return sliceCursor >= 0;
     }
 
     /**
-     * Output some statistics on the layout process. This method is active only
-     * if {@link #outputStats} is true.
+     * The changes of the graph waiting for the next step, in coalescing mode.
+     *
+     * @return The pending changes.
      */
-    protected void printStats() {
-        if (outputStats) {
-            if (statsOut == null) {
-                try {
-                    statsOut = new PrintStream("springBox.dat");
-                    statsOut.printf("# stabilization nodeMoveCount energy energyDiff maxMoveLength avgLength area%n");
-                    statsOut.flush();
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
-            }
+    public ChangeSet getPendingChanges() {
+        return changes;
+    }
 
-            if (statsOut != null) {
-                double energyDiff = energies.getEnergy()
-                        - energies.getPreviousEnergyValue(30);
+    public SpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
 
-                statsOut.printf(Locale.US, "%f %d %f %f %f %f %f%n",
-                        getStabilization(), nodeMoveCount,
-                        energies.getEnergy(), energyDiff, maxMoveLength,
-                        avgLength, area);
-                statsOut.flush();
-            }
-        }
+    public boolean isDeterministic() {
+        return deterministic;
     }
 
-    protected void computeArea() {
-        area = getHiPoint().distance(getLowPoint());
+    public long getSeed() {
+        return seed;
     }
 
-    public void shake() {
-        energies.clearEnergies();
+    /**
+     * A random coordinate for a new node, in [-k..k]. In deterministic mode it
+     * only depends on the seed, on the node identifier and on the axis, else
+     * it is drawn from the random number generator of the layout.
+     *
+     * @param id   The node identifier.
+     * @param axis The axis, 0 to 2.
+     * @return The coordinate.
+     */
+    protected double randomCoordinate(String id, int axis) {
+        double r;
+
+        if (deterministic) {
+            long h = 0xcbf29ce484222325L ^ seed;
+
+            for (int i = 0; i < id.length(); i++)
+                h = (h ^ id.charAt(i)) * 0x100000001b3L;
+
+            h += (axis + 1) * 0x9e3779b97f4a7c15L;
+            h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+            h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+            h = h ^ (h >>> 31);
+            r = (h >>> 11) * 0x1.0p-53;
+        } else {
+            r = random.nextDouble();
+        }
+
+        return (r * 2 * k) - k;
     }
 
-    // Graph representation
+    public TelemetryLog getTelemetry() {
+        return telemetry;
+    }
 
-    protected void addNode(String id) {
-        nodes.addParticle(new NodeParticle(this, id));
+    public LayoutMetrics getMetrics() {
+        return metrics;
     }
 
-    public void moveNode(String id, double dx, double dy, double dz) {
-        NodeParticle node = (NodeParticle) nodes.getParticle(id);
+    public SharedPositionBuffer getPositionBuffer() {
+        return positionBuffer;
+    }
 
-        if (node != null) {
-            node.move(dx, dy, dz);
-            energies.clearEnergies();
-        }
+    /**
+     * The detector deciding when the layout is stable, it can be tuned.
+     *
+     * @return The convergence detector.
+     */
+    public ConvergenceDetector getConvergenceDetector() {
+        return convergence;
     }
 
-    public void freezeNode(String id, boolean on) {
-        NodeParticle node = (NodeParticle) nodes.getParticle(id);
+    // Commands
 
-        if (node != null) {
-            node.frozen = on;
-        }
+    public void setSendNodeInfos(boolean on) {
+        sendNodeInfos = on;
     }
 
-    protected void setNodeWeight(String id, double weight) {
-        NodeParticle node = (NodeParticle) nodes.getParticle(id);
+    public void setForce(double value) {
+        finishStep();
+        this.force = value;
+    }
 
-        if (node != null)
-            node.setWeight(weight);
+    public void setStabilizationLimit(double value) {
+        this.stabilizationLimit = value;
     }
 
-    protected void removeNode(String id) {
-        NodeParticle node = (NodeParticle) nodes.removeParticle(id);
+    /**
+     * Only publish the positions every given number of steps. The moves of
+     * the other steps are not lost, they are published with the next ones.
+     *
+     * @param steps The period, 1 to publish at each step.
+     */
+    public void setSendMoveEventsEvery(int steps) {
+        sendMoveEventsEvery = Math.max(1, steps);
+    }
 
-        if (node != null) {
-            node.removeNeighborEdges();
-        }
+    /**
+     * Only publish the position of a node once it moved farther than the
+     * given distance from its last published position. The smaller moves are
+     * held back and published when they add up to more than the distance, or
+     * when the layout becomes stable, see {@link #flushPositions()}. This
+     * applies to the "xyz" events and to the positions listeners.
+     *
+     * @param epsilon The distance, in graph units, 0 to publish every move.
+     */
+    public void setMoveEpsilon(double epsilon) {
+        moveEpsilon = Math.max(0, epsilon);
+        store.keepSentPositions(moveEpsilon > 0);
     }
 
-    protected void addEdge(String id, String from, String to) {
-        NodeParticle n0 = (NodeParticle) nodes.getParticle(from);
-        NodeParticle n1 = (NodeParticle) nodes.getParticle(to);
+    /**
+     * Set how far cells of the n-tree are approximated. Order 0 (the default)
+     * explores exhaustively the cells in the view zone given by the quality
+     * and uses the barycenter of the other cells. Orders 1 and 2 drop the view
+     * zone and only open a cell when its size seen from the node is larger
+     * than theta, the cell being approximated by its weighted center (order
+     * 1) or by its weighted center and quadrupole moments (order 2). The
+     * quadrupole keeps the same accuracy with a larger theta, and therefore
+     * less interactions.
+     *
+     * @param order The multipole order, in [0..2].
+     */
+    public void setMultipoleOrder(int order) {
+        order = order > 2 ? 2 : order;
+        order = order < 0 ? 0 : order;
 
-        if (n0 != null && n1 != null) {
-            EdgeSpring e = new EdgeSpring(id, n0, n1);
-            EdgeSpring o = edges.put(id, e);
+        finishStep();
+        multipoleOrder = order;
+    }
 
-            if (o != null) {
-                // throw new SingletonException( "edge '"+id+"' already exists");
-                System.err.printf("edge '%s' already exists%n", id);
-            } else {
-                n0.registerEdge(e);
-                n1.registerEdge(e);
+    /**
+     * Register a listener receiving the node positions once per step.
+     *
+     * @param listener The listener.
+     */
+    public void addPositionsListener(PositionsListener listener) {
+        positionsListeners.add(listener);
+    }
+
+    public void removePositionsListener(PositionsListener listener) {
+        positionsListeners.remove(listener);
+    }
+
+    /**
+     * Choose how the moves are published. By default each moved node sends an
+     * "xyz" attribute event to the sinks of the layout, and the positions
+     * listeners also receive the moves once per step. In bulk mode only the
+     * positions listeners are notified. A sink that only understands attribute
+     * events can still be fed through a {@link PositionsEventAdapter}.
+     *
+     * @param on True to only publish the positions to the listeners.
+     */
+    public void setBulkPositions(boolean on) {
+        bulkPositions = on;
+    }
+
+    /**
+     * Enable or disable the active set. When enabled, a node whose
+     * displacement stays below the sleep threshold during the given number of
+     * steps falls asleep : it keeps repulsing the others but its own forces
+     * are no more computed. It wakes up when a node connected to it, or in the
+     * same n-tree cell, moves more than the wake threshold, or when a graph
+     * event touches it. The cost of a step then follows the number of nodes
+     * that still move. Disabling the active set wakes all the nodes up.
+     *
+     * @param on True to put settled nodes to sleep.
+     */
+    public void setActiveSet(boolean on) {
+        finishStep();
+        activeSet = on;
+
+        if (!on)
+            store.wakeAll();
+    }
+
+    /**
+     * Set the displacement length under which a node is considered calm.
+     *
+     * @param value The sleep threshold.
+     */
+    public void setSleepThreshold(double value) {
+        sleepThreshold = value;
+    }
+
+    /**
+     * Set the number of consecutive calm steps before a node falls asleep.
+     *
+     * @param steps The number of steps, at least one.
+     */
+    public void setSleepSteps(int steps) {
+        sleepSteps = steps < 1 ? 1 : steps;
+    }
+
+    /**
+     * Set the displacement length above which a node wakes its neighbours.
+     *
+     * @param value The wake threshold.
+     */
+    public void setWakeThreshold(double value) {
+        wakeThreshold = value;
+    }
+
+    /**
+     * Set the log receiving the statistics of each step. The previous log, if
+     * any, is not closed.
+     *
+     * @param log The log, null to stop logging.
+     */
+    public void setTelemetry(TelemetryLog log) {
+        telemetry = log;
+        Arrays.fill(telemetryIds, null);
+    }
+
+    /**
+     * Set the metrics receiving the timings and counters of each step. They
+     * are not registered nor unregistered by the layout, see
+     * {@link #publishMetrics(String, boolean)}.
+     *
+     * @param metrics The metrics, null to stop measuring.
+     */
+    public void setMetrics(LayoutMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the buffer receiving the positions of all the nodes at the end of
+     * each step. The previous buffer, if any, is not closed.
+     *
+     * @param buffer The buffer, null to stop writing.
+     */
+    public void setPositionBuffer(SharedPositionBuffer buffer) {
+        positionBuffer = buffer;
+    }
+
+    /**
+     * Log the state of one node out of the given number at each step, in the
+     * telemetry log.
+     *
+     * @param every The sampling period, 0 to log no node.
+     */
+    public void setNodeSampling(int every) {
+        nodeSampling = every < 0 ? 0 : every;
+        store.keepEnergies(nodeSampling > 0);
+    }
+
+    /**
+     * Open or close the telemetry log of the layout.
+     *
+     * @param fileName The log file, null to close the current log.
+     */
+    protected void outputStats(String fileName) {
+        if (telemetry != null) {
+            try {
+                telemetry.close();
+            } catch (IOException e) {
+                System.err.printf("telemetry log: %s%n", e.getMessage());
+            }
+
+            setTelemetry(null);
+        }
+
+        if (fileName != null) {
+            try {
+                setTelemetry(new TelemetryLog(fileName));
+            } catch (IOException e) {
+                System.err.printf("cannot open the telemetry log '%s': %s%n", fileName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the positions in a new shared buffer, or stop writing them.
+     *
+     * @param fileName The file to map, null for a buffer off the heap.
+     * @param on       False to close the buffer.
+     */
+    protected void sharePositions(String fileName, boolean on) {
+        if (positionBuffer != null) {
+            positionBuffer.close();
+            positionBuffer = null;
+        }
+
+        if (on) {
+            int capacity = Math.max(64, store.getSlotCount());
+
+            try {
+                if (fileName != null)
+                    positionBuffer = new SharedPositionBuffer(fileName, capacity);
+                else
+                    positionBuffer = new SharedPositionBuffer(capacity);
+            } catch (IOException e) {
+                System.err.printf("cannot map the position buffer '%s': %s%n", fileName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Publish the metrics of the layout on the platform MBean server, or
+     * remove them.
+     *
+     * @param name The name of the MBean, null to generate one.
+     * @param on   False to remove the metrics.
+     */
+    protected void publishMetrics(String name, boolean on) {
+        if (metrics != null) {
+            metrics.unregister();
+            metrics = null;
+        }
+
+        if (on) {
+            LayoutMetrics published = new LayoutMetrics();
+
+            try {
+                published.register(name);
+                metrics = published;
+            } catch (JMException e) {
+                System.err.printf("cannot publish the layout metrics: %s%n", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Save the positions, weights and frozen flags of the nodes, and the
+     * energy history, see {@link LayoutSnapshot}.
+     *
+     * @param fileName The snapshot file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveSnapshot(String fileName) throws IOException {
+        LayoutSnapshot.save(this, fileName);
+    }
+
+    /**
+     * Read a snapshot and warm start the layout from it, see
+     * {@link #restoreSnapshot(LayoutSnapshot)}.
+     *
+     * @param fileName The snapshot file.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public void loadSnapshot(String fileName) throws IOException {
+        restoreSnapshot(LayoutSnapshot.load(fileName));
+    }
+
+    /**
+     * Warm start the layout from a snapshot. The nodes of the snapshot already
+     * in the layout are moved to their saved position, the others are placed
+     * there when they are added, and they are not moved next to their first
+     * neighbour. The nodes that are not in the snapshot are placed as usual.
+     * The energy history and the convergence state are restored, but adding
+     * the nodes and edges afterwards still perturbs the convergence.
+     *
+     * @param snapshot The snapshot, null to forget the current one.
+     */
+    public void restoreSnapshot(LayoutSnapshot snapshot) {
+        finishStep();
+        this.snapshot = snapshot;
+
+        if (snapshot == null)
+            return;
+
+        NodeParticle[] particles = store.particles;
+        int n = store.getSlotCount();
+
+        for (int i = 0; i < n; i++) {
+            if (particles[i] != null && restorePosition(particles[i]))
+                nodeMoved(i);
+        }
+
+        snapshot.restoreEnergies(energies, convergence);
+        store.wakeAll();
+    }
+
+    /**
+     * Place a node as saved in the snapshot being restored, if any.
+     *
+     * @param node The node.
+     * @return True if the node was in the snapshot.
+     */
+    protected boolean restorePosition(NodeParticle node) {
+        LayoutSnapshot saved = snapshot;
+
+        if (saved == null)
+            return false;
+
+        int i = saved.take((String) node.getId());
+
+        if (saved.getPendingCount() == 0)
+            snapshot = null;
+
+        if (i < 0)
+            return false;
+
+        node.setPosition(saved.x[i], saved.y[i], saved.z[i]);
+        node.setWeight(saved.weight[i]);
+        node.setFrozen(saved.frozen[i]);
+        node.placed = true;
+
+        return true;
+    }
+
+    /**
+     * Set the Barnes-Hut opening threshold. A cell whose size divided by its
+     * distance to the node is larger than theta is opened.
+     *
+     * @param value The threshold, strictly positive.
+     */
+    public void setTheta(double value) {
+        finishStep();
+
+        if (value > 0)
+            theta = value;
+    }
+
+    /**
+     * Set the number of threads used to compute the node displacements. With
+     * a value of one (the default) the step is computed in the calling thread.
+     * The parallel step gives the same layout and energy as the serial one :
+     * the values of a step are always summed by chunks of fixed size, reduced
+     * in slot order, whatever the number of threads.
+     *
+     * @param threads The number of threads, at least one.
+     */
+    public void setParallelism(int threads) {
+        threads = threads < 1 ? 1 : threads;
+
+        if (threads != parallelism) {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+                parallelStep = null;
+            }
+
+            parallelism = threads;
+
+            if (parallelism > 1) {
+                pool = new ForkJoinPool(parallelism);
+                parallelStep = new ParallelStep();
+            }
+        }
+    }
+
+    /**
+     * Make the layout reproducible bit for bit : with the same seed and the
+     * same sequence of events, the positions are the same whatever the
+     * parallelism and the machine. The nodes are moved in the order of their
+     * slots, the random position of a new node is derived from the seed and
+     * its identifier instead of being drawn in turn from the random number
+     * generator. Turning it on draws a seed from the random number generator, unless a
+     * seed is set afterwards with {@link #setSeed(long)}.
+     *
+     * @param on True to turn the deterministic mode on.
+     */
+    public void setDeterministic(boolean on) {
+        if (on && !deterministic)
+            seed = random.nextLong();
+
+        deterministic = on;
+    }
+
+    /**
+     * Set the seed of the initial positions of the nodes in deterministic
+     * mode.
+     *
+     * @param seed The seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Fold the changes of the graph received between two steps and apply them
+     * at the start of the next step, instead of applying each event when it is
+     * received. The events are still forwarded to the sinks of the layout
+     * when they are received. This concerns the element events, the
+     * layout.weight and layout.ignored attributes, and the calls to
+     * {@link #moveNode(String, double, double, double)} and
+     * {@link #freezeNode(String, boolean)}. See {@link ChangeSet}. Turning it
+     * off applies the pending changes.
+     *
+     * @param on True to coalesce the events.
+     */
+    public void setCoalesceEvents(boolean on) {
+        coalesceEvents = on;
+
+        if (!on && sliceCursor < 0)
+            applyChanges();
+    }
+
+    /**
+     * Change the index used to compute the repulsion when the quality is not
+     * the highest. When the index does not use the n-tree of the particle
+     * box, the tree is no more updated as the nodes move ; it is brought up
+     * to date again when an index using it is set back.
+     *
+     * @param index The index, see {@link NTreeIndex} and {@link UniformGrid}.
+     */
+    public void setSpatialIndex(SpatialIndex index) {
+        finishStep();
+        spatialIndex = index;
+        nodes.setMaintainTree(index.usesTree());
+    }
+
+    /**
+     * Change the index used to compute the repulsion by its name.
+     *
+     * @param name "ntree" or "grid".
+     */
+    public void setSpatialIndex(String name) {
+        if (NTreeIndex.NAME.equals(name))
+            setSpatialIndex(new NTreeIndex(this));
+        else if (UniformGrid.NAME.equals(name))
+            setSpatialIndex(new UniformGrid(this));
+        else
+            System.err.printf("unknown spatial index '%s'%n", name);
+    }
+
+    public void setQuality(double qualityLevel) {
+        finishStep();
+        quality = (int) qualityLevel;
+
+        switch (quality) {
+            case 0:
+                viewZone = k;
+                break;
+            case 1:
+                viewZone = 2 * k;
+                break;
+            case 2:
+                viewZone = 5 * k;
+                break;
+            case 3:
+                viewZone = 10 * k;
+                break;
+            case 4:
+                System.err.printf("viewZone = -1%n");
+                viewZone = -1;
+                break;
+            default:
+                System.err.printf("invalid quality level %d%n", (int) qualityLevel);
+                break;
+        }
+    }
+
+    public void clear() {
+        energies.clearEnergies();
+        convergence.reset();
+        nodes.removeAllParticles();
+        store.clear();
+        changedCount = 0;
+        edges.clear();
+        Arrays.fill(edgeSlots, 0, edgeSlotCount, null);
+        edgeSlotCount = 0;
+        nodeMoveCount = 0;
+        lastStepTime = 0;
+        sliceCursor = -1;
+        sliceChunks = null;
+    }
+
+    public void compute() {
+        if (sliceCursor >= 0) {
+            compute(Long.MAX_VALUE);
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        long indexed, displaced;
+
+        beginStep();
+        indexed = System.nanoTime();
+        computeDisplacements();
+        displaced = System.nanoTime();
+        endStep(indexed - t0, displaced - indexed);
+    }
+
+    /**
+     * Run a part of a step, within a time budget. The nodes are taken in turn,
+     * from the one following the last node of the previous call, and the step
+     * ends once all of them were computed. This keeps the caller's frame
+     * deadline whatever the size of the graph, a step spreading over several
+     * calls.
+     *
+     * <p>
+     * The displacements of a step are all computed from the positions at its
+     * start, and only applied at its end, so a step gives the same layout as
+     * {@link #compute()}, however it is sliced. In the meantime the changes of
+     * the graph are kept for the next step, as in coalescing mode. A change of
+     * the settings, a bulk load or a snapshot restored would not match the
+     * indexing of the step : they finish it first, in one go. A sliced step
+     * runs in the calling thread.
+     * </p>
+     *
+     * <p>
+     * Each call does at least one thing : index the nodes at the start of a
+     * step, compute one node, or apply the displacements at the end of the
+     * step. The indexing and the end of a step are not divided, a call lasts
+     * at least as long as them.
+     * </p>
+     *
+     * @param nanosBudget The time the call may take, in nanoseconds.
+     * @return True if the call finished a step.
+     */
+    public boolean compute(long nanosBudget) {
+        long t0 = System.nanoTime();
+
+        if (sliceCursor < 0) {
+            beginStep();
+            accumulator.reset();
+
+            if (parallelStep == null)
+                parallelStep = new ParallelStep();
+
+            sliceChunks = parallelStep;
+            sliceChunks.prepareFixed(store, chunkSize);
+
+            sliceCursor = 0;
+            sliceExact = false;
+            sliceIndexNanos = System.nanoTime() - t0;
+            sliceDisplacementNanos = 0;
+
+            if (sliceIndexNanos >= nanosBudget)
+                return false;
+        }
+
+        NodeParticle[] particles = store.particles;
+        int n = store.getSlotCount();
+
+        if (sliceCursor < n) {
+            long t1 = System.nanoTime();
+
+            if (viewZone < 0 && !sliceExact)
+                prepareExactRepulsion();
+
+            // The values are summed by chunks, as by computeDisplacements().
+            do {
+                int slot = sliceCursor++;
+                NodeParticle node = particles[slot];
+
+                if (node != null) {
+                    if (viewZone < 0)
+                        computeExactRepulsion(slot);
+
+                    node.computeDisplacement(sliceChunks.getAccumulator(slot));
+                }
+            } while (sliceCursor < n && System.nanoTime() - t0 < nanosBudget);
+
+            sliceDisplacementNanos += System.nanoTime() - t1;
+
+            if (sliceCursor < n || System.nanoTime() - t0 >= nanosBudget)
+                return false;
+        }
+
+        sliceCursor = -1;
+        sliceChunks.reduce(accumulator);
+        sliceChunks = null;
+
+        reduceDisplacements();
+        endStep(sliceIndexNanos, sliceDisplacementNanos);
+
+        return true;
+    }
+
+    /**
+     * Finish the sliced step in progress, if any, before a change that the
+     * rest of the step would not expect, the step being indexed and partly
+     * computed with the former settings and nodes.
+     */
+    protected void finishStep() {
+        if (sliceCursor >= 0)
+            compute(Long.MAX_VALUE);
+    }
+
+    /**
+     * Start a step : apply the pending changes and index the nodes.
+     */
+    protected void beginStep() {
+        applyChanges();
+        computeArea();
+
+        maxMoveLength = Double.MIN_VALUE;
+        k = 1f;
+        nodeMoveCount = 0;
+        avgLength = 0;
+        //for( Edge edge : edges.values() ) edge.attraction();
+        spatialIndex.update();
+    }
+
+    /**
+     * End a step whose displacements were computed : move the nodes, measure
+     * the convergence and publish the positions.
+     *
+     * @param index        The time spent indexing the nodes.
+     * @param displacement The time spent computing the displacements.
+     */
+    protected void endStep(long index, long displacement) {
+        long t0 = System.nanoTime();
+        long integrated, published, step;
+
+        if (activeSet)
+            updateActiveSet();
+
+        nodes.step();
+
+        if (nodeMoveCount > 0)
+            avgLength /= nodeMoveCount;
+
+        getLowPoint();
+        getHiPoint();
+        energies.storeEnergy();
+        convergence.step(energies.getEnergy(), maxMoveLength);
+        integrated = System.nanoTime();
+
+        // Ready for the next step. The convergence is known, so that the
+        // moves held back are flushed as soon as the layout is stable.
+
+        publishPositions();
+
+        if (positionBuffer != null)
+            positionBuffer.write(store, time);
+
+        published = System.nanoTime();
+        step = index + displacement + published - t0;
+        logStats(step);
+
+        if (metrics != null)
+            recordMetrics(index, displacement, integrated - t0, published - integrated, step);
+
+        time++;
+        lastStepTime = step / 1000000;
+    }
+
+    /**
+     * Record the step in the metrics. The division check of the n-tree, done
+     * by the particle box step, is moved from the integration to the tree
+     * update, and the displacement time is shared between the repulsion and
+     * the attraction in proportion of the time measured by the workers.
+     *
+     * @param index        The time spent indexing the n-tree cells.
+     * @param displacement The time spent computing the displacements.
+     * @param integration  The time spent by the particle box step.
+     * @param dispatch     The time spent publishing the positions.
+     * @param step         The whole step duration.
+     */
+    protected void recordMetrics(long index, long displacement, long integration, long dispatch, long step) {
+        long division = nodes.getDivisionNanos();
+        long measured = accumulator.repulsionNanos + accumulator.attractionNanos;
+        long repulsion = measured > 0 ? (long) (displacement * ((double) accumulator.repulsionNanos / measured)) : displacement;
+
+        metrics.record(step, index + division, repulsion, displacement - repulsion,
+                integration - division, dispatch, accumulator.direct,
+                accumulator.approximated, eventCount, spatialIndex.getDepth(), spatialIndex.getCellCount(),
+                store.getCount());
+    }
+
+    /**
+     * Apply the changes of the graph received since the last step, in
+     * coalescing mode.
+     */
+    protected void applyChanges() {
+        if (!changes.isEmpty())
+            changes.apply(this);
+    }
+
+    /**
+     * Compute the displacement of every node, in the calling thread or with
+     * the fork/join pool, then reduce the accumulated values into the box.
+     * The n-tree cells must have been indexed. The particle box step that
+     * follows only applies the displacements.
+     */
+    protected void computeDisplacements() {
+        accumulator.reset();
+
+        if (viewZone < 0)
+            computeExactRepulsion();
+
+        if (parallelStep == null)
+            parallelStep = new ParallelStep();
+
+        // The values are summed by chunks of fixed size, reduced in slot
+        // order, so that the energy does not depend on the number of threads.
+        parallelStep.prepareFixed(store, chunkSize);
+
+        if (pool != null && store.getCount() >= parallelThreshold)
+            pool.invoke(parallelStep);
+        else
+            parallelStep.computeInCallingThread();
+
+        parallelStep.reduce(accumulator);
+        reduceDisplacements();
+    }
+
+    /**
+     * Reduce the values accumulated by the displacements into the box.
+     */
+    protected void reduceDisplacements() {
+        energies.accumulateEnergy(accumulator.energy);
+        avgLength += accumulator.lengthSum;
+
+        if (accumulator.maxMoveLength > maxMoveLength)
+            maxMoveLength = accumulator.maxMoveLength;
+    }
+
+    /**
+     * Compute the exact repulsion of all the nodes, with the pool if the graph
+     * is large enough. The time is counted as repulsion in the metrics.
+     */
+    protected void computeExactRepulsion() {
+        long t0 = metrics != null ? System.nanoTime() : 0;
+
+        if (exactRepulsion == null)
+            exactRepulsion = new ExactRepulsion();
+
+        exactRepulsion.compute(store, is3D, K2,
+                store.getCount() >= parallelThreshold ? pool : null, parallelism * 4);
+
+        if (metrics != null)
+            accumulator.repulsionNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Pack the nodes for the exact repulsion of a sliced step.
+     */
+    protected void prepareExactRepulsion() {
+        if (exactRepulsion == null)
+            exactRepulsion = new ExactRepulsion();
+
+        exactRepulsion.prepare(store, is3D, K2);
+        sliceExact = true;
+    }
+
+    /**
+     * Compute the exact repulsion of one node of a sliced step.
+     *
+     * @param slot The slot of the node.
+     */
+    protected void computeExactRepulsion(int slot) {
+        ParticleStore store = this.store;
+
+        if (!store.frozen[slot] && !store.asleep[slot]) {
+            long t0 = metrics != null ? System.nanoTime() : 0;
+
+            exactRepulsion.computeNode(slot);
+
+            if (metrics != null)
+                accumulator.repulsionNanos += System.nanoTime() - t0;
+        }
+    }
+
+    /**
+     * True if the changes of the graph are kept for the next step : in
+     * coalescing mode, or while a sliced step is in progress, the nodes of a
+     * step not changing before its end.
+     *
+     * @return True to defer the changes.
+     */
+    protected boolean deferChanges() {
+        return coalesceEvents || sliceCursor >= 0;
+    }
+
+    /**
+     * A node moved during the current step.
+     *
+     * @param slot The slot of the node.
+     */
+    protected void nodeMoved(int slot) {
+        if (!store.changed[slot]) {
+            store.changed[slot] = true;
+
+            if (changedCount == changedSlots.length)
+                changedSlots = Arrays.copyOf(changedSlots, changedCount * 2);
+
+            changedSlots[changedCount++] = slot;
+        }
+    }
+
+    /**
+     * Publish all the moves held back, whatever the move epsilon and the
+     * publication period.
+     */
+    public void flushPositions() {
+        publishPositions(true);
+    }
+
+    /**
+     * Send the positions of the nodes that moved since the last publication,
+     * every {@link #sendMoveEventsEvery} steps, or all of them at the step the
+     * layout becomes stable.
+     */
+    protected void publishPositions() {
+        boolean stable = convergence.getStabilization() >= stabilizationLimit;
+        boolean flush = stable && !publishedStable;
+
+        publishedStable = stable;
+        publishPositions(flush);
+    }
+
+    /**
+     * Send the positions of the nodes that moved farther than
+     * {@link #moveEpsilon} since they were last published. The positions
+     * listeners get all the moves in one call, and, unless in bulk mode, each
+     * moved node also sends an "xyz" attribute event to the sinks of the
+     * layout. The smaller moves are kept for the next publication.
+     *
+     * @param flush True to send all the moves, whatever the step and the move
+     *              epsilon.
+     */
+    protected void publishPositions(boolean flush) {
+        eventCount = 0;
+
+        if (changedCount == 0 || (!flush && (time % sendMoveEventsEvery) != 0))
+            return;
+
+        double epsilon2 = flush ? 0 : moveEpsilon * moveEpsilon;
+        int count = 0;
+        int held = 0;
+
+        if (heldSlots.length < changedCount)
+            heldSlots = new int[changedSlots.length];
+
+        for (int i = 0; i < changedCount; i++) {
+            int slot = changedSlots[i];
+
+            if (store.changed[slot]) {
+                if (store.particles[slot] == null) {
+                    store.changed[slot] = false;
+                    continue;
+                }
+
+                // Without move epsilon, the published positions are not kept
+                // and every move is sent.
+                if (store.sentX == null) {
+                    store.changed[slot] = false;
+                    changedSlots[count++] = slot;
+                    continue;
+                }
+
+                double dx = store.x[slot] - store.sentX[slot];
+                double dy = store.y[slot] - store.sentY[slot];
+                double dz = store.z[slot] - store.sentZ[slot];
+
+                // Never published nodes have NaN coordinates and are sent.
+                if (dx * dx + dy * dy + dz * dz < epsilon2) {
+                    heldSlots[held++] = slot;
+                } else {
+                    store.changed[slot] = false;
+                    store.sentX[slot] = store.x[slot];
+                    store.sentY[slot] = store.y[slot];
+                    store.sentZ[slot] = store.z[slot];
+                    changedSlots[count++] = slot;
+                }
+            }
+        }
+
+        changedCount = 0;
+
+        if (count > 0) {
+            for (int i = 0; i < positionsListeners.size(); i++)
+                positionsListeners.get(i).positionsUpdated(this, store.x, store.y, store.z, changedSlots, count);
+
+            eventCount = positionsListeners.size();
+
+            if (!bulkPositions && !attrSinks.isEmpty()) {
+                eventCount += count;
+
+                for (int i = 0; i < count; i++) {
+                    int slot = changedSlots[i];
+                    Object xyz[] = new Object[3];
+                    xyz[0] = store.x[slot];
+                    xyz[1] = store.y[slot];
+                    xyz[2] = store.z[slot];
+
+                    sendNodeAttributeChanged(getLayoutAlgorithmName(), (String) store.particles[slot].getId(), "xyz", xyz, xyz);
+                }
+            }
+        }
+
+        for (int i = 0; i < held; i++) {
+            if (changedCount == changedSlots.length)
+                changedSlots = Arrays.copyOf(changedSlots, changedCount * 2);
+
+            changedSlots[changedCount++] = heldSlots[i];
+        }
+    }
+
+    /**
+     * Put the calm nodes to sleep and wake the neighbours of the nodes that
+     * moved significantly. This is done after the displacements are computed,
+     * in the calling thread. A node falling asleep skips its last move, which
+     * is below the sleep threshold anyway.
+     */
+    protected void updateActiveSet() {
+        NodeParticle[] particles = store.particles;
+        int n = store.getSlotCount();
+
+        for (int i = 0; i < n; i++) {
+            if (particles[i] != null && !store.asleep[i] && !store.frozen[i]) {
+                double len = store.len[i];
+
+                if (len < sleepThreshold) {
+                    if (++store.calmSteps[i] >= sleepSteps)
+                        store.sleep(i);
+                } else {
+                    store.calmSteps[i] = 0;
+
+                    if (len > wakeThreshold)
+                        wakeNeighbours(particles[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake a node up.
+     *
+     * @param node The node, may be null.
+     */
+    protected void wake(NodeParticle node) {
+        if (node != null)
+            store.wake(node.slot);
+    }
+
+    /**
+     * Wake up the nodes connected to the given node and the nodes sharing its
+     * n-tree cell.
+     *
+     * @param node The node.
+     */
+    protected void wakeNeighbours(NodeParticle node) {
+        for (int i = 0; i < node.neighbours.size(); i++)
+            store.wake(node.neighbours.get(i).getOpposite(node).slot);
+
+        spatialIndex.wakeCellMates(node);
+    }
+
+    /**
+     * Fill the data of the n-tree cells : the slots of the particles of each
+     * leaf, and the barycenter and weight of every cell. This is done in one
+     * pass over the particle store and one pass over the tree, without
+     * allocating anything once the leaf arrays are large enough.
+     */
+    protected void indexCells() {
+        int pass = ++indexPass;
+
+        treeDepth = 0;
+        cellCount = 0;
+        NodeParticle[] particles = store.particles;
+        int n = store.getSlotCount();
+
+        for (int i = 0; i < n; i++) {
+            NodeParticle particle = particles[i];
+
+            if (particle != null && particle.getCell() != null) {
+                SpringCellData data = (SpringCellData) particle.getCell().getData();
+                data.add(pass, i, store.x[i], store.y[i], store.z[i], store.weight[i]);
+            }
+        }
+
+        summarizeCell(nodes.getNTree().getRootCell(), pass);
+    }
+
+    /**
+     * Compute the barycenter and weight of a cell from its leaves. As in the
+     * pherd barycenter, the center of a cell is the mean position of its
+     * particles, and its weight the sum of their weights. The multipole
+     * values are computed according to {@link #multipoleOrder}. The depth and
+     * cell count of the tree are updated on the way.
+     *
+     * @param cell The cell.
+     * @param pass The current index pass.
+     */
+    protected void summarizeCell(Cell cell, int pass) {
+        SpringCellData data = (SpringCellData) cell.getData();
+
+        data.reset(pass);
+        cellCount++;
+
+        if (cell.getDepth() > treeDepth)
+            treeDepth = cell.getDepth();
+
+        if (!cell.isLeaf()) {
+            int div = cell.getSpace().getDivisions();
+
+            for (int i = 0; i < div; i++) {
+                Cell sub = cell.getSub(i);
+                summarizeCell(sub, pass);
+                data.include((SpringCellData) sub.getData());
+            }
+        }
+
+        data.finish(multipoleOrder);
+    }
+
+    /**
+     * Log the statistics of the step, and those of the sampled nodes, if a
+     * telemetry log is set. Nothing is formatted nor written here, the
+     * records are copied in the ring of the log.
+     *
+     * @param nanos The step duration.
+     */
+    protected void logStats(long nanos) {
+        if (telemetry == null)
+            return;
+
+        telemetry.step(time, nanos, nodeMoveCount, store.getAwakeCount(),
+                convergence.getStabilization(), energies.getEnergy(),
+                maxMoveLength, avgLength, area);
+
+        if (nodeSampling > 0) {
+            int n = store.getSlotCount();
+
+            if (telemetryIds.length < n)
+                telemetryIds = Arrays.copyOf(telemetryIds, store.getCapacity());
+
+            for (int i = time % nodeSampling; i < n; i += nodeSampling) {
+                NodeParticle node = store.particles[i];
+
+                if (node != null) {
+                    String id = (String) node.getId();
+
+                    if (telemetryIds[i] != id && telemetry.name(i, id))
+                        telemetryIds[i] = id;
+
+                    telemetry.node(time, i, store.len[i], store.attE[i],
+                            store.repE[i], store.x[i], store.y[i], store.z[i]);
+                }
             }
+        }
+    }
+
+    protected void computeArea() {
+        area = getHiPoint().distance(getLowPoint());
+    }
+
+    public void shake() {
+        energies.clearEnergies();
+        convergence.reset();
+        store.wakeAll();
+    }
+
+    // Graph representation
+
+    protected void addNode(String id) {
+        insertNode(new NodeParticle(this, id));
+    }
+
+    /**
+     * Add a node at a given position.
+     *
+     * @param id The node identifier.
+     * @param x  The abscissa.
+     * @param y  The ordinate.
+     * @param z  The depth.
+     * @return The new node.
+     */
+    protected NodeParticle addNode(String id, double x, double y, double z) {
+        return insertNode(new NodeParticle(this, id, x, y, z));
+    }
+
+    protected NodeParticle insertNode(NodeParticle node) {
+        restorePosition(node);
+
+        try {
+            nodes.addParticle(node);
+        } catch (IdAlreadyInUseException e) {
+            store.release(node.slot);
+            throw e;
+        }
+
+        convergence.perturb();
+
+        return node;
+    }
+
+    public void moveNode(String id, double dx, double dy, double dz) {
+        if (deferChanges())
+            changes.nodeMoved(id, dx, dy, dz);
+        else
+            moveNode_(id, dx, dy, dz);
+    }
+
+    protected void moveNode_(String id, double dx, double dy, double dz) {
+        NodeParticle node = (NodeParticle) nodes.getParticle(id);
+
+        if (node != null) {
+            node.move(dx, dy, dz);
+            wake(node);
+            wakeNeighbours(node);
+            convergence.perturb();
+        }
+    }
+
+    public void freezeNode(String id, boolean on) {
+        if (deferChanges())
+            changes.nodeFrozen(id, on);
+        else
+            freezeNode_(id, on);
+    }
+
+    protected void freezeNode_(String id, boolean on) {
+        NodeParticle node = (NodeParticle) nodes.getParticle(id);
+
+        if (node != null) {
+            node.setFrozen(on);
+            wake(node);
+        }
+    }
+
+    protected void setNodeWeight(String id, double weight) {
+        NodeParticle node = (NodeParticle) nodes.getParticle(id);
+
+        if (node != null) {
+            node.setWeight(weight);
+            wake(node);
+            wakeNeighbours(node);
+        }
+    }
+
+    protected void removeNode(String id) {
+        NodeParticle node = (NodeParticle) nodes.removeParticle(id);
 
+        if (node != null) {
+            wakeNeighbours(node);
+            node.removeNeighborEdges();
+            store.release(node.slot);
+            convergence.perturb();
+        }
+    }
+
+    protected void addEdge(String id, String from, String to) {
+        NodeParticle n0 = (NodeParticle) nodes.getParticle(from);
+        NodeParticle n1 = (NodeParticle) nodes.getParticle(to);
+
+        if (n0 != null && n1 != null) {
+            connect(id, n0, n1);
             chooseNodePosition(n0, n1);
         }
     }
 
+    /**
+     * Create an edge between two nodes of the box, without moving them.
+     *
+     * @param id The edge identifier.
+     * @param n0 The first node.
+     * @param n1 The second node.
+     * @return The new edge, or the edge already using this identifier.
+     */
+    protected EdgeSpring connect(String id, NodeParticle n0, NodeParticle n1) {
+        EdgeSpring e = new EdgeSpring(id, n0, n1);
+        EdgeSpring o = edges.put(id, e);
+
+        if (o != null) {
+            // throw new SingletonException( "edge '"+id+"' already exists");
+            System.err.printf("edge '%s' already exists%n", id);
+            edges.put(id, o);
+            return o;
+        }
+
+        n0.registerEdge(e);
+        n1.registerEdge(e);
+
+        if (edgeSlotCount == edgeSlots.length)
+            edgeSlots = Arrays.copyOf(edgeSlots, edgeSlotCount * 2);
+
+        e.slot = edgeSlotCount;
+        edgeSlots[edgeSlotCount++] = e;
+
+        store.wake(n0.slot);
+        store.wake(n1.slot);
+        convergence.perturb();
+
+        return e;
+    }
+
+    /**
+     * Load a whole graph at once. The particle store, the particle index, the
+     * edge map and the neighbour lists are sized once, the adjacency is built
+     * in one pass over the edges and the new nodes are inserted in the n-tree
+     * in one batch, after the edges. The new nodes start at random positions,
+     * the leaf placement of {@link #addEdge(String, String, String)} is not
+     * done, and the nodes of a snapshot being restored start at their saved
+     * position, the convergence state of the snapshot being kept. Instead of
+     * one event per element, the sinks of the layout receive one
+     * "layout.bulk-loaded" graph attribute whose value is an array with the
+     * number of nodes and of edges loaded. The positions of the new nodes are
+     * published at the next step.
+     *
+     * <p>
+     * The edges may connect the new nodes as well as the nodes already in the
+     * box. The nodes already in the box and the edges whose ends are unknown
+     * are skipped with a warning.
+     * </p>
+     *
+     * @param nodeIds The identifiers of the new nodes, may be null.
+     * @param edgeIds The identifiers of the new edges, or null to name each
+     *                edge after its ends, "from_to".
+     * @param from    The first node of each edge.
+     * @param to      The second node of each edge.
+     */
+    public void bulkLoad(String[] nodeIds, String[] edgeIds, String[] from, String[] to) {
+        finishStep();
+        applyChanges();
+
+        int nodeCount = nodeIds != null ? nodeIds.length : 0;
+        int edgeCount = from.length;
+        HashMap<String, NodeParticle> added = new HashMap<String, NodeParticle>((int) (nodeCount / 0.75f) + 1);
+        NodeParticle[] particles = new NodeParticle[nodeCount];
+        int loadedNodes = 0;
+        int loadedEdges = 0;
+        int restoredNodes = 0;
+
+        store.ensureCapacity(store.getCount() + nodeCount);
+        nodes.ensureCapacity(nodes.getParticleCount() + nodeCount);
+
+        if (edges.isEmpty())
+            edges = new HashMap<String, EdgeSpring>((int) (edgeCount / 0.75f) + 1);
+        else {
+            HashMap<String, EdgeSpring> map = new HashMap<String, EdgeSpring>(
+                    (int) ((edges.size() + edgeCount) / 0.75f) + 1);
+            map.putAll(edges);
+            edges = map;
+        }
+
+        if (edgeSlots.length < edgeSlotCount + edgeCount)
+            edgeSlots = Arrays.copyOf(edgeSlots, edgeSlotCount + edgeCount);
+
+        for (int i = 0; i < nodeCount; i++) {
+            String id = nodeIds[i];
+
+            if (added.containsKey(id) || nodes.getParticle(id) != null) {
+                System.err.printf("node '%s' already exists%n", id);
+            } else {
+                NodeParticle node = new NodeParticle(this, id);
+
+                if (restorePosition(node))
+                    restoredNodes++;
+
+                added.put(id, node);
+                particles[loadedNodes++] = node;
+            }
+        }
+
+        NodeParticle[] ends = new NodeParticle[edgeCount * 2];
+        int[] degrees = new int[store.getSlotCount()];
+
+        for (int i = 0; i < edgeCount; i++) {
+            NodeParticle n0 = added.get(from[i]);
+            NodeParticle n1 = added.get(to[i]);
+
+            if (n0 == null)
+                n0 = (NodeParticle) nodes.getParticle(from[i]);
+            if (n1 == null)
+                n1 = (NodeParticle) nodes.getParticle(to[i]);
+
+            if (n0 != null && n1 != null) {
+                ends[i * 2] = n0;
+                ends[i * 2 + 1] = n1;
+                degrees[n0.slot]++;
+                degrees[n1.slot]++;
+            } else {
+                System.err.printf("edge '%s' has an unknown end, ignored%n",
+                        edgeIds != null ? edgeIds[i] : from[i] + "_" + to[i]);
+            }
+        }
+
+        for (int slot = 0; slot < degrees.length; slot++) {
+            if (degrees[slot] > 0) {
+                NodeParticle node = store.particles[slot];
+                node.neighbours.ensureCapacity(node.neighbours.size() + degrees[slot]);
+            }
+        }
+
+        for (int i = 0; i < edgeCount; i++) {
+            if (ends[i * 2] != null) {
+                String id = edgeIds != null ? edgeIds[i] : from[i] + "_" + to[i];
+                connect(id, ends[i * 2], ends[i * 2 + 1]);
+                loadedEdges++;
+            }
+        }
+
+        for (int i = 0; i < loadedNodes; i++) {
+            nodes.addParticle(particles[i]);
+            nodeMoved(particles[i].slot);
+        }
+
+        if (restoredNodes > 0)
+            convergence.perturb();
+        else
+            convergence.reset();
+
+        sendGraphAttributeAdded(getLayoutAlgorithmName(), "layout.bulk-loaded",
+                new Object[]{loadedNodes, loadedEdges});
+    }
+
+    /**
+     * Load a graph from an edge list file, see
+     * {@link #bulkLoad(String[], String[], String[], String[])}. Each line
+     * gives a node followed by the nodes it is connected to, separated by
+     * spaces or tabulations. Empty lines and lines starting with '#' are
+     * skipped. The nodes are created at their first appearance, unless they
+     * are already in the box, and the edges are named "from_to".
+     *
+     * @param fileName The file name.
+     * @throws IOException If the file cannot be read.
+     */
+    public void bulkLoad(String fileName) throws IOException {
+        HashMap<String, String> ids = new HashMap<String, String>();
+        ArrayList<String> nodeIds = new ArrayList<String>();
+        ArrayList<String> from = new ArrayList<String>();
+        ArrayList<String> to = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(fileName), 1 << 16);
+
+        try {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                int length = line.length();
+                int i = 0;
+                String source = null;
+
+                while (i < length) {
+                    while (i < length && Character.isWhitespace(line.charAt(i)))
+                        i++;
+
+                    if (i == length || (source == null && line.charAt(i) == '#'))
+                        break;
+
+                    int begin = i;
+
+                    while (i < length && !Character.isWhitespace(line.charAt(i)))
+                        i++;
+
+                    String id = line.substring(begin, i);
+                    String known = ids.get(id);
+
+                    if (known == null) {
+                        ids.put(id, id);
+
+                        if (nodes.getParticle(id) == null)
+                            nodeIds.add(id);
+                    } else {
+                        id = known;
+                    }
+
+                    if (source == null) {
+                        source = id;
+                    } else {
+                        from.add(source);
+                        to.add(id);
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        bulkLoad(nodeIds.toArray(new String[nodeIds.size()]), null,
+                from.toArray(new String[from.size()]),
+                to.toArray(new String[to.size()]));
+    }
+
     protected void chooseNodePosition(NodeParticle n0, NodeParticle n1) {
-        if (n0.getEdges().size() == 1 && n1.getEdges().size() > 1) {
+        if (n0.getEdges().size() == 1 && n1.getEdges().size() > 1 && !n0.placed) {
             org.miv.pherd.geom.Point3 pos = n1.getPosition();
             n0.move(pos.x, pos.y, pos.z);
-        } else if (n1.getEdges().size() == 1 && n0.getEdges().size() > 1) {
+        } else if (n1.getEdges().size() == 1 && n0.getEdges().size() > 1 && !n1.placed) {
             org.miv.pherd.geom.Point3 pos = n0.getPosition();
             n1.move(pos.x, pos.y, pos.z);
         }
@@ -494,34 +2137,56 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
 
         if (edge != null) {
             edge.ignored = on;
+            store.wake(edge.node0.slot);
+            store.wake(edge.node1.slot);
         }
     }
 
     protected void setEdgeWeight(String id, double weight) {
         EdgeSpring edge = edges.get(id);
 
-        if (edge != null)
+        if (edge != null) {
             edge.weight = weight;
+            store.wake(edge.node0.slot);
+            store.wake(edge.node1.slot);
+        }
     }
 
     protected void removeEdge(String id) {
-        EdgeSpring e = edges.remove(id);
+        EdgeSpring e = edges.get(id);
 
-        if (e != null) {
-            e.node0.unregisterEdge(e);
-            e.node1.unregisterEdge(e);
-        }
+        if (e != null)
+            removeEdge(e);
     }
 
-    public void particleMoved(Object id, double x, double y, double z) {
-        if ((time % sendMoveEventsEvery) == 0) {
-            Object xyz[] = new Object[3];
-            xyz[0] = x;
-            xyz[1] = y;
-            xyz[2] = z;
+    /**
+     * Remove an edge from the map, the edge array and the neighbour lists of
+     * its nodes. Except for the map, this only moves the last element of each
+     * array in place of the edge.
+     *
+     * @param e The edge, in the box.
+     */
+    protected void removeEdge(EdgeSpring e) {
+        edges.remove(e.id);
+        e.node0.unregisterEdge(e);
+        e.node1.unregisterEdge(e);
 
-            sendNodeAttributeChanged(getLayoutAlgorithmName(), (String) id, "xyz", xyz, xyz);
-        }
+        EdgeSpring moved = edgeSlots[--edgeSlotCount];
+
+        edgeSlots[e.slot] = moved;
+        moved.slot = e.slot;
+        edgeSlots[edgeSlotCount] = null;
+        e.slot = -1;
+
+        store.wake(e.node0.slot);
+        store.wake(e.node1.slot);
+        convergence.perturb();
+    }
+
+    /**
+     * The moves are published once per step, see {@link #publishPositions()}.
+     */
+    public void particleMoved(Object id, double x, double y, double z) {
     }
 
     public void particleRemoved(Object id) {
@@ -541,27 +2206,47 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
 
     public void edgeAdded(String graphId, long time, String edgeId,
                           String fromNodeId, String toNodeId, boolean directed) {
-        addEdge(edgeId, fromNodeId, toNodeId);
+        if (deferChanges())
+            changes.edgeAdded(edgeId, fromNodeId, toNodeId);
+        else
+            addEdge(edgeId, fromNodeId, toNodeId);
+
         sendEdgeAdded(graphId, time, edgeId, fromNodeId, toNodeId, directed);
     }
 
     public void nodeAdded(String graphId, long time, String nodeId) {
-        addNode(nodeId);
+        if (deferChanges())
+            changes.nodeAdded(nodeId);
+        else
+            addNode(nodeId);
+
         sendNodeAdded(graphId, time, nodeId);
     }
 
     public void edgeRemoved(String graphId, long time, String edgeId) {
-        removeEdge(edgeId);
+        if (deferChanges())
+            changes.edgeRemoved(edgeId);
+        else
+            removeEdge(edgeId);
+
         sendEdgeRemoved(graphId, time, edgeId);
     }
 
     public void nodeRemoved(String graphId, long time, String nodeId) {
-        removeNode(nodeId);
+        if (deferChanges())
+            changes.nodeRemoved(nodeId);
+        else
+            removeNode(nodeId);
+
         sendNodeRemoved(graphId, time, nodeId);
     }
 
     public void graphCleared(String graphId, long time) {
-        clear();
+        if (deferChanges())
+            changes.graphCleared();
+        else
+            clear();
+
         sendGraphCleared(graphId, time);
     }
 
@@ -582,11 +2267,16 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
     }
 
     protected void graphAttributeChanged_(String attribute, Object newValue) {
+        if (attribute.startsWith("layout.")) {
+            finishStep();
+            store.wakeAll();
+        }
+
         if (attribute.equals("layout.force")) {
             if (newValue instanceof Number)
                 setForce(((Number) newValue).doubleValue());
 
-            energies.clearEnergies();
+            convergence.perturb();
         } else if (attribute.equals("layout.quality")) {
             if (newValue instanceof Number) {
                 int q = ((Number) newValue).intValue();
@@ -598,7 +2288,7 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
                 System.err.printf("layout.elasticBox.quality: %d%n", q);
             }
 
-            energies.clearEnergies();
+            convergence.perturb();
         } else if (attribute.equals("layout.exact-zone")) {
             if (newValue instanceof Number) {
                 double factor = ((Number) newValue).doubleValue();
@@ -608,19 +2298,85 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
 
                 viewZone = factor;
                 System.err.printf("layout.elasticBox.exact-zone: %f of [0..1]%n", viewZone);
-                energies.clearEnergies();
+                convergence.perturb();
             }
         } else if (attribute.equals("layout.output-stats")) {
-            outputStats = newValue != null;
+            if (newValue == null || Boolean.FALSE.equals(newValue))
+                outputStats(null);
+            else
+                outputStats(newValue instanceof String ? (String) newValue : "springBox.log");
+
+            System.err.printf("layout.elasticBox.output-stats: %b%n", telemetry != null);
+        } else if (attribute.equals("layout.metrics")) {
+            publishMetrics(newValue instanceof String ? (String) newValue : null,
+                    newValue != null && !Boolean.FALSE.equals(newValue));
+        } else if (attribute.equals("layout.move-epsilon")) {
+            if (newValue instanceof Number)
+                setMoveEpsilon(((Number) newValue).doubleValue());
+            else if (newValue == null)
+                setMoveEpsilon(0);
+        } else if (attribute.equals("layout.send-move-events-every")) {
+            if (newValue instanceof Number)
+                setSendMoveEventsEvery(((Number) newValue).intValue());
+            else if (newValue == null)
+                setSendMoveEventsEvery(1);
+        } else if (attribute.equals("layout.position-buffer")) {
+            sharePositions(newValue instanceof String ? (String) newValue : null,
+                    newValue != null && !Boolean.FALSE.equals(newValue));
+        } else if (attribute.equals("layout.output-node-stats")) {
+            if (newValue instanceof Number)
+                setNodeSampling(((Number) newValue).intValue());
+            else
+                setNodeSampling(newValue == null || Boolean.FALSE.equals(newValue) ? 0 : 1);
+        } else if (attribute.equals("layout.multipole-order")) {
+            if (newValue instanceof Number)
+                setMultipoleOrder(((Number) newValue).intValue());
+            else if (newValue == null)
+                setMultipoleOrder(0);
 
-            System.err.printf("layout.elasticBox.output-stats: %b%n", outputStats);
+            convergence.perturb();
+        } else if (attribute.equals("layout.theta")) {
+            if (newValue instanceof Number) {
+                setTheta(((Number) newValue).doubleValue());
+                convergence.perturb();
+            }
+        } else if (attribute.equals("layout.spatial-index")) {
+            if (newValue != null)
+                setSpatialIndex(newValue.toString());
+        } else if (attribute.equals("layout.coalesce-events")) {
+            setCoalesceEvents(newValue != null && !Boolean.FALSE.equals(newValue));
+        } else if (attribute.equals("layout.deterministic")) {
+            if (newValue instanceof Number) {
+                setDeterministic(true);
+                setSeed(((Number) newValue).longValue());
+            } else {
+                setDeterministic(newValue != null && !Boolean.FALSE.equals(newValue));
+            }
+        } else if (attribute.equals("layout.active-set")) {
+            setActiveSet(newValue != null && !Boolean.FALSE.equals(newValue));
+        } else if (attribute.equals("layout.sleep-threshold")) {
+            if (newValue instanceof Number)
+                setSleepThreshold(((Number) newValue).doubleValue());
+        } else if (attribute.equals("layout.sleep-steps")) {
+            if (newValue instanceof Number)
+                setSleepSteps(((Number) newValue).intValue());
+        } else if (attribute.equals("layout.wake-threshold")) {
+            if (newValue instanceof Number)
+                setWakeThreshold(((Number) newValue).doubleValue());
+        } else if (attribute.equals("layout.bulk-positions")) {
+            setBulkPositions(newValue != null && !Boolean.FALSE.equals(newValue));
+        } else if (attribute.equals("layout.parallelism")) {
+            if (newValue instanceof Number)
+                setParallelism(((Number) newValue).intValue());
+            else if (newValue == null)
+                setParallelism(1);
         } else if (attribute.equals("layout.stabilization-limit")) {
             if (newValue instanceof Number) {
                 stabilizationLimit = ((Number) newValue).doubleValue();
                 if (stabilizationLimit > 1) stabilizationLimit = 1;
                 else if (stabilizationLimit < 0) stabilizationLimit = 0;
 
-                energies.clearEnergies();
+                convergence.perturb();
             }
         }
     }
@@ -642,12 +2398,17 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
 
     protected void nodeAttributeChanged_(String nodeId, String attribute, Object newValue) {
         if (attribute.equals("layout.weight")) {
-            if (newValue instanceof Number)
-                setNodeWeight(nodeId, ((Number) newValue).doubleValue());
-            else if (newValue == null)
-                setNodeWeight(nodeId, 1);
+            if (newValue instanceof Number || newValue == null) {
+                double weight = newValue == null ? 1 : ((Number) newValue).doubleValue();
 
-            energies.clearEnergies();
+                if (deferChanges())
+                    changes.nodeWeightChanged(nodeId, weight);
+                else
+                    setNodeWeight(nodeId, weight);
+            }
+
+            if (!deferChanges())
+                convergence.perturb();
         }
     }
 
@@ -667,16 +2428,27 @@ public class SpringBox extends SourceBase implements Layout, ParticleBoxListener
 
     protected void edgeAttributeChanged_(String edgeId, String attribute, Object newValue) {
         if (attribute.equals("layout.weight")) {
-            if (newValue instanceof Number)
-                setEdgeWeight(edgeId, ((Number) newValue).doubleValue());
-            else if (newValue == null)
-                setEdgeWeight(edgeId, 1);
+            if (newValue instanceof Number || newValue == null) {
+                double weight = newValue == null ? 1 : ((Number) newValue).doubleValue();
 
-            energies.clearEnergies();
+                if (deferChanges())
+                    changes.edgeWeightChanged(edgeId, weight);
+                else
+                    setEdgeWeight(edgeId, weight);
+            }
+
+            if (!deferChanges())
+                convergence.perturb();
         } else if (attribute.equals("layout.ignored")) {
-            if (newValue instanceof Boolean)
-                ignoreEdge(edgeId, (Boolean) newValue);
-            energies.clearEnergies();
+            if (newValue instanceof Boolean) {
+                if (deferChanges())
+                    changes.edgeIgnored(edgeId, (Boolean) newValue);
+                else
+                    ignoreEdge(edgeId, (Boolean) newValue);
+            }
+
+            if (!deferChanges())
+                convergence.perturb();
         }
     }
 
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.miv.pherd.ntree.BarycenterCellData;
+import org.miv.pherd.ntree.CellData;
+
+import java.util.Arrays;
+
+/**
+ * Cell data of the spring box n-tree.
+ *
+ * <p>
+ * In addition to the barycenter and weight of the cell, a leaf cell knows the
+ * slots of the particles it contains, so the repulsion can walk them without
+ * an iterator. When the box uses a multipole approximation, the cell also
+ * knows its weighted center and, at order 2, its quadrupole moments around
+ * this center. All these values are computed by
+ * {@link SpringBox#indexCells()} at the start of each step, in one pass over
+ * the particle store and one pass over the tree. The {@link #recompute()}
+ * method called by the n-tree therefore does nothing.
+ * </p>
+ */
+public class SpringCellData extends BarycenterCellData {
+    // Attributes
+
+    /**
+     * The slots of the particles of a leaf cell.
+     */
+    public int[] slots = new int[4];
+
+    /**
+     * The number of valid entries of {@link #slots}. It is only set for the
+     * cells that were leaves at the last index pass : a cell divided or fused
+     * since then keeps its stale slots, but no slot is counted.
+     */
+    public int slotCount;
+
+    /**
+     * The number of particles in the cell, including its sub-cells.
+     */
+    public int count;
+
+    /**
+     * The index pass that last filled this cell.
+     */
+    protected int stamp = -1;
+
+    /**
+     * Abscissa of the weighted center of the cell.
+     */
+    public double cx;
+
+    /**
+     * Ordinate of the weighted center of the cell.
+     */
+    public double cy;
+
+    /**
+     * Depth of the weighted center of the cell.
+     */
+    public double cz;
+
+    /**
+     * Traceless quadrupole moments of the cell around its weighted center.
+     */
+    public double qxx, qxy, qxz, qyy, qyz, qzz;
+
+    /**
+     * Sum of the particle positions, along each axis.
+     */
+    protected double sumX, sumY, sumZ;
+
+    /**
+     * Sum of the particle positions multiplied by their weight.
+     */
+    protected double sumWX, sumWY, sumWZ;
+
+    /**
+     * Weighted second moments of the particle positions around the origin.
+     * They add up from the sub-cells, the quadrupole is derived from them.
+     */
+    protected double mxx, mxy, mxz, myy, myz, mzz;
+
+    // Commands
+
+    @Override
+    public CellData newCellData() {
+        return new SpringCellData();
+    }
+
+    /**
+     * The cell data is computed by {@link SpringBox#indexCells()}.
+     */
+    @Override
+    public void recompute() {
+    }
+
+    /**
+     * Empty the cell if it was not yet filled during the given index pass.
+     *
+     * @param pass The current index pass.
+     */
+    protected void reset(int pass) {
+        if (stamp != pass) {
+            stamp = pass;
+            count = 0;
+            slotCount = 0;
+            weight = 0;
+            sumX = sumY = sumZ = 0;
+            sumWX = sumWY = sumWZ = 0;
+            mxx = mxy = mxz = myy = myz = mzz = 0;
+        }
+    }
+
+    /**
+     * Add a particle to a leaf cell.
+     *
+     * @param pass The current index pass.
+     * @param slot The slot of the particle.
+     * @param x    The abscissa of the particle.
+     * @param y    The ordinate of the particle.
+     * @param z    The depth of the particle.
+     * @param w    The weight of the particle.
+     */
+    protected void add(int pass, int slot, double x, double y, double z, double w) {
+        reset(pass);
+
+        if (slotCount == slots.length)
+            slots = Arrays.copyOf(slots, slotCount * 2);
+
+        slots[slotCount++] = slot;
+        count++;
+        weight += w;
+        sumX += x;
+        sumY += y;
+        sumZ += z;
+        sumWX += w * x;
+        sumWY += w * y;
+        sumWZ += w * z;
+        mxx += w * x * x;
+        mxy += w * x * y;
+        mxz += w * x * z;
+        myy += w * y * y;
+        myz += w * y * z;
+        mzz += w * z * z;
+    }
+
+    /**
+     * Add the content of a sub-cell to this cell.
+     *
+     * @param sub The data of the sub-cell, already finished.
+     */
+    protected void include(SpringCellData sub) {
+        count += sub.count;
+        weight += sub.weight;
+        sumX += sub.sumX;
+        sumY += sub.sumY;
+        sumZ += sub.sumZ;
+        sumWX += sub.sumWX;
+        sumWY += sub.sumWY;
+        sumWZ += sub.sumWZ;
+        mxx += sub.mxx;
+        mxy += sub.mxy;
+        mxz += sub.mxz;
+        myy += sub.myy;
+        myz += sub.myz;
+        mzz += sub.mzz;
+    }
+
+    /**
+     * Compute the centers, and the quadrupole if asked, from the sums.
+     *
+     * @param order The multipole order of the box, 0 for the plain
+     *              barycenter, 1 for the weighted center, 2 for the
+     *              quadrupole.
+     */
+    protected void finish(int order) {
+        if (count > 0)
+            center.set(sumX / count, sumY / count, sumZ / count);
+        else
+            center.set(0, 0, 0);
+
+        if (order > 0 && weight != 0) {
+            cx = sumWX / weight;
+            cy = sumWY / weight;
+            cz = sumWZ / weight;
+
+            if (order > 1) {
+                double cxx = mxx - weight * cx * cx;
+                double cyy = myy - weight * cy * cy;
+                double czz = mzz - weight * cz * cz;
+                double trace = cxx + cyy + czz;
+
+                qxx = 3 * cxx - trace;
+                qyy = 3 * cyy - trace;
+                qzz = 3 * czz - trace;
+                qxy = 3 * (mxy - weight * cx * cy);
+                qxz = 3 * (mxz - weight * cx * cz);
+                qyz = 3 * (myz - weight * cy * cz);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.miv.pherd.Particle;
+import org.miv.pherd.ParticleBox;
+import org.miv.pherd.ntree.CellData;
+import org.miv.pherd.ntree.CellSpace;
+
+import java.util.HashMap;
+
+/**
+ * The particle box of the spring box, whose particle index can be sized
+ * before a bulk load, and whose step measures the time spent re-dividing the
+ * n-tree. The step visits the particles in the order of their slots in the
+ * particle store, not in the order of the particle index, so the moves of a
+ * step do not depend on the capacity or history of the index.
+ */
+public class SpringParticleBox extends ParticleBox {
+    // Attributes
+
+    /**
+     * The number of particles the index can hold without rehashing.
+     */
+    protected int capacity = 12;
+
+    /**
+     * The time spent re-dividing the n-tree during the last step.
+     */
+    protected long divisionNanos;
+
+    /**
+     * The per-node state of the layout, giving the particles in slot order.
+     */
+    protected ParticleStore store;
+
+    /**
+     * True if the n-tree follows the moves of the particles and is
+     * re-divided at each step.
+     */
+    protected boolean maintainTree = true;
+
+    // Constructors
+
+    public SpringParticleBox(int nodesPerCell, CellSpace space, CellData data, ParticleStore store) {
+        super(nodesPerCell, space, data);
+        this.store = store;
+    }
+
+    // Access
+
+    public long getDivisionNanos() {
+        return divisionNanos;
+    }
+
+    public boolean isMaintainTree() {
+        return maintainTree;
+    }
+
+    // Commands
+
+    /**
+     * As the step of the particle box, the particles being visited in slot
+     * order and the division check of the n-tree being timed.
+     */
+    @Override
+    public void step() {
+        NodeParticle[] slots = store.particles;
+        int n = store.getSlotCount();
+
+        for (int i = 0; i < n; i++) {
+            if (slots[i] != null)
+                slots[i].move(time);
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (slots[i] != null)
+                slots[i].nextStep(time);
+        }
+
+        long t0 = System.nanoTime();
+
+        if (maintainTree)
+            tree.checkDivisions();
+
+        divisionNanos = System.nanoTime() - t0;
+
+        for (int i = 0; i < listeners.size(); i++)
+            listeners.get(i).stepFinished(time);
+
+        time++;
+    }
+
+    /**
+     * Stop or restart the maintenance of the n-tree. While stopped, the
+     * particles stay in the cell where they were inserted and the cells are
+     * never divided nor fused. Restarting it moves each particle to the cell
+     * of its current position and re-divides the tree.
+     *
+     * @param on True to maintain the n-tree.
+     */
+    public void setMaintainTree(boolean on) {
+        if (on && !maintainTree) {
+            NodeParticle[] slots = store.particles;
+            int n = store.getSlotCount();
+
+            for (int i = 0; i < n; i++) {
+                if (slots[i] != null && slots[i].getCell() != null)
+                    slots[i].getCell().particleMoved(slots[i]);
+            }
+
+            tree.checkDivisions();
+        }
+
+        maintainTree = on;
+    }
+
+    /**
+     * Make sure the particle index can hold the given number of particles
+     * without rehashing.
+     *
+     * @param capacity The wanted number of particles.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.capacity) {
+            HashMap<Object, Particle> map = new HashMap<Object, Particle>(
+                    (int) (capacity / 0.75f) + 1);
+
+            map.putAll(particles);
+            particles = map;
+            this.capacity = capacity;
+        }
+    }
+}
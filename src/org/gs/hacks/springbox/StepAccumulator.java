@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+/**
+ * The values accumulated while computing the displacement of a set of nodes
+ * during one step. Each worker of a step owns its accumulator, so the nodes
+ * never write in the shared state of the {@link SpringBox}. The accumulators
+ * are then reduced into the box once the step is done.
+ */
+public class StepAccumulator {
+    // Attributes
+
+    /**
+     * The energy accumulated by the nodes.
+     */
+    public double energy;
+
+    /**
+     * The sum of the lengths of the node displacements.
+     */
+    public double lengthSum;
+
+    /**
+     * The largest node displacement.
+     */
+    public double maxMoveLength;
+
+    /**
+     * Displacement of the node being computed, along the abscissa.
+     */
+    public double dispX;
+
+    /**
+     * Displacement of the node being computed, along the ordinate.
+     */
+    public double dispY;
+
+    /**
+     * Displacement of the node being computed, along the depth.
+     */
+    public double dispZ;
+
+    /**
+     * Repulsion energy of the node being computed.
+     */
+    public double repE;
+
+    /**
+     * Attraction energy of the node being computed.
+     */
+    public double attE;
+
+    /**
+     * Number of node to node repulsions computed.
+     */
+    public long direct;
+
+    /**
+     * Number of n-tree cells whose repulsion was approximated by their center.
+     */
+    public long approximated;
+
+    /**
+     * Time spent computing the repulsion, only measured with the metrics on.
+     */
+    public long repulsionNanos;
+
+    /**
+     * Time spent computing the attraction, only measured with the metrics on.
+     */
+    public long attractionNanos;
+
+    // Commands
+
+    /**
+     * Forget the values of the previous step.
+     */
+    public void reset() {
+        energy = 0;
+        lengthSum = 0;
+        maxMoveLength = Double.MIN_VALUE;
+        direct = 0;
+        approximated = 0;
+        repulsionNanos = 0;
+        attractionNanos = 0;
+    }
+
+    /**
+     * Add the values of another accumulator to this one.
+     *
+     * @param other The accumulator to merge.
+     */
+    public void merge(StepAccumulator other) {
+        energy += other.energy;
+        lengthSum += other.lengthSum;
+        direct += other.direct;
+        approximated += other.approximated;
+        repulsionNanos += other.repulsionNanos;
+        attractionNanos += other.attractionNanos;
+
+        if (other.maxMoveLength > maxMoveLength)
+            maxMoveLength = other.maxMoveLength;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary log of the layout statistics.
+ *
+ * <p>
+ * The records have a fixed size and are written by the layout thread in a ring
+ * buffer, without any formatting nor system call. A background thread writes
+ * the buffer to the file. If the writer falls behind and the ring is full, the
+ * new records are dropped and counted, the layout is never blocked.
+ * </p>
+ *
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes : the magic
+ * number, the version and the record size, as big endian integers. Then come
+ * the records of {@link #RECORD_SIZE} bytes, each starting with its type :
+ * <ul>
+ * <li>{@link #STEP} : step, step duration in nanoseconds (long), moved node
+ * count, awake node count, stabilization, energy, largest move, average move,
+ * area (doubles).</li>
+ * <li>{@link #NODE} : step, node slot, displacement length, attraction
+ * energy, repulsion energy, x, y, z (doubles).</li>
+ * <li>{@link #NAME} : node slot, byte length and UTF-8 bytes of the node
+ * identifier, truncated to {@link #MAX_NAME} bytes. A name record precedes
+ * the first node record of a slot, and is written again when the slot is
+ * given to another node.</li>
+ * </ul>
+ * {@link TelemetryReader} decodes the log to CSV.
+ * </p>
+ */
+public class TelemetryLog implements Closeable, Runnable {
+    // Constants
+
+    public static final int MAGIC = 0x53424c47;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+
+    public static final int RECORD_SIZE = 64;
+
+    public static final int STEP = 1;
+
+    public static final int NODE = 2;
+
+    public static final int NAME = 3;
+
+    public static final int MAX_NAME = RECORD_SIZE - 12;
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Attributes
+
+    /**
+     * The records not yet written.
+     */
+    protected final ByteBuffer ring;
+
+    /**
+     * The number of records of the ring.
+     */
+    protected final int capacity;
+
+    /**
+     * The number of records put in the ring, only changed by the layout
+     * thread.
+     */
+    protected volatile long head = 0;
+
+    /**
+     * The number of records written to the file, only changed by the writer
+     * thread.
+     */
+    protected volatile long tail = 0;
+
+    /**
+     * The number of records dropped because the ring was full.
+     */
+    protected volatile long dropped = 0;
+
+    protected final RandomAccessFile file;
+
+    protected final FileChannel channel;
+
+    protected final Thread writer;
+
+    protected volatile boolean open = true;
+
+    /**
+     * Set if the writer thread failed, the records are then dropped.
+     */
+    protected volatile IOException failure;
+
+    // Constructors
+
+    public TelemetryLog(String fileName) throws IOException {
+        this(fileName, 16384);
+    }
+
+    /**
+     * New log, the file is truncated.
+     *
+     * @param fileName The file name.
+     * @param capacity The number of records the ring can hold.
+     * @throws IOException If the file cannot be opened.
+     */
+    public TelemetryLog(String fileName, int capacity) throws IOException {
+        this.capacity = Math.max(capacity, 16);
+        this.ring = ByteBuffer.allocateDirect(this.capacity * RECORD_SIZE);
+        this.file = new RandomAccessFile(fileName, "rw");
+        this.channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+        header.flip();
+
+        channel.truncate(0);
+
+        while (header.hasRemaining())
+            channel.write(header);
+
+        writer = new Thread(this, "telemetry-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Access
+
+    /**
+     * The number of records dropped because the writer thread fell behind.
+     *
+     * @return The dropped record count.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * The number of records written to the file.
+     *
+     * @return The written record count.
+     */
+    public long getWritten() {
+        return tail;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Commands
+
+    /**
+     * Log a step.
+     *
+     * @return False if the record was dropped.
+     */
+    public boolean step(int step, long nanos, int moved, int awake, double stabilization,
+                        double energy, double maxMove, double avgMove, double area) {
+        int at = reserve();
+
+        if (at < 0)
+            return false;
+
+        ring.putInt(at, STEP);
+        ring.putInt(at + 4, step);
+        ring.putLong(at + 8, nanos);
+        ring.putInt(at + 16, moved);
+        ring.putInt(at + 20, awake);
+        ring.putDouble(at + 24, stabilization);
+        ring.putDouble(at + 32, energy);
+        ring.putDouble(at + 40, maxMove);
+        ring.putDouble(at + 48, avgMove);
+        ring.putDouble(at + 56, area);
+        head++;
+
+        return true;
+    }
+
+    /**
+     * Log the state of a node.
+     *
+     * @return False if the record was dropped.
+     */
+    public boolean node(int step, int slot, double len, double attE, double repE,
+                        double x, double y, double z) {
+        int at = reserve();
+
+        if (at < 0)
+            return false;
+
+        ring.putInt(at, NODE);
+        ring.putInt(at + 4, step);
+        ring.putInt(at + 8, slot);
+        ring.putInt(at + 12, 0);
+        ring.putDouble(at + 16, len);
+        ring.putDouble(at + 24, attE);
+        ring.putDouble(at + 32, repE);
+        ring.putDouble(at + 40, x);
+        ring.putDouble(at + 48, y);
+        ring.putDouble(at + 56, z);
+        head++;
+
+        return true;
+    }
+
+    /**
+     * Log the identifier of the node owning a slot.
+     *
+     * @return False if the record was dropped.
+     */
+    public boolean name(int slot, String id) {
+        int at = reserve();
+
+        if (at < 0)
+            return false;
+
+        byte[] bytes = id.getBytes(UTF8);
+        int length = Math.min(bytes.length, MAX_NAME);
+
+        ring.putInt(at, NAME);
+        ring.putInt(at + 4, slot);
+        ring.putInt(at + 8, length);
+
+        for (int i = 0; i < length; i++)
+            ring.put(at + 12 + i, bytes[i]);
+
+        head++;
+
+        return true;
+    }
+
+    /**
+     * Wait until all the records put in the ring are written.
+     */
+    public void flush() {
+        while (tail < head && writer.isAlive())
+            LockSupport.parkNanos(100000);
+    }
+
+    /**
+     * Write the remaining records, stop the writer thread and close the file.
+     *
+     * @throws IOException If the writer thread failed or the file cannot be
+     *                     closed.
+     */
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            LockSupport.unpark(writer);
+
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            file.close();
+
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * The byte offset of the next free record of the ring, or -1 if the ring
+     * is full or the log closed.
+     */
+    protected int reserve() {
+        long h = head;
+
+        if (!open || failure != null || h - tail >= capacity) {
+            dropped++;
+            return -1;
+        }
+
+        return (int) (h % capacity) * RECORD_SIZE;
+    }
+
+    /**
+     * The writer thread.
+     */
+    public void run() {
+        ByteBuffer view = ring.duplicate();
+
+        try {
+            while (true) {
+                long h = head;
+                long t = tail;
+
+                if (h == t) {
+                    if (!open)
+                        break;
+
+                    LockSupport.parkNanos(1000000);
+                    continue;
+                }
+
+                int from = (int) (t % capacity);
+                int count = (int) Math.min(h - t, capacity - from);
+
+                view.limit((from + count) * RECORD_SIZE);
+                view.position(from * RECORD_SIZE);
+
+                while (view.hasRemaining())
+                    channel.write(view);
+
+                tail = t + count;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Decode a {@link TelemetryLog} file to CSV.
+ *
+ * <p>
+ * Usage : <code>TelemetryReader file [steps|nodes]</code>. The step records
+ * are printed by default, the node records with the "nodes" option. The CSV
+ * goes to the standard output.
+ * </p>
+ */
+public class TelemetryReader {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || (args.length > 1 && !args[1].equals("steps") && !args[1].equals("nodes"))) {
+            System.err.printf("usage: TelemetryReader file [steps|nodes]%n");
+            System.exit(1);
+        }
+
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        boolean nodes = args.length > 1 && args[1].equals("nodes");
+
+        new TelemetryReader().toCSV(args[0], nodes, out);
+        out.flush();
+    }
+
+    /**
+     * Decode a log.
+     *
+     * @param fileName The log file.
+     * @param nodes    True to output the node records, false for the step
+     *                 records.
+     * @param out      Where to print the CSV.
+     * @throws IOException If the file cannot be read or is not a log.
+     */
+    public void toCSV(String fileName, boolean nodes, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+        HashMap<Integer, String> names = new HashMap<Integer, String>();
+        byte[] record = new byte[TelemetryLog.RECORD_SIZE];
+        ByteBuffer r = ByteBuffer.wrap(record);
+
+        try {
+            if (in.readInt() != TelemetryLog.MAGIC)
+                throw new IOException("not a telemetry log: " + fileName);
+
+            int version = in.readInt();
+            int size = in.readInt();
+
+            in.readInt();
+
+            if (version != TelemetryLog.VERSION || size != TelemetryLog.RECORD_SIZE)
+                throw new IOException(String.format("unsupported telemetry log version %d, record size %d", version, size));
+
+            if (nodes)
+                out.printf("step,slot,id,len,attE,repE,x,y,z%n");
+            else
+                out.printf("step,nanos,nodeMoveCount,awakeCount,stabilization,energy,maxMoveLength,avgLength,area%n");
+
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                r.clear();
+                int type = r.getInt();
+
+                if (type == TelemetryLog.NAME) {
+                    int slot = r.getInt();
+                    int length = r.getInt();
+                    names.put(slot, new String(record, 12, length, "UTF-8"));
+                } else if (type == TelemetryLog.STEP && !nodes) {
+                    out.printf(Locale.US, "%d,%d,%d,%d,%s,%s,%s,%s,%s%n",
+                            r.getInt(), r.getLong(), r.getInt(), r.getInt(),
+                            r.getDouble(), r.getDouble(), r.getDouble(),
+                            r.getDouble(), r.getDouble());
+                } else if (type == TelemetryLog.NODE && nodes) {
+                    int step = r.getInt();
+                    int slot = r.getInt();
+                    r.getInt();
+                    String id = names.get(slot);
+
+                    out.printf(Locale.US, "%d,%d,%s,%s,%s,%s,%s,%s,%s%n", step, slot,
+                            id != null ? quote(id) : "", r.getDouble(), r.getDouble(),
+                            r.getDouble(), r.getDouble(), r.getDouble(), r.getDouble());
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    protected String quote(String id) {
+        if (id.indexOf(',') < 0 && id.indexOf('"') < 0 && id.indexOf('\n') < 0)
+            return id;
+
+        return '"' + id.replace("\"", "\"\"") + '"';
+    }
+}
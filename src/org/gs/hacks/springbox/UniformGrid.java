@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.miv.pherd.geom.Point3;
+
+import java.util.Arrays;
+
+/**
+ * A spatial index made of a uniform grid and of the pyramid of its coarser
+ * levels, rebuilt from scratch at each step, as an alternative to the n-tree
+ * for layouts of fairly uniform density.
+ *
+ * <p>
+ * The fine grid has cells the size of the view zone of the box (k times the
+ * view zone). A node is repulsed one by one by the nodes of its fine cell and
+ * of the adjacent fine cells. Each level above groups the cells of the level
+ * below by two along each axis, up to a level of at most four cells along
+ * each axis. At each level, the cells that are children of the cells
+ * adjacent to the parent of the cell of the node, but are not adjacent to
+ * this cell, repulse the node through their barycenter; at the top level,
+ * all the cells not adjacent to it. So a node sees at most 6^d - 3^d cells
+ * per level, about log n cells in all. The multipole order and theta of the
+ * box are not used.
+ * </p>
+ *
+ * <p>
+ * The nodes are sorted by cell with a counting sort over packed arrays, in
+ * linear time and without allocation once the arrays are large enough. No
+ * tree is maintained : the cost of a step only depends on the number of nodes
+ * and on the extent of the layout. If the layout is very sparse, the cell size
+ * is doubled until there are at most four cells per node. The nodes at a
+ * non-finite position are left out of the bounds and put in the border
+ * cells.
+ * </p>
+ */
+public class UniformGrid implements SpatialIndex {
+    // Constants
+
+    public static final String NAME = "grid";
+
+    // Attributes
+
+    protected SpringBox box;
+
+    protected Point3 lo = new Point3();
+
+    protected Point3 hi = new Point3();
+
+    /**
+     * The side of the fine cells.
+     */
+    protected double cellSize;
+
+    /**
+     * The number of fine cells along each axis.
+     */
+    protected int gx, gy, gz;
+
+    /**
+     * The number of levels, the fine grid being the first one.
+     */
+    protected int levels;
+
+    /**
+     * The number of cells of each level along each axis.
+     */
+    protected int[] levelX = new int[0];
+
+    protected int[] levelY = new int[0];
+
+    protected int[] levelZ = new int[0];
+
+    /**
+     * The index of the first cell of each level in the cell arrays.
+     */
+    protected int[] levelStart = new int[1];
+
+    /**
+     * The number of slots of the store when the grid was built.
+     */
+    protected int indexedSlots;
+
+    /**
+     * The fine cell of each slot, -1 for a free slot.
+     */
+    protected int[] cellOf = new int[0];
+
+    /**
+     * The index of the first node of each fine cell in the sorted arrays,
+     * followed by the node count.
+     */
+    protected int[] start = new int[1];
+
+    /**
+     * Fill cursor of each fine cell during the sort.
+     */
+    protected int[] fill = new int[0];
+
+    /**
+     * The nodes sorted by fine cell : slot, position and weight.
+     */
+    protected int[] sortedSlots = new int[0];
+
+    protected double[] sx = new double[0];
+
+    protected double[] sy = new double[0];
+
+    protected double[] sz = new double[0];
+
+    protected double[] sw = new double[0];
+
+    /**
+     * The barycenter, weight and node count of each cell of each level.
+     */
+    protected double[] cellX = new double[0];
+
+    protected double[] cellY = new double[0];
+
+    protected double[] cellZ = new double[0];
+
+    protected double[] cellW = new double[0];
+
+    protected int[] cellN = new int[0];
+
+    // Constructors
+
+    public UniformGrid(SpringBox box) {
+        this.box = box;
+    }
+
+    // Access
+
+    public String getName() {
+        return NAME;
+    }
+
+    public boolean usesTree() {
+        return false;
+    }
+
+    public int getDepth() {
+        return levels;
+    }
+
+    public int getCellCount() {
+        return levelStart[levels];
+    }
+
+    public Point3 getLowestPoint() {
+        return lo;
+    }
+
+    public Point3 getHighestPoint() {
+        return hi;
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    // Commands
+
+    public void update() {
+        ParticleStore store = box.store;
+        NodeParticle[] particles = store.particles;
+        int n = store.getSlotCount();
+        int count = store.getCount();
+        boolean is3D = box.is3D;
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        int finite = 0;
+
+        for (int i = 0; i < n; i++) {
+            if (particles[i] != null) {
+                double x = store.x[i], y = store.y[i], z = is3D ? store.z[i] : 0;
+
+                if (!Double.isFinite(x) || !Double.isFinite(y) || !Double.isFinite(z))
+                    continue;
+
+                finite++;
+
+                if (x < minX) minX = x;
+                if (x > maxX) maxX = x;
+                if (y < minY) minY = y;
+                if (y > maxY) maxY = y;
+                if (z < minZ) minZ = z;
+                if (z > maxZ) maxZ = z;
+            }
+        }
+
+        if (finite == 0)
+            minX = minY = minZ = maxX = maxY = maxZ = 0;
+
+        lo.set(minX, minY, minZ);
+        hi.set(maxX, maxY, maxZ);
+
+        double h = box.k * box.viewZone;
+        double maxCells = Math.max(64, 4.0 * count);
+
+        if (!(h > 0))
+            h = box.k;
+
+        // The extent of finite bounds may still overflow to infinity, the
+        // cell size then ends infinite and a single cell is used.
+        while (h < Double.MAX_VALUE
+                && cells(maxX - minX, h) * cells(maxY - minY, h) * cells(maxZ - minZ, h) > maxCells)
+            h *= 2;
+
+        cellSize = h;
+        gx = Math.max(1, (int) cells(maxX - minX, h));
+        gy = Math.max(1, (int) cells(maxY - minY, h));
+        gz = Math.max(1, (int) cells(maxZ - minZ, h));
+
+        allocate(n, count);
+        sort(store, minX, minY, minZ);
+        summarize();
+    }
+
+    public void repulsion(NodeParticle node, StepAccumulator acc) {
+        int slot = node.slot;
+
+        if (slot >= indexedSlots || cellOf[slot] < 0)
+            return;
+
+        ParticleStore store = box.store;
+        double px = store.x[slot];
+        double py = store.y[slot];
+        double pz = box.is3D ? store.z[slot] : 0;
+        int cell = cellOf[slot];
+        int ix = cell % gx;
+        int iy = (cell / gx) % gy;
+        int iz = cell / (gx * gy);
+
+        // Near field : the nodes of the adjacent fine cells, one by one.
+
+        for (int z = Math.max(0, iz - 1); z <= Math.min(gz - 1, iz + 1); z++) {
+            for (int y = Math.max(0, iy - 1); y <= Math.min(gy - 1, iy + 1); y++) {
+                for (int x = Math.max(0, ix - 1); x <= Math.min(gx - 1, ix + 1); x++) {
+                    int c = (z * gy + y) * gx + x;
+
+                    for (int j = start[c]; j < start[c + 1]; j++) {
+                        if (sortedSlots[j] != slot)
+                            direct(px, py, pz, sx[j], sy[j], sz[j], sw[j], acc);
+                    }
+                }
+            }
+        }
+
+        // Far field : at each level, the children of the cells adjacent to
+        // the parent that are not adjacent to the cell of the node, and at
+        // the top level all the cells not adjacent to it.
+
+        for (int level = 0; level < levels; level++) {
+            int lx = levelX[level], ly = levelY[level], lz = levelZ[level];
+            int base = levelStart[level];
+            int x0 = 0, y0 = 0, z0 = 0, x1 = lx - 1, y1 = ly - 1, z1 = lz - 1;
+
+            if (level < levels - 1) {
+                x0 = Math.max(0, (ix / 2 - 1) * 2);
+                y0 = Math.max(0, (iy / 2 - 1) * 2);
+                z0 = Math.max(0, (iz / 2 - 1) * 2);
+                x1 = Math.min(lx - 1, (ix / 2 + 1) * 2 + 1);
+                y1 = Math.min(ly - 1, (iy / 2 + 1) * 2 + 1);
+                z1 = Math.min(lz - 1, (iz / 2 + 1) * 2 + 1);
+            }
+
+            for (int z = z0; z <= z1; z++) {
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        if (Math.abs(x - ix) <= 1 && Math.abs(y - iy) <= 1 && Math.abs(z - iz) <= 1)
+                            continue;
+
+                        int c = base + (z * ly + y) * lx + x;
+
+                        if (cellN[c] > 0)
+                            barycenter(px, py, pz, cellX[c], cellY[c], cellZ[c], cellW[c], acc);
+                    }
+                }
+            }
+
+            ix /= 2;
+            iy /= 2;
+            iz /= 2;
+        }
+    }
+
+    public void wakeCellMates(NodeParticle node) {
+        int slot = node.slot;
+
+        if (slot < indexedSlots && cellOf[slot] >= 0) {
+            int cell = cellOf[slot];
+
+            for (int j = start[cell]; j < start[cell + 1]; j++)
+                box.store.wake(sortedSlots[j]);
+        }
+    }
+
+    /**
+     * The number of cells of a given size needed to cover an extent.
+     */
+    protected static double cells(double extent, double size) {
+        return Math.floor(extent / size) + 1;
+    }
+
+    protected void allocate(int slots, int count) {
+        int fine = gx * gy * gz;
+        int cellCount = buildLevels();
+
+        if (cellOf.length < slots)
+            cellOf = new int[Math.max(slots, cellOf.length * 2)];
+
+        if (sortedSlots.length < count) {
+            int size = Math.max(count, sortedSlots.length * 2);
+
+            sortedSlots = new int[size];
+            sx = new double[size];
+            sy = new double[size];
+            sz = new double[size];
+            sw = new double[size];
+        }
+
+        if (fill.length < fine) {
+            int size = Math.max(fine, fill.length * 2);
+
+            start = new int[size + 1];
+            fill = new int[size];
+        }
+
+        if (cellN.length < cellCount) {
+            int size = Math.max(cellCount, cellN.length * 2);
+
+            cellX = new double[size];
+            cellY = new double[size];
+            cellZ = new double[size];
+            cellW = new double[size];
+            cellN = new int[size];
+        }
+
+        indexedSlots = slots;
+    }
+
+    /**
+     * Size the levels above the fine grid, each one halving the previous one
+     * along each axis, until a level has at most four cells along each axis.
+     *
+     * @return The number of cells of all the levels.
+     */
+    protected int buildLevels() {
+        int lx = gx, ly = gy, lz = gz;
+
+        levels = 0;
+
+        while (true) {
+            if (levelX.length == levels) {
+                levelX = Arrays.copyOf(levelX, levels + 8);
+                levelY = Arrays.copyOf(levelY, levels + 8);
+                levelZ = Arrays.copyOf(levelZ, levels + 8);
+                levelStart = Arrays.copyOf(levelStart, levels + 9);
+            }
+
+            levelX[levels] = lx;
+            levelY[levels] = ly;
+            levelZ[levels] = lz;
+            levelStart[levels + 1] = levelStart[levels] + lx * ly * lz;
+            levels++;
+
+            if (lx <= 4 && ly <= 4 && lz <= 4)
+                return levelStart[levels];
+
+            lx = (lx + 1) / 2;
+            ly = (ly + 1) / 2;
+            lz = (lz + 1) / 2;
+        }
+    }
+
+    /**
+     * Sort the nodes by fine cell.
+     */
+    protected void sort(ParticleStore store, double minX, double minY, double minZ) {
+        NodeParticle[] particles = store.particles;
+        boolean is3D = box.is3D;
+        int fine = gx * gy * gz;
+        double inv = 1 / cellSize;
+
+        Arrays.fill(start, 0, fine + 1, 0);
+
+        for (int i = 0; i < indexedSlots; i++) {
+            if (particles[i] != null) {
+                int x = index(store.x[i], minX, inv, gx);
+                int y = index(store.y[i], minY, inv, gy);
+                int z = is3D ? index(store.z[i], minZ, inv, gz) : 0;
+                int cell = (z * gy + y) * gx + x;
+
+                cellOf[i] = cell;
+                start[cell + 1]++;
+            } else {
+                cellOf[i] = -1;
+            }
+        }
+
+        for (int c = 0; c < fine; c++) {
+            start[c + 1] += start[c];
+            fill[c] = start[c];
+        }
+
+        for (int i = 0; i < indexedSlots; i++) {
+            int cell = cellOf[i];
+
+            if (cell >= 0) {
+                int j = fill[cell]++;
+
+                sortedSlots[j] = i;
+                sx[j] = store.x[i];
+                sy[j] = store.y[i];
+                sz[j] = is3D ? store.z[i] : 0;
+                sw[j] = store.weight[i];
+            }
+        }
+    }
+
+    /**
+     * The cell of a coordinate along an axis, a non-finite coordinate falling
+     * in the border cells.
+     */
+    protected static int index(double value, double min, double inv, int cells) {
+        int i = (int) ((value - min) * inv);
+
+        return i < 0 ? 0 : i >= cells ? cells - 1 : i;
+    }
+
+    /**
+     * Compute the barycenters of the cells of all the levels.
+     */
+    protected void summarize() {
+        int cellCount = levelStart[levels];
+
+        for (int c = 0; c < gx * gy * gz; c++) {
+            double sumX = 0, sumY = 0, sumZ = 0, weight = 0;
+
+            for (int j = start[c]; j < start[c + 1]; j++) {
+                sumX += sx[j];
+                sumY += sy[j];
+                sumZ += sz[j];
+                weight += sw[j];
+            }
+
+            cellX[c] = sumX;
+            cellY[c] = sumY;
+            cellZ[c] = sumZ;
+            cellW[c] = weight;
+            cellN[c] = start[c + 1] - start[c];
+        }
+
+        Arrays.fill(cellX, levelStart[1], cellCount, 0);
+        Arrays.fill(cellY, levelStart[1], cellCount, 0);
+        Arrays.fill(cellZ, levelStart[1], cellCount, 0);
+        Arrays.fill(cellW, levelStart[1], cellCount, 0);
+        Arrays.fill(cellN, levelStart[1], cellCount, 0);
+
+        for (int level = 0; level < levels - 1; level++) {
+            int lx = levelX[level], ly = levelY[level], lz = levelZ[level];
+            int px = levelX[level + 1], py = levelY[level + 1];
+            int base = levelStart[level];
+            int parentBase = levelStart[level + 1];
+
+            for (int z = 0; z < lz; z++) {
+                for (int y = 0; y < ly; y++) {
+                    for (int x = 0; x < lx; x++) {
+                        int c = base + (z * ly + y) * lx + x;
+                        int p = parentBase + ((z / 2) * py + y / 2) * px + x / 2;
+
+                        cellX[p] += cellX[c];
+                        cellY[p] += cellY[c];
+                        cellZ[p] += cellZ[c];
+                        cellW[p] += cellW[c];
+                        cellN[p] += cellN[c];
+                    }
+                }
+            }
+        }
+
+        for (int c = 0; c < cellCount; c++) {
+            int n = cellN[c];
+
+            if (n > 0) {
+                cellX[c] /= n;
+                cellY[c] /= n;
+                cellZ[c] /= n;
+            }
+        }
+    }
+
+    /**
+     * The repulsion of one node, as in
+     * {@link NodeParticle#leafRepulsion(SpringCellData, StepAccumulator)}.
+     */
+    protected void direct(double px, double py, double pz, double x, double y, double z, double w,
+                          StepAccumulator acc) {
+        acc.direct++;
+
+        double dx = x - px;
+        double dy = y - py;
+        double dz = z - pz;
+        double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        if (len > 0) {
+            double ux = dx / len;
+            double uy = dy / len;
+            double uz = dz / len;
+
+            if (len < box.k)
+                len = box.k;
+
+            double factor = (box.K2 / (len * len)) * w;
+            acc.energy += factor;
+            acc.repE += factor;
+            acc.dispX += ux * -factor;
+            acc.dispY += uy * -factor;
+            acc.dispZ += uz * -factor;
+        }
+    }
+
+    /**
+     * The repulsion of a cell seen through its barycenter, as in
+     * {@link NodeParticle#recurseRepulsion(org.miv.pherd.ntree.Cell, StepAccumulator)}.
+     */
+    protected void barycenter(double px, double py, double pz, double x, double y, double z, double w,
+                              StepAccumulator acc) {
+        if (w == 0)
+            return;
+
+        double dx = x - px;
+        double dy = y - py;
+        double dz = z - pz;
+        double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        if (len > 0) {
+            double ux = dx / len;
+            double uy = dy / len;
+            double uz = dz / len;
+
+            if (len < box.k)
+                len = box.k;
+
+            double factor = (box.K2 / (len * len)) * w;
+            acc.energy += factor;
+            acc.dispX += ux * -factor;
+            acc.dispY += uy * -factor;
+            acc.dispZ += uz * -factor;
+            acc.repE += factor;
+            acc.approximated++;
+        }
+    }
+}
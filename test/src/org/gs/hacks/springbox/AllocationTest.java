@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the steps of a warmed up layout allocate nothing, the positions
+ * being published in bulk to a positions listener.
+ *
+ * <p>
+ * With the n-tree, the default index, the cells of the tree are divided and
+ * fused by the pherd library as the nodes cross their borders, which
+ * allocates cells and entries of their particle maps. The tree is therefore
+ * frozen once the layout is warmed up : the steps still go through the
+ * n-tree for the repulsion, but the allocations of the library are left out.
+ * </p>
+ */
+public class AllocationTest {
+    // Constants
+
+    protected static final int NODES = 500;
+
+    protected static final int WARM_UP_STEPS = 1000;
+
+    protected static final int STEPS = 100;
+
+    /**
+     * The bytes the measured steps may allocate, for the noise of the
+     * measure. A single iterator per step would already be more.
+     */
+    protected static final long MAX_BYTES = 1024;
+
+    @Test
+    public void treeStepsAllocateNothing() {
+        assertStepsAllocateNothing(null);
+    }
+
+    @Test
+    public void gridStepsAllocateNothing() {
+        assertStepsAllocateNothing("grid");
+    }
+
+    /**
+     * Warm a layout up, then measure the bytes allocated by its steps.
+     *
+     * @param index The spatial index, null for the default n-tree.
+     */
+    protected void assertStepsAllocateNothing(String index) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        SpringBox box = new SpringBox(false, new Random(1));
+        CountingListener listener = new CountingListener();
+        Random random = new Random(5);
+        long id = Thread.currentThread().getId();
+
+        if (index != null)
+            box.setSpatialIndex(index);
+
+        box.setBulkPositions(true);
+        box.addPositionsListener(listener);
+
+        for (int i = 0; i < NODES; i++)
+            box.nodeAdded("g", 0, "n" + i);
+
+        for (int i = 1; i < NODES; i++)
+            box.edgeAdded("g", 0, "e" + i, "n" + i, "n" + random.nextInt(i), false);
+
+        for (int i = 0; i < WARM_UP_STEPS; i++)
+            box.compute();
+
+        if (index == null)
+            box.nodes.setMaintainTree(false);
+
+        listener.events = 0;
+
+        long before = mx.getThreadAllocatedBytes(id);
+
+        for (int i = 0; i < STEPS; i++)
+            box.compute();
+
+        long allocated = mx.getThreadAllocatedBytes(id) - before;
+
+        assertTrue("no position was published", listener.events > 0);
+        assertTrue(String.format("%d bytes allocated by %d steps", allocated, STEPS), allocated < MAX_BYTES);
+    }
+
+    /**
+     * Counts the published positions, without keeping them.
+     */
+    protected static class CountingListener implements PositionsListener {
+        protected int events = 0;
+
+        public void positionsUpdated(SpringBox layout, double[] x, double[] y, double[] z, int[] changed,
+                                     int count) {
+            events += count;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check how the component layout follows the components as the graph
+ * changes.
+ */
+public class ComponentLayoutTest {
+    @Test
+    public void mergeKeepsPendingSplit() {
+        ComponentLayout layout = new ComponentLayout(false, new Random(1));
+
+        path(layout, "a", "b", "c");
+        path(layout, "d", "e", "f", "g");
+        layout.compute();
+
+        assertEquals(2, layout.getComponentCount());
+
+        // Cut a from {a, b, c}, then merge what is left in {d, e, f, g}
+        // before the next step.
+        layout.edgeRemoved("g", 0, "a-b");
+        layout.edgeAdded("g", 0, "c-d", "c", "d", false);
+        layout.compute();
+
+        assertEquals(2, layout.getComponentCount());
+        assertNotSame(layout.getComponentLayout("a"), layout.getComponentLayout("b"));
+        assertSame(layout.getComponentLayout("b"), layout.getComponentLayout("g"));
+    }
+
+    @Test
+    public void loneNodesHaveNoBox() {
+        ComponentLayout layout = new ComponentLayout(false, new Random(1));
+        String[] ids = new String[100];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "n" + i;
+            layout.nodeAdded("g", 0, ids[i]);
+        }
+
+        for (int i = 0; i < layout.components.size(); i++)
+            assertNull(layout.components.get(i).box);
+
+        for (int i = 1; i < ids.length; i++)
+            layout.edgeAdded("g", 0, "e" + i, ids[i], ids[i / 2], false);
+
+        layout.compute();
+
+        assertEquals(1, layout.getComponentCount());
+        assertEquals(ids.length, layout.getComponentLayout("n0").store.getCount());
+    }
+
+    @Test
+    public void mergedBoxIsReused() {
+        ComponentLayout layout = new ComponentLayout(false, new Random(1));
+
+        layout.nodeAdded("g", 0, "a");
+        layout.nodeAdded("g", 0, "b");
+        layout.getComponentLayout("a");
+
+        SpringBox merged = layout.getComponentLayout("b");
+
+        layout.edgeAdded("g", 0, "a-b", "a", "b", false);
+        layout.nodeAdded("g", 0, "c");
+
+        assertSame(merged, layout.getComponentLayout("c"));
+        assertEquals(1, merged.store.getCount());
+        layout.compute();
+        assertEquals(2, layout.getComponentCount());
+    }
+
+    protected void path(ComponentLayout layout, String... ids) {
+        for (int i = 0; i < ids.length; i++) {
+            layout.nodeAdded("g", 0, ids[i]);
+
+            if (i > 0)
+                layout.edgeAdded("g", 0, ids[i - 1] + "-" + ids[i], ids[i - 1], ids[i], false);
+        }
+    }
+}
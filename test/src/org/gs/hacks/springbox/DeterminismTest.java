@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the same seed and the same sequence of events give the same
+ * layout and energy, bit for bit, whatever the number of threads computing
+ * the steps, in deterministic mode and, the random positions being drawn in
+ * the same order, in the default mode.
+ */
+public class DeterminismTest {
+    // Constants
+
+    /**
+     * Above the parallel threshold of the box, so the steps do use the
+     * threads.
+     */
+    protected static final int NODES = 1500;
+
+    protected static final int STEPS = 15;
+
+    @Test
+    public void threadCountDoesNotChangeTheLayout() {
+        assertSameLayouts(true);
+    }
+
+    @Test
+    public void threadCountDoesNotChangeTheDefaultLayout() {
+        assertSameLayouts(false);
+    }
+
+    /**
+     * Run the same events on a layout computed in the calling thread and on
+     * one computed with four threads, and compare them after each step.
+     *
+     * @param deterministic True to use the deterministic mode.
+     */
+    protected void assertSameLayouts(boolean deterministic) {
+        for (double quality : new double[]{1, 4}) {
+            SpringBox serial = newLayout(quality, 1, deterministic);
+            SpringBox parallel = newLayout(quality, 4, deterministic);
+
+            try {
+                assertTrue(parallel.store.getCount() >= parallel.parallelThreshold);
+
+                for (int round = 0; round < 3; round++) {
+                    change(serial, round);
+                    change(parallel, round);
+
+                    for (int step = 0; step < STEPS; step++) {
+                        serial.compute();
+                        parallel.compute();
+                        assertSameLayout(serial, parallel);
+                    }
+                }
+            } finally {
+                serial.setParallelism(1);
+                parallel.setParallelism(1);
+            }
+        }
+    }
+
+    protected SpringBox newLayout(double quality, int threads, boolean deterministic) {
+        SpringBox box = new SpringBox(false, new Random(1));
+        Random random = new Random(5);
+
+        if (deterministic) {
+            box.setDeterministic(true);
+            box.setSeed(11);
+        }
+
+        box.setQuality(quality);
+        box.setParallelism(threads);
+
+        for (int i = 0; i < NODES; i++)
+            box.nodeAdded("g", 0, "n" + i);
+
+        for (int i = 1; i < NODES; i++)
+            box.edgeAdded("g", 0, "e" + i, "n" + i, "n" + random.nextInt(i), false);
+
+        return box;
+    }
+
+    /**
+     * Remove some nodes and add others, the same way for any layout.
+     *
+     * @param box   The layout.
+     * @param round The number of the change.
+     */
+    protected void change(SpringBox box, int round) {
+        Random random = new Random(round);
+
+        for (int i = round; i < NODES; i += 13)
+            box.nodeRemoved("g", 0, "n" + i);
+
+        for (int i = 0; i < 50; i++) {
+            String id = "r" + round + "_" + i;
+
+            box.nodeAdded("g", 0, id);
+            box.edgeAdded("g", 0, "e" + id, id, "n" + (7 + random.nextInt(NODES / 13 - 1) * 13), false);
+        }
+    }
+
+    protected void assertSameLayout(SpringBox expected, SpringBox actual) {
+        assertEquals(expected.store.getSlotCount(), actual.store.getSlotCount());
+        assertEquals(Double.doubleToLongBits(expected.energies.getEnergy()),
+                Double.doubleToLongBits(actual.energies.getEnergy()));
+
+        for (int slot = 0; slot < expected.store.getSlotCount(); slot++) {
+            assertEquals(expected.store.particles[slot] == null, actual.store.particles[slot] == null);
+            assertEquals(Double.doubleToLongBits(expected.store.x[slot]),
+                    Double.doubleToLongBits(actual.store.x[slot]));
+            assertEquals(Double.doubleToLongBits(expected.store.y[slot]),
+                    Double.doubleToLongBits(actual.store.y[slot]));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that a layout failing in the farm is retired, whatever it throws.
+ */
+public class LayoutFarmTest {
+    @Test
+    public void failedJobsAreRetired() throws InterruptedException {
+        LayoutFarm farm = new LayoutFarm(2);
+
+        try {
+            LayoutFarm.Job exception = farm.submit(new FailingBox(new IllegalStateException("exception")));
+            LayoutFarm.Job error = farm.submit(new FailingBox(new StackOverflowError("error")));
+
+            assertTrue("the farm did not become idle", farm.awaitIdle(10000));
+            assertTrue(exception.isRetired());
+            assertTrue(error.isRetired());
+            assertTrue(exception.getFailure() instanceof IllegalStateException);
+            assertTrue(error.getFailure() instanceof StackOverflowError);
+            assertEquals(0, farm.getActiveCount());
+            assertEquals(2, farm.getRetiredCount());
+        } finally {
+            farm.shutdown();
+        }
+    }
+
+    /**
+     * A layout whose steps throw.
+     */
+    protected static class FailingBox extends SpringBox {
+        protected Throwable failure;
+
+        protected FailingBox(Throwable failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public boolean compute(long nanosBudget) {
+            if (failure instanceof Error)
+                throw (Error) failure;
+
+            throw (RuntimeException) failure;
+        }
+    }
+}
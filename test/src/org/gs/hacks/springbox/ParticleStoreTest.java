@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the sleep state kept by the particle store.
+ */
+public class ParticleStoreTest {
+    @Test
+    public void wakeClearsStaleDisplacement() {
+        SpringBox box = new SpringBox(false, new Random(1));
+        ParticleStore store = box.store;
+        int slot = box.addNode("a", 0, 0, 0).slot;
+
+        store.dx[slot] = 1;
+        store.dy[slot] = 2;
+        store.dz[slot] = 3;
+        store.sleep(slot);
+        store.wake(slot);
+
+        assertEquals(0, store.dx[slot], 0);
+        assertEquals(0, store.dy[slot], 0);
+        assertEquals(0, store.dz[slot], 0);
+
+        // An awake node keeps the displacement of the current step.
+        store.dx[slot] = 1;
+        store.wake(slot);
+
+        assertEquals(1, store.dx[slot], 0);
+    }
+
+    @Test
+    public void releasedSlotsDoNotCountAsAwake() {
+        SpringBox box = new SpringBox(false, new Random(1));
+        ParticleStore store = box.store;
+        int a = box.addNode("a", 0, 0, 0).slot;
+
+        box.addNode("b", 1, 0, 0);
+        store.sleep(a);
+        box.removeNode("a");
+
+        assertFalse(store.asleep[a]);
+        assertEquals(1, store.getAwakeCount());
+
+        store.wake(a);
+
+        assertEquals(1, store.getAwakeCount());
+
+        int c = box.addNode("c", 2, 0, 0).slot;
+
+        assertEquals(a, c);
+        assertEquals(2, store.getAwakeCount());
+    }
+}
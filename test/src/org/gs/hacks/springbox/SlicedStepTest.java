@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that, in deterministic mode, a step sliced by
+ * {@link SpringBox#compute(long)} gives the same layout and energy, bit for
+ * bit, as {@link SpringBox#compute()}, including when the settings change
+ * while a step is in progress.
+ */
+public class SlicedStepTest {
+    // Constants
+
+    /**
+     * More than two chunks of the deterministic reduction.
+     */
+    protected static final int NODES = 600;
+
+    protected static final int STEPS = 20;
+
+    @Test
+    public void slicedStepsAreBitIdentical() {
+        for (double quality : new double[]{1, 4}) {
+            SpringBox whole = newLayout(quality);
+            SpringBox sliced = newLayout(quality);
+
+            for (int step = 0; step < STEPS; step++) {
+                whole.compute();
+
+                // A null budget computes one node per call.
+                while (!sliced.compute(0)) {
+                }
+
+                assertEquals(Double.doubleToLongBits(whole.energies.getEnergy()),
+                        Double.doubleToLongBits(sliced.energies.getEnergy()));
+
+                for (int slot = 0; slot < NODES; slot++) {
+                    assertEquals(Double.doubleToLongBits(whole.store.x[slot]),
+                            Double.doubleToLongBits(sliced.store.x[slot]));
+                    assertEquals(Double.doubleToLongBits(whole.store.y[slot]),
+                            Double.doubleToLongBits(sliced.store.y[slot]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void settingsFinishTheStepInProgress() {
+        String[] attributes = {"layout.spatial-index", "layout.multipole-order", "layout.quality"};
+        Object[] values = {"grid", 2, 4};
+
+        for (int a = 0; a < attributes.length; a++) {
+            SpringBox whole = newLayout(1);
+            SpringBox sliced = newLayout(1);
+
+            whole.compute();
+            whole.graphAttributeAdded("g", 0, attributes[a], values[a]);
+            whole.compute();
+
+            for (int i = 0; i < NODES / 2; i++)
+                sliced.compute(0);
+
+            assertTrue(sliced.isStepInProgress());
+            sliced.graphAttributeAdded("g", 0, attributes[a], values[a]);
+            assertFalse(attributes[a], sliced.isStepInProgress());
+
+            while (!sliced.compute(0)) {
+            }
+
+            assertEquals(attributes[a], Double.doubleToLongBits(whole.energies.getEnergy()),
+                    Double.doubleToLongBits(sliced.energies.getEnergy()));
+
+            for (int slot = 0; slot < NODES; slot++) {
+                assertEquals(Double.doubleToLongBits(whole.store.x[slot]),
+                        Double.doubleToLongBits(sliced.store.x[slot]));
+                assertEquals(Double.doubleToLongBits(whole.store.y[slot]),
+                        Double.doubleToLongBits(sliced.store.y[slot]));
+            }
+        }
+    }
+
+    protected SpringBox newLayout(double quality) {
+        SpringBox box = new SpringBox(false, new Random(1));
+        Random random = new Random(5);
+
+        box.setDeterministic(true);
+        box.setSeed(11);
+        box.setQuality(quality);
+
+        for (int i = 0; i < NODES; i++)
+            box.nodeAdded("g", 0, "n" + i);
+
+        for (int i = 1; i < NODES; i++)
+            box.edgeAdded("g", 0, "e" + i, "n" + i, "n" + random.nextInt(i), false);
+
+        return box;
+    }
+}
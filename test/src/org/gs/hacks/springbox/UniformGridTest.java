@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016. This is a file, part of the GS Hacks project
+ *  Everything is provided as it is, without any licence and guarantee
+ */
+package org.gs.hacks.springbox;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the levels of the uniform grid see every other node once, and
+ * that non-finite positions do not break the grid.
+ */
+public class UniformGridTest {
+    @Test
+    public void everyNodeIsSeenOnce() {
+        for (boolean is3D : new boolean[]{false, true}) {
+            SpringBox box = new SpringBox(is3D, new Random(1));
+            Random random = new Random(3);
+            int n = 3000;
+
+            for (int i = 0; i < n; i++) {
+                box.addNode("n" + i, random.nextGaussian() * 50, random.nextGaussian() * 50,
+                        is3D ? random.nextGaussian() * 50 : 0);
+            }
+
+            WeightGrid grid = new WeightGrid(box);
+
+            grid.update();
+
+            assertTrue(grid.getDepth() > 2);
+
+            for (int slot = 0; slot < n; slot++) {
+                grid.seen = 0;
+                grid.repulsion(box.store.particles[slot], new StepAccumulator());
+
+                assertEquals(n - 1, grid.seen, 0);
+            }
+        }
+    }
+
+    @Test
+    public void nonFinitePositions() {
+        SpringBox box = new SpringBox(false, new Random(1));
+
+        box.addNode("a", 0, 0, 0);
+        box.addNode("b", 1, 1, 0);
+        box.addNode("c", Double.NaN, 0, 0);
+        box.addNode("d", Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0);
+        box.addNode("e", -Double.MAX_VALUE, Double.MAX_VALUE, 0);
+
+        WeightGrid grid = new WeightGrid(box);
+
+        grid.update();
+
+        for (int slot = 0; slot < box.store.getSlotCount(); slot++) {
+            grid.seen = 0;
+            grid.repulsion(box.store.particles[slot], new StepAccumulator());
+
+            assertEquals(4, grid.seen, 0);
+        }
+
+        assertTrue(Double.isFinite(grid.getLowestPoint().x));
+        assertTrue(Double.isFinite(grid.getHighestPoint().y));
+    }
+
+    /**
+     * Sums the weights of the nodes and cells repulsing a node.
+     */
+    protected static class WeightGrid extends UniformGrid {
+        protected double seen;
+
+        protected WeightGrid(SpringBox box) {
+            super(box);
+        }
+
+        @Override
+        protected void direct(double px, double py, double pz, double x, double y, double z, double w,
+                              StepAccumulator acc) {
+            seen += w;
+        }
+
+        @Override
+        protected void barycenter(double px, double py, double pz, double x, double y, double z, double w,
+                                  StepAccumulator acc) {
+            seen += w;
+        }
+    }
+}